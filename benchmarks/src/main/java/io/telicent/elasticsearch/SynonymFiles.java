@@ -0,0 +1,128 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.elasticsearch.xcontent.DeprecationHandler;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentType;
+
+/**
+ * Reads and writes synonym documents as JSON files shaped like the documents of the synonym index,
+ * one document per file, so that the benchmarks run without Elasticsearch.
+ */
+public final class SynonymFiles {
+
+    /** Number of rules written in each document * */
+    public static final int RULES_PER_DOCUMENT = 1000;
+
+    private SynonymFiles() {}
+
+    /** Writes the rules in the field synonyms of documents of at most RULES_PER_DOCUMENT rules * */
+    public static void write(Path directory, List<String> rules) throws IOException {
+        Files.createDirectories(directory);
+        for (int start = 0, doc = 0; start < rules.size(); start += RULES_PER_DOCUMENT, doc++) {
+            final List<String> chunk =
+                    rules.subList(start, Math.min(rules.size(), start + RULES_PER_DOCUMENT));
+            final Path file =
+                    directory.resolve(String.format(Locale.ROOT, "synonyms-%06d.json", doc));
+            try (OutputStream out = Files.newOutputStream(file);
+                    XContentBuilder builder =
+                            new XContentBuilder(XContentType.JSON.xContent(), out)) {
+                builder.startObject().field("synonyms", chunk).endObject();
+            }
+        }
+    }
+
+    /** Reads the documents held in the JSON files of the directory, sorted by name * */
+    public static List<Map<String, Object>> read(Path directory) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files =
+                    list.filter(f -> f.getFileName().toString().endsWith(".json"))
+                            .sorted()
+                            .collect(Collectors.toList());
+        }
+        final List<Map<String, Object>> documents = new ArrayList<>(files.size());
+        for (Path file : files) {
+            try (InputStream in = Files.newInputStream(file);
+                    XContentParser parser =
+                            XContentType.JSON
+                                    .xContent()
+                                    .createParser(
+                                            NamedXContentRegistry.EMPTY,
+                                            DeprecationHandler.THROW_UNSUPPORTED_OPERATION,
+                                            in)) {
+                documents.add(parser.map());
+            }
+        }
+        return documents;
+    }
+
+    /** The rules held in the documents * */
+    public static List<String> rules(List<Map<String, Object>> documents) {
+        final List<String> rules = new ArrayList<>();
+        for (Map<String, Object> document : documents) {
+            for (Object value : document.values()) {
+                if (value instanceof List) {
+                    for (Object rule : (List<?>) value) {
+                        rules.add(String.valueOf(rule));
+                    }
+                } else {
+                    rules.add(String.valueOf(value));
+                }
+            }
+        }
+        return rules;
+    }
+
+    /**
+     * Loads the documents of the given directory or, if none is given, generated ones which go
+     * through a temporary directory to be read like any other.
+     */
+    public static List<Map<String, Object>> load(
+            String directory, int size, double multiWordRatio, double explicitRatio)
+            throws IOException {
+        if (directory != null && !directory.isEmpty()) {
+            return read(Path.of(directory));
+        }
+        final Path tmp = Files.createTempDirectory("synonyms");
+        try {
+            final SynonymRuleGenerator generator =
+                    new SynonymRuleGenerator(
+                            42, Math.max(1000, size), multiWordRatio, explicitRatio);
+            write(tmp, generator.rules(size));
+            return read(tmp);
+        } finally {
+            try (Stream<Path> files = Files.list(tmp)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(tmp);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.CharFilterFactory;
+import org.elasticsearch.index.analysis.CustomAnalyzer;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.analysis.TokenizerFactory;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Analyzes a stream of queries with the filter created by the factory of the plugin, the tokens
+ * counter gives the number of tokens produced per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SynonymFilterBenchmark {
+
+    private static final int QUERIES = 1000;
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"0.2"})
+    public double multiWordRatio;
+
+    @Param({"0.3"})
+    public double explicitRatio;
+
+    /** Share of the queries containing a term of the synonyms * */
+    @Param({"0.3"})
+    public double matchRatio;
+
+    /** Number of token sequences whose expansion is cached, 0 disables the cache * */
+    @Param({"0", "10000"})
+    public int expansionCacheSize;
+
+    /** Whether the tokens which cannot start a match skip the synonym filter * */
+    @Param({"false", "true"})
+    public boolean prefilter;
+
+    /** Directory of JSON files to load the synonyms from instead of generating them * */
+    @Param({""})
+    public String directory;
+
+    private Analyzer analyzer;
+    private List<String> queries;
+
+    /** Number of tokens produced * */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long tokens;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            tokens = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final List<Map<String, Object>> documents =
+                SynonymFiles.load(directory, size, multiWordRatio, explicitRatio);
+        queries =
+                new SynonymRuleGenerator(7, Math.max(1000, size), multiWordRatio, explicitRatio)
+                        .queries(QUERIES, SynonymFiles.rules(documents), matchRatio);
+
+        final IndexSettings indexSettings =
+                new IndexSettings(
+                        IndexMetadata.builder("benchmark")
+                                .settings(
+                                        Settings.builder()
+                                                .put(
+                                                        IndexMetadata.SETTING_VERSION_CREATED,
+                                                        Version.CURRENT)
+                                                .put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, 1)
+                                                .put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 0))
+                                .build(),
+                        Settings.EMPTY);
+
+        // reads the documents instead of the synonym index
+        final SynonymGraphTokenFilterFactory factory =
+                new SynonymGraphTokenFilterFactory(
+                        indexSettings,
+                        null,
+                        "synonyms",
+                        Settings.builder().put("first_token_prefilter", prefilter).build(),
+                        null,
+                        new SynonymMapCache(Runnable::run, null, expansionCacheSize),
+                        null,
+                        1,
+                        null) {
+                    @Override
+                    IndexedSynonymParser createParser(
+                            Analyzer analyzer,
+                            Supplier<Analyzer> analyzers,
+                            SynonymMemoryBudget budget,
+                            String fingerprint) {
+                        return new IndexedSynonymParser(
+                                null, null, null, ".synonyms", true, true, true, analyzer) {
+                            @Override
+                            public String changeToken() {
+                                return "files";
+                            }
+
+                            @Override
+                            public void parse() throws IOException, ParseException {
+                                parse(documents);
+                            }
+                        };
+                    }
+                };
+
+        final TokenizerFactory tokenizer =
+                TokenizerFactory.newFactory("standard", StandardTokenizer::new);
+        final TokenFilterFactory synonyms =
+                factory.getChainAwareTokenFilterFactory(
+                        tokenizer, Collections.emptyList(), Collections.emptyList(), name -> null);
+        analyzer =
+                new CustomAnalyzer(
+                        tokenizer, new CharFilterFactory[0], new TokenFilterFactory[] {synonyms});
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        analyzer.close();
+    }
+
+    @Benchmark
+    public void analyze(Counters counters, Blackhole blackhole) throws IOException {
+        for (String query : queries) {
+            try (TokenStream stream = analyzer.tokenStream("field", query)) {
+                final CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+                stream.reset();
+                while (stream.incrementToken()) {
+                    blackhole.consume(term);
+                    counters.tokens++;
+                }
+                stream.end();
+            }
+        }
+    }
+}
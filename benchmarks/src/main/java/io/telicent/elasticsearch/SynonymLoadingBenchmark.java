@@ -0,0 +1,142 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time taken to parse, analyze and compile a dictionary of synonyms into a SynonymMap. Run with
+ * -prof gc for the allocations, gc.alloc.rate.norm divided by the size gives the bytes allocated
+ * per rule. The RAM used by the compiled map is printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class SynonymLoadingBenchmark {
+
+    @Param({"10000", "100000"})
+    public int size;
+
+    @Param({"0.2"})
+    public double multiWordRatio;
+
+    @Param({"0.3"})
+    public double explicitRatio;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    /** Size in bytes of the cache of the analyzed terms, kept between the iterations * */
+    @Param({"0", "16777216"})
+    public long termCacheSize;
+
+    /** Directory of JSON files to load the synonyms from instead of generating them * */
+    @Param({""})
+    public String directory;
+
+    private List<Map<String, Object>> documents;
+    // the same documents as returned by the synonym index
+    private List<BytesReference> sources;
+    private ExecutorService executor;
+    private SynonymTermCache termCache;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        documents = SynonymFiles.load(directory, size, multiWordRatio, explicitRatio);
+        sources = new ArrayList<>(documents.size());
+        for (Map<String, Object> document : documents) {
+            sources.add(BytesReference.bytes(XContentFactory.jsonBuilder().map(document)));
+        }
+        executor = Executors.newFixedThreadPool(parallelism);
+        termCache = termCacheSize > 0 ? new SynonymTermCache(termCacheSize) : null;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        final SynonymMap map = parseAndBuild();
+        final long bytes = map.fst.ramBytesUsed() + map.words.ramBytesUsed();
+        System.out.println();
+        System.out.println(
+                "SynonymMap RAM: "
+                        + bytes
+                        + " bytes, "
+                        + (bytes / SynonymFiles.rules(documents).size())
+                        + " bytes per rule");
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public SynonymMap parseAndBuild() throws Exception {
+        final IndexedSynonymParser parser = parser();
+        parser.parse(documents);
+        return parser.build();
+    }
+
+    /** Streams the rules out of the JSON sources like when reading the synonym index * */
+    @Benchmark
+    public SynonymMap parseSourcesAndBuild() throws Exception {
+        final IndexedSynonymParser parser = parser();
+        parser.parseSources(sources);
+        return parser.build();
+    }
+
+    private IndexedSynonymParser parser() {
+        return new IndexedSynonymParser(
+                null,
+                null,
+                null,
+                ".synonyms",
+                true,
+                true,
+                true,
+                new StandardAnalyzer(),
+                IndexedSynonymParser.DEFAULT_PAGE_SIZE,
+                1,
+                Collections.emptyList(),
+                null,
+                Collections.emptyList(),
+                StandardAnalyzer::new,
+                executor,
+                parallelism,
+                null,
+                termCache,
+                "standard");
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates synthetic synonym rules in the SOLR format, as well as queries using the same
+ * vocabulary. The same seed always gives the same rules and queries.
+ */
+public class SynonymRuleGenerator {
+
+    private final Random random;
+    private final double multiWordRatio;
+    private final double explicitRatio;
+    private final String[] vocabulary;
+
+    /**
+     * @param multiWordRatio share of the terms made of several words
+     * @param explicitRatio share of the rules which are explicit mappings (=>) rather than
+     *     equivalences
+     */
+    public SynonymRuleGenerator(
+            long seed, int vocabularySize, double multiWordRatio, double explicitRatio) {
+        this.random = new Random(seed);
+        this.multiWordRatio = multiWordRatio;
+        this.explicitRatio = explicitRatio;
+        this.vocabulary = new String[vocabularySize];
+        for (int i = 0; i < vocabularySize; i++) {
+            final char[] word = new char[4 + random.nextInt(7)];
+            for (int c = 0; c < word.length; c++) {
+                word[c] = (char) ('a' + random.nextInt(26));
+            }
+            vocabulary[i] = new String(word);
+        }
+    }
+
+    private String word() {
+        return vocabulary[random.nextInt(vocabulary.length)];
+    }
+
+    private String term() {
+        if (random.nextDouble() >= multiWordRatio) {
+            return word();
+        }
+        final StringBuilder term = new StringBuilder(word());
+        final int words = 2 + random.nextInt(2);
+        for (int i = 1; i < words; i++) {
+            term.append(' ').append(word());
+        }
+        return term.toString();
+    }
+
+    private String terms(int count) {
+        final StringBuilder terms = new StringBuilder(term());
+        for (int i = 1; i < count; i++) {
+            terms.append(", ").append(term());
+        }
+        return terms.toString();
+    }
+
+    public String rule() {
+        if (random.nextDouble() < explicitRatio) {
+            return terms(1 + random.nextInt(3)) + " => " + term();
+        }
+        return terms(2 + random.nextInt(3));
+    }
+
+    public List<String> rules(int count) {
+        final List<String> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            rules.add(rule());
+        }
+        return rules;
+    }
+
+    /**
+     * Generates queries of a few words, some of which contain one of the terms of the rules.
+     *
+     * @param matchRatio share of the queries containing a term of the rules
+     */
+    public List<String> queries(int count, List<String> rules, double matchRatio) {
+        final List<String> queries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final List<String> words = new ArrayList<>();
+            final int length = 2 + random.nextInt(5);
+            for (int w = 0; w < length; w++) {
+                words.add(word());
+            }
+            if (!rules.isEmpty() && random.nextDouble() < matchRatio) {
+                final String[] terms =
+                        rules.get(random.nextInt(rules.size())).split("\\s*(,|=>)\\s*");
+                words.set(random.nextInt(length), terms[random.nextInt(terms.length)]);
+            }
+            queries.add(String.join(" ", words));
+        }
+        return queries;
+    }
+}
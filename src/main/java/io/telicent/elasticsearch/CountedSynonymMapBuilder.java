@@ -0,0 +1,309 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteArrayDataOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+import org.apache.lucene.util.fst.Util;
+
+/**
+ * Builds synonym maps whose outputs also count the mappings behind them, so that the mappings of a
+ * rule can be taken out of the synonyms again. The outputs are encoded like {@link
+ * SynonymMap.Builder} does with dedup, followed by the counts which {@link SynonymGraphFilter} does
+ * not read.
+ *
+ * <p>A delta keeps the inputs left without outputs as tombstones, they hide the same inputs in the
+ * map the delta is applied to.
+ */
+class CountedSynonymMapBuilder {
+
+    private final Map<IntsRef, Entry> entries = new HashMap<>();
+    private final BytesRefHash words = new BytesRefHash();
+
+    private final IntsRefBuilder scratchInput = new IntsRefBuilder();
+    private final BytesRefBuilder scratchWord = new BytesRefBuilder();
+    private final BytesRef scratchBytes = new BytesRef();
+    private final ByteArrayDataInput reader = new ByteArrayDataInput();
+    private final ByteArrayDataOutput writer = new ByteArrayDataOutput();
+    private byte[] buffer = new byte[64];
+
+    /**
+     * Adds a mapping, or takes it out again with a negative count
+     *
+     * @param count number of times the mapping is added
+     */
+    void add(CharsRef input, CharsRef output, boolean includeOrig, int count) {
+        scratchWord.copyChars(output);
+        final Entry entry = entry(Util.toUTF32(input, scratchInput));
+        entry.add(word(scratchWord.get()), count);
+        if (includeOrig) {
+            entry.origCount += count;
+        }
+    }
+
+    /** Adds the mappings of an entry of another builder * */
+    void add(IntsRef input, Entry other, BytesRefHash otherWords) {
+        final Entry entry = entry(input);
+        for (int i = 0; i < other.size; i++) {
+            entry.add(word(otherWords.get(other.ords[i], scratchBytes)), other.counts[i]);
+        }
+        entry.origCount += other.origCount;
+    }
+
+    /** Adds the mappings of an output of a map built by this class * */
+    void add(IntsRef input, BytesRef output, BytesRefHash outputWords) {
+        final Entry decoded = decode(output, outputWords);
+        final Entry entry = entry(input);
+        for (int i = 0; i < decoded.size; i++) {
+            entry.add(decoded.ords[i], decoded.counts[i]);
+        }
+        entry.origCount += decoded.origCount;
+    }
+
+    /**
+     * Reads an output of a map built by this class, with the ords of the words of this builder *
+     */
+    private Entry decode(BytesRef output, BytesRefHash outputWords) {
+        final Entry entry = new Entry();
+        reader.reset(output.bytes, output.offset, output.length);
+        final int count = reader.readVInt() >>> 1;
+        for (int i = 0; i < count; i++) {
+            // the outputs of an input are distinct, they get a slot each
+            entry.add(word(outputWords.get(reader.readVInt(), scratchBytes)), 0);
+        }
+        for (int i = 0; i < count; i++) {
+            entry.counts[i] = reader.readVInt();
+        }
+        entry.origCount = reader.readVInt();
+        return entry;
+    }
+
+    /** The entries built so far, by input * */
+    Map<IntsRef, Entry> entries() {
+        return entries;
+    }
+
+    BytesRefHash words() {
+        return words;
+    }
+
+    private Entry entry(IntsRef input) {
+        Entry entry = entries.get(input);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(IntsRef.deepCopyOf(input), entry);
+        }
+        return entry;
+    }
+
+    private int word(BytesRef word) {
+        final int ord = words.add(word);
+        return ord < 0 ? -ord - 1 : ord;
+    }
+
+    /**
+     * Compiles the entries into a synonym map
+     *
+     * @param tombstones whether to keep the entries without outputs, for a delta
+     */
+    SynonymMap build(boolean tombstones) throws IOException {
+        final Builder<BytesRef> builder =
+                new Builder<>(FST.INPUT_TYPE.BYTE4, ByteSequenceOutputs.getSingleton());
+        final IntsRef[] inputs = entries.keySet().toArray(new IntsRef[0]);
+        Arrays.sort(inputs);
+        int maxHorizontalContext = 0;
+        for (IntsRef input : inputs) {
+            final Entry entry = entries.get(input);
+            if (tombstones == false && entry.live() == 0) {
+                continue;
+            }
+            builder.add(input, encode(entry));
+            maxHorizontalContext = Math.max(maxHorizontalContext, wordCount(input));
+            for (int i = 0; i < entry.size; i++) {
+                if (entry.counts[i] > 0) {
+                    words.get(entry.ords[i], scratchBytes);
+                    maxHorizontalContext = Math.max(maxHorizontalContext, wordCount(scratchBytes));
+                }
+            }
+        }
+        return new SynonymMap(builder.finish(), words, maxHorizontalContext);
+    }
+
+    /** The outputs with a positive count, then their counts and the count of includeOrig * */
+    private BytesRef encode(Entry entry) throws IOException {
+        final int live = entry.live();
+        buffer = ArrayUtil.grow(buffer, 5 * (2 * live + 2));
+        writer.reset(buffer);
+        writer.writeVInt(live << 1 | (live > 0 && entry.origCount > 0 ? 0 : 1));
+        for (int i = 0; i < entry.size; i++) {
+            if (entry.counts[i] > 0) {
+                writer.writeVInt(entry.ords[i]);
+            }
+        }
+        for (int i = 0; i < entry.size; i++) {
+            if (entry.counts[i] > 0) {
+                writer.writeVInt(entry.counts[i]);
+            }
+        }
+        writer.writeVInt(Math.max(0, entry.origCount));
+        // the FST keeps the outputs it is given
+        return new BytesRef(ArrayUtil.copyOfSubArray(buffer, 0, writer.getPosition()));
+    }
+
+    /**
+     * Merges a delta into a map, both built by this class, in a single pass over their inputs in
+     * order instead of sorting them again. The outputs of the delta replace the ones of the map.
+     */
+    static SynonymMap merge(SynonymMap map, SynonymMap delta) throws IOException {
+        final CountedSynonymMapBuilder merged = new CountedSynonymMapBuilder();
+        final Builder<BytesRef> builder =
+                new Builder<>(FST.INPUT_TYPE.BYTE4, ByteSequenceOutputs.getSingleton());
+        final IntsRefFSTEnum<BytesRef> mapEntries = entries(map);
+        final IntsRefFSTEnum<BytesRef> deltaEntries = entries(delta);
+        IntsRefFSTEnum.InputOutput<BytesRef> fromMap = next(mapEntries);
+        IntsRefFSTEnum.InputOutput<BytesRef> fromDelta = next(deltaEntries);
+        while (fromMap != null || fromDelta != null) {
+            final int cmp =
+                    fromMap == null
+                            ? 1
+                            : fromDelta == null ? -1 : fromMap.input.compareTo(fromDelta.input);
+            if (cmp < 0) {
+                merged.copy(builder, fromMap, map.words);
+                fromMap = next(mapEntries);
+            } else {
+                merged.copy(builder, fromDelta, delta.words);
+                if (cmp == 0) {
+                    fromMap = next(mapEntries);
+                }
+                fromDelta = next(deltaEntries);
+            }
+        }
+        return new SynonymMap(
+                builder.finish(),
+                merged.words,
+                Math.max(map.maxHorizontalContext, delta.maxHorizontalContext));
+    }
+
+    /** Adds an output of a map to the FST, with the ords of the words of this builder * */
+    private void copy(
+            Builder<BytesRef> builder,
+            IntsRefFSTEnum.InputOutput<BytesRef> entry,
+            BytesRefHash outputWords)
+            throws IOException {
+        final Entry copy = decode(entry.output, outputWords);
+        // the tombstones of the delta are dropped
+        if (copy.live() > 0) {
+            builder.add(entry.input, encode(copy));
+        }
+    }
+
+    private static IntsRefFSTEnum<BytesRef> entries(SynonymMap map) {
+        return map.fst == null ? null : new IntsRefFSTEnum<>(map.fst);
+    }
+
+    private static IntsRefFSTEnum.InputOutput<BytesRef> next(IntsRefFSTEnum<BytesRef> entries)
+            throws IOException {
+        return entries == null ? null : entries.next();
+    }
+
+    /** The output of an input in a map, null if it has none * */
+    static BytesRef get(SynonymMap map, IntsRef input) throws IOException {
+        return map == null || map.fst == null ? null : Util.get(map.fst, input);
+    }
+
+    private static int wordCount(IntsRef input) {
+        int count = 1;
+        for (int i = input.offset; i < input.offset + input.length; i++) {
+            if (input.ints[i] == SynonymMap.WORD_SEPARATOR) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static int wordCount(BytesRef word) {
+        int count = 1;
+        for (int i = word.offset; i < word.offset + word.length; i++) {
+            if (word.bytes[i] == SynonymMap.WORD_SEPARATOR) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Outputs of an input with the number of mappings behind each of them * */
+    static final class Entry {
+        private int[] ords = new int[2];
+        private int[] counts = new int[2];
+        private int size;
+        private int origCount;
+
+        private void add(int ord, int count) {
+            for (int i = 0; i < size; i++) {
+                if (ords[i] == ord) {
+                    counts[i] += count;
+                    return;
+                }
+            }
+            if (size == ords.length) {
+                ords = ArrayUtil.grow(ords);
+                counts = ArrayUtil.grow(counts, ords.length);
+            }
+            ords[size] = ord;
+            counts[size] = count;
+            size++;
+        }
+
+        /** Whether no mapping is counted, as when added then taken out * */
+        boolean isEmpty() {
+            if (origCount != 0) {
+                return false;
+            }
+            for (int i = 0; i < size; i++) {
+                if (counts[i] != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /** Number of outputs still backed by a mapping * */
+        private int live() {
+            int live = 0;
+            for (int i = 0; i < size; i++) {
+                if (counts[i] > 0) {
+                    live++;
+                }
+            }
+            return live;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * Applies the current version of the synonyms of a {@link SynonymsHolder} with a {@link
+ * SynonymGraphFilter}. Token streams are reused by the analyzers so the version in use is checked
+ * whenever the stream is reset, a new version is therefore picked up by the next analyzed text.
+ *
+ * <p>When the holder has a {@link SynonymExpansionCache}, the input tokens of short streams are
+ * read ahead and the output of the synonym filter is replayed from the cache if the same sequence
+ * has been seen before with the same bounds. The streams which go over a bound are not cached.
+ *
+ * <p>The expansion of a stream can be bounded by the number of tokens at a position and by the
+ * number of paths through the token graph. Bounded streams are expanded in full ahead, and a stream
+ * which exceeds a bound gets its original tokens instead.
+ *
+ * <p>With the first token prefilter, the synonyms are applied by {@link OverlaySynonymGraphFilter}
+ * with the {@link SynonymFirstTokens} of their version, so that the tokens which cannot start a
+ * match go through without being looked up nor buffered.
+ *
+ * <p>With {@link SynonymFilterSamples}, one stream in every sampling interval is measured from its
+ * reset to its end. The other streams only check a flag.
+ */
+public final class IndexedSynonymGraphFilter extends TokenFilter {
+
+    private final SynonymsHolder holder;
+
+    /** Feeds the tokens of the input to the synonym filter * */
+    private final Input synonymInput;
+
+    private final CharTermAttribute termAtt;
+    private final PositionIncrementAttribute posIncAtt;
+    private final PositionLengthAttribute posLenAtt;
+    private final TypeAttribute typeAtt;
+    private final OffsetAttribute offsetAtt;
+
+    // identifies the version of the synonyms in use, its delta if loaded incrementally
+    private SynonymMap synonyms;
+
+    /** null when there are no synonyms * */
+    private TokenStream synonymFilter;
+
+    // null when the stream is not cached
+    private SynonymExpansionCache expansions;
+
+    // input tokens read ahead to look up the cache, replayed to the synonym filter on a miss
+    private final List<State> inputTokens = new ArrayList<>();
+    private int inputPosition;
+    // null if the input was not read to the end
+    private State inputEnd;
+
+    private String key;
+    private SynonymExpansionCache.Expansion cached;
+    private int cachedPosition;
+    private SynonymExpansionCache.Recorder recorder;
+
+    // -1 when not bounded
+    private final int maxExpansionsPerToken;
+    private final long maxGraphPaths;
+
+    // the tokens of a bounded stream expanded ahead, null until expanded
+    private List<State> outputTokens;
+    private int outputPosition;
+    private State outputEnd;
+
+    private final boolean prefilter;
+    // the first words of the inputs of the synonyms in use, null when not prefiltered
+    private SynonymFirstTokens firstTokens;
+
+    // null when the streams are not sampled
+    private final SynonymFilterSamples samples;
+    private int untilSample;
+    private boolean sampling;
+    private long sampleStart;
+    private long tokensIn;
+    private long tokensOut;
+    private long positionsIn;
+    private long positionsOut;
+    private long lookahead;
+
+    public IndexedSynonymGraphFilter(TokenStream input, SynonymsHolder holder) {
+        this(input, holder, -1, -1);
+    }
+
+    public IndexedSynonymGraphFilter(
+            TokenStream input,
+            SynonymsHolder holder,
+            int maxExpansionsPerToken,
+            long maxGraphPaths) {
+        this(input, holder, maxExpansionsPerToken, maxGraphPaths, null);
+    }
+
+    /**
+     * @param maxExpansionsPerToken most tokens at a position of the expanded stream, -1 for no
+     *     limit
+     * @param maxGraphPaths most paths through the token graph of the expanded stream, -1 for no
+     *     limit
+     * @param samples where to record the measures of the sampled streams, null for none
+     */
+    public IndexedSynonymGraphFilter(
+            TokenStream input,
+            SynonymsHolder holder,
+            int maxExpansionsPerToken,
+            long maxGraphPaths,
+            SynonymFilterSamples samples) {
+        this(input, holder, maxExpansionsPerToken, maxGraphPaths, samples, false);
+    }
+
+    /**
+     * @param prefilter whether the tokens which cannot start a match skip the synonym filter
+     */
+    public IndexedSynonymGraphFilter(
+            TokenStream input,
+            SynonymsHolder holder,
+            int maxExpansionsPerToken,
+            long maxGraphPaths,
+            SynonymFilterSamples samples,
+            boolean prefilter) {
+        super(input);
+        this.prefilter = prefilter;
+        this.holder = holder;
+        this.maxExpansionsPerToken = maxExpansionsPerToken;
+        this.maxGraphPaths = maxGraphPaths;
+        this.samples = samples;
+        this.untilSample = samples != null ? samples.interval() : 0;
+        this.synonymInput = new Input(input);
+        // the attributes of the synonym filter must be there before the stream gets consumed
+        this.termAtt = addAttribute(CharTermAttribute.class);
+        this.posIncAtt = addAttribute(PositionIncrementAttribute.class);
+        this.posLenAtt = addAttribute(PositionLengthAttribute.class);
+        this.typeAtt = addAttribute(TypeAttribute.class);
+        this.offsetAtt = addAttribute(OffsetAttribute.class);
+        update();
+    }
+
+    private void update() {
+        // the overlay is read first, it holds the base and the delta published together
+        final SynonymOverlay overlay = holder.overlay();
+        final SynonymMap base = overlay != null ? overlay.base() : holder.current();
+        final SynonymMap delta = overlay != null ? overlay.delta() : null;
+        // a version of the synonyms is told apart by its delta, if any
+        final SynonymMap latest = delta != null ? delta : base;
+        // published after the synonyms, only used with the version it was built for
+        final SynonymFirstTokens published = prefilter ? holder.firstTokens() : null;
+        final SynonymFirstTokens first =
+                published != null && published.synonyms() == latest ? published : null;
+        if (latest != synonyms || first != firstTokens) {
+            synonyms = latest;
+            firstTokens = first;
+            if (delta != null || (first != null && base.fst != null)) {
+                synonymFilter = new OverlaySynonymGraphFilter(synonymInput, base, delta, first);
+            } else {
+                synonymFilter =
+                        base.fst == null ? null : new SynonymGraphFilter(synonymInput, base, false);
+            }
+        }
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        final boolean more = next();
+        if (sampling && more) {
+            tokensOut++;
+            positionsOut += posIncAtt.getPositionIncrement();
+            lookahead = Math.max(lookahead, positionsIn - positionsOut);
+        }
+        return more;
+    }
+
+    private boolean next() throws IOException {
+        if (synonymFilter == null) {
+            return readInput();
+        }
+        if (expansions != null && key == null) {
+            lookup();
+        }
+        if (cached != null) {
+            if (cachedPosition == cached.size()) {
+                return false;
+            }
+            clearAttributes();
+            cached.restore(cachedPosition++, termAtt, posIncAtt, posLenAtt, offsetAtt, typeAtt);
+            return true;
+        }
+        final boolean more;
+        if (bounded()) {
+            if (outputTokens == null) {
+                expand();
+            }
+            more = outputPosition < outputTokens.size();
+            if (more) {
+                restoreState(outputTokens.get(outputPosition++));
+            }
+        } else {
+            more = synonymFilter.incrementToken();
+        }
+        if (recorder != null) {
+            if (more) {
+                recorder.add(termAtt, posIncAtt, posLenAtt, offsetAtt, typeAtt);
+            } else {
+                // only complete streams are cached
+                expansions.put(key, recorder.build(synonyms));
+                recorder = null;
+            }
+        }
+        return more;
+    }
+
+    private boolean bounded() {
+        return maxExpansionsPerToken >= 0 || maxGraphPaths >= 0;
+    }
+
+    /**
+     * Expands the whole stream ahead, or takes its original tokens if the expansion goes over a
+     * bound. The expansion stops as soon as it does.
+     */
+    private void expand() throws IOException {
+        // the original tokens are needed in full to fall back to them
+        if (inputEnd == null) {
+            while (readInput()) {
+                inputTokens.add(captureState());
+            }
+            input.end();
+            inputEnd = captureState();
+        }
+        outputTokens = new ArrayList<>();
+        final GraphBounds bounds = new GraphBounds(maxExpansionsPerToken, maxGraphPaths);
+        while (synonymFilter.incrementToken()) {
+            if (bounds.add(posIncAtt.getPositionIncrement(), posLenAtt.getPositionLength())
+                    == false) {
+                holder.expansionCapped();
+                // replaying the original tokens would not count the stream as capped
+                recorder = null;
+                outputTokens = inputTokens;
+                outputEnd = inputEnd;
+                return;
+            }
+            outputTokens.add(captureState());
+        }
+        synonymFilter.end();
+        outputEnd = captureState();
+    }
+
+    /** Reads the next token of the input, counting it when sampling * */
+    private boolean readInput() throws IOException {
+        final boolean more = input.incrementToken();
+        if (sampling && more) {
+            tokensIn++;
+            positionsIn += posIncAtt.getPositionIncrement();
+        }
+        return more;
+    }
+
+    /** Reads the input ahead and looks up its tokens in the cache * */
+    private void lookup() throws IOException {
+        // the bounds change the output, the filters with other bounds have entries of their own
+        final StringBuilder builder =
+                new StringBuilder()
+                        .append(maxExpansionsPerToken)
+                        .append(',')
+                        .append(maxGraphPaths)
+                        .append('\u0001');
+        while (readInput()) {
+            inputTokens.add(captureState());
+            if (inputTokens.size() > SynonymExpansionCache.MAX_TOKENS) {
+                // too long to be worth caching, the rest of the input is read as usual
+                key = "";
+                return;
+            }
+            SynonymExpansionCache.appendKey(
+                    builder, termAtt, posIncAtt, posLenAtt, offsetAtt, typeAtt);
+        }
+        input.end();
+        inputEnd = captureState();
+        key = builder.toString();
+        cached = expansions.get(key, synonyms);
+        if (cached == null) {
+            recorder = new SynonymExpansionCache.Recorder();
+        }
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        update();
+        if (synonymFilter != null) {
+            synonymFilter.reset();
+        }
+        inputTokens.clear();
+        inputPosition = 0;
+        inputEnd = null;
+        key = null;
+        cached = null;
+        cachedPosition = 0;
+        recorder = null;
+        outputTokens = null;
+        outputPosition = 0;
+        outputEnd = null;
+        sampling = samples != null && --untilSample == 0;
+        if (sampling) {
+            untilSample = samples.interval();
+            tokensIn = 0;
+            tokensOut = 0;
+            positionsIn = 0;
+            positionsOut = 0;
+            lookahead = 0;
+            sampleStart = System.nanoTime();
+        }
+        // checked every time as the consumers can add attributes of their own
+        final SynonymExpansionCache cache = holder.expansions();
+        expansions =
+                cache != null && synonymFilter != null && SynonymExpansionCache.supports(this)
+                        ? cache
+                        : null;
+    }
+
+    @Override
+    public void end() throws IOException {
+        if (synonymFilter == null) {
+            super.end();
+        } else if (cached != null) {
+            restoreState(inputEnd);
+        } else if (bounded()) {
+            if (outputTokens == null) {
+                expand();
+            }
+            restoreState(outputEnd);
+        } else {
+            synonymFilter.end();
+        }
+        if (sampling) {
+            sampling = false;
+            samples.record(tokensIn, tokensOut, lookahead, System.nanoTime() - sampleStart);
+        }
+    }
+
+    /** Counts the tokens at each position and the paths through a token graph as it is read * */
+    static final class GraphBounds {
+        private final int maxTokens;
+        private final long maxPaths;
+
+        // number of paths from the start to each position
+        private long[] paths = new long[8];
+        private int position = -1;
+        private int tokens;
+
+        /**
+         * @param maxTokens -1 for no limit, same for maxPaths *
+         */
+        GraphBounds(int maxTokens, long maxPaths) {
+            this.maxTokens = maxTokens;
+            this.maxPaths = maxPaths;
+        }
+
+        /** Adds the next token, returns false if it goes over a bound * */
+        boolean add(int positionIncrement, int positionLength) {
+            if (position < 0) {
+                position = Math.max(0, positionIncrement - 1);
+                paths = ArrayUtil.grow(paths, position + 1);
+                paths[position] = 1;
+                tokens = 0;
+            } else if (positionIncrement > 0) {
+                position += positionIncrement;
+                paths = ArrayUtil.grow(paths, position + 1);
+                if (paths[position] == 0) {
+                    // a hole left by a removed token, the paths carry on over it
+                    for (int i = position - 1; i >= 0 && paths[position] == 0; i--) {
+                        paths[position] = paths[i];
+                    }
+                }
+                tokens = 0;
+            }
+            tokens++;
+            final int end = position + Math.max(1, positionLength);
+            paths = ArrayUtil.grow(paths, end + 1);
+            // saturates rather than overflows
+            paths[end] = Math.min(Long.MAX_VALUE / 2, paths[end] + paths[position]);
+            return (maxTokens < 0 || tokens <= maxTokens)
+                    && (maxPaths < 0 || paths[end] <= maxPaths);
+        }
+    }
+
+    /**
+     * Shares the attributes of the input and passes its tokens on, after the ones read ahead. The
+     * input is reset and closed by the enclosing filter.
+     */
+    private final class Input extends TokenStream {
+        private final TokenStream input;
+
+        private Input(TokenStream input) {
+            super(input);
+            this.input = input;
+        }
+
+        @Override
+        public boolean incrementToken() throws IOException {
+            if (inputPosition < inputTokens.size()) {
+                restoreState(inputTokens.get(inputPosition++));
+                return true;
+            }
+            if (inputEnd != null) {
+                return false;
+            }
+            return readInput();
+        }
+
+        @Override
+        public void end() throws IOException {
+            if (inputEnd != null) {
+                restoreState(inputEnd);
+            } else {
+                input.end();
+            }
+        }
+
+        @Override
+        public void reset() {}
+
+        @Override
+        public void close() {}
+    }
+}
@@ -13,54 +13,130 @@
  */
 package io.telicent.elasticsearch;
 
-import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch.core.SearchResponse;
-import co.elastic.clients.elasticsearch.core.search.Hit;
-import co.elastic.clients.json.jackson.JacksonJsonpMapper;
-import co.elastic.clients.transport.ElasticsearchTransport;
-import co.elastic.clients.transport.rest_client.RestClientTransport;
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import java.io.IOException;
-import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map.Entry;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.CharsRefBuilder;
 import org.elasticsearch.ElasticsearchException;
-import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestClientBuilder;
-import org.elasticsearch.client.RestClientBuilder.HttpClientConfigCallback;
+import org.elasticsearch.action.ActionFuture;
+import org.elasticsearch.action.admin.indices.refresh.RefreshResponse;
+import org.elasticsearch.action.admin.indices.stats.IndexStats;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsResponse;
+import org.elasticsearch.action.admin.indices.stats.ShardStats;
+import org.elasticsearch.action.search.ClosePointInTimeAction;
+import org.elasticsearch.action.search.ClosePointInTimeRequest;
+import org.elasticsearch.action.search.OpenPointInTimeAction;
+import org.elasticsearch.action.search.OpenPointInTimeRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.LoggingDeprecationHandler;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.query.BoolQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.index.seqno.SeqNoStats;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.builder.PointInTimeBuilder;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.XContentParser;
+import org.elasticsearch.xcontent.XContentType;
 
 /** Generates a synonym map from the content of an index * */
-public class IndexedSynonymParser extends SolrSynonymParser {
+public class IndexedSynonymParser extends SolrRuleParser {
 
     private final boolean lenient;
+    private final boolean expand;
 
+    private final Client client;
     private final String index;
-    private final String host;
-    private final int port;
 
     private final String username;
     private final String password;
 
+    private final int pageSize;
+    private final int slices;
+    private final List<String> fields;
+    private final String tagField;
+    private final List<String> tags;
+
+    private final Supplier<Analyzer> analyzers;
+    private final Executor analysisExecutor;
+    private final int parallelism;
+    private final SynonymMemoryBudget budget;
+    private final SynonymTermCache termCache;
+    private final String fingerprint;
+
+    // partitions being analyzed, in the order of their rules
+    private final Deque<Partition> partitions = new ArrayDeque<>();
+    private List<String> pendingRules = new ArrayList<>();
+
+    private final SynonymBuildStats stats = new SynonymBuildStats();
+    // whether the rule being parsed had a term ignored as it could not be analyzed
+    private boolean ruleSkipped;
+    // estimated bytes not yet added to the budget
+    private long unaccounted;
+
+    // when loading incrementally, gets the mappings instead of the builder
+    private CountedSynonymMapBuilder counted;
+    // number of times the mappings are added to it, -1 to take them out
+    private int count = 1;
+    // the documents loaded, when loading incrementally
+    private SynonymSnapshot snapshot;
+
+    public static final int DEFAULT_PAGE_SIZE = 1000;
+
+    /** Number of rules analyzed together by a thread of the analysis pool * */
+    static final int PARTITION_SIZE = 1000;
+
+    /** Estimated bytes held by the builder for a mapping, besides its characters * */
+    static final int MAPPING_BYTES = 64;
+
+    /** The estimate is added to the budget by chunks, not on every mapping * */
+    private static final long ACCOUNTING_CHUNK = 1024 * 1024;
+
+    private static final TimeValue KEEP_ALIVE = TimeValue.timeValueMinutes(1);
+
+    private static final String MISSING_INDEX_TOKEN = "missing";
+
     private static final Logger logger = LogManager.getLogger(IndexedSynonymParser.class);
 
     public IndexedSynonymParser(
-            String host,
-            int port,
+            Client client,
             String username,
             String password,
             String index,
@@ -68,13 +144,121 @@ public class IndexedSynonymParser extends SolrSynonymParser {
             boolean dedup,
             boolean lenient,
             Analyzer analyzer) {
+        this(
+                client,
+                username,
+                password,
+                index,
+                expand,
+                dedup,
+                lenient,
+                analyzer,
+                DEFAULT_PAGE_SIZE,
+                1,
+                Collections.emptyList(),
+                null,
+                Collections.emptyList(),
+                null,
+                null,
+                1,
+                null);
+    }
+
+    /**
+     * @param fields the fields to read the rules from, all of them if empty
+     * @param tagField field of the documents holding their tags
+     * @param tags only the documents with one of these tags are read, all of them if empty
+     * @param analyzers creates a new analyzer identical to the main one for each partition of the
+     *     rules analyzed in parallel, the analyzer is closed once done with
+     * @param analysisExecutor runs the analysis of the partitions, null to analyze the rules on the
+     *     calling thread
+     * @param parallelism how many partitions can be analyzed at the same time, 1 to analyze the
+     *     rules on the calling thread
+     * @param budget accounts for the memory of the mappings and of the compiled map, null for no
+     *     limit
+     */
+    public IndexedSynonymParser(
+            Client client,
+            String username,
+            String password,
+            String index,
+            boolean expand,
+            boolean dedup,
+            boolean lenient,
+            Analyzer analyzer,
+            int pageSize,
+            int slices,
+            List<String> fields,
+            String tagField,
+            List<String> tags,
+            Supplier<Analyzer> analyzers,
+            Executor analysisExecutor,
+            int parallelism,
+            SynonymMemoryBudget budget) {
+        this(
+                client,
+                username,
+                password,
+                index,
+                expand,
+                dedup,
+                lenient,
+                analyzer,
+                pageSize,
+                slices,
+                fields,
+                tagField,
+                tags,
+                analyzers,
+                analysisExecutor,
+                parallelism,
+                budget,
+                null,
+                null);
+    }
+
+    /**
+     * @param termCache the terms of the rules already analyzed by the same chain, null for none
+     * @param fingerprint fingerprint of the analysis chain, identifies its terms in the cache
+     */
+    public IndexedSynonymParser(
+            Client client,
+            String username,
+            String password,
+            String index,
+            boolean expand,
+            boolean dedup,
+            boolean lenient,
+            Analyzer analyzer,
+            int pageSize,
+            int slices,
+            List<String> fields,
+            String tagField,
+            List<String> tags,
+            Supplier<Analyzer> analyzers,
+            Executor analysisExecutor,
+            int parallelism,
+            SynonymMemoryBudget budget,
+            SynonymTermCache termCache,
+            String fingerprint) {
         super(dedup, expand, analyzer);
         this.lenient = lenient;
+        this.expand = expand;
+        this.client = client;
         this.index = index;
-        this.host = host;
-        this.port = port;
         this.username = username;
         this.password = password;
+        this.pageSize = pageSize;
+        this.slices = Math.max(1, slices);
+        this.fields = fields;
+        this.tagField = tagField;
+        this.tags = tags;
+        this.analyzers = analyzers;
+        this.analysisExecutor = analysisExecutor;
+        this.parallelism = analysisExecutor == null ? 1 : Math.max(1, parallelism);
+        this.budget = budget;
+        this.termCache = fingerprint == null ? null : termCache;
+        this.fingerprint = fingerprint;
     }
 
     @Override
@@ -92,93 +276,921 @@ public class IndexedSynonymParser extends SolrSynonymParser {
         // quietly ignore it. For more details on the control-flow see
         // SolrSynonymParser::addInternal.
         if (lenient == false || (input.length > 0 && output.length > 0)) {
-            super.add(input, output, includeOrig);
+            if (counted != null) {
+                counted.add(input, output, includeOrig, count);
+            } else {
+                super.add(input, output, includeOrig);
+            }
+            estimate(MAPPING_BYTES + Character.BYTES * (input.length + output.length));
+        }
+    }
+
+    private void estimate(long bytes) {
+        if (budget != null) {
+            unaccounted += bytes;
+            if (unaccounted >= ACCOUNTING_CHUNK) {
+                account();
+            }
         }
     }
 
+    private void account() {
+        budget.add(unaccounted);
+        unaccounted = 0;
+    }
+
     @Override
     public CharsRef analyze(String text, CharsRefBuilder reuse) throws IOException {
         try {
+            if (termCache != null) {
+                return termCache.analyze(fingerprint, text, reuse, super::analyze, stats);
+            }
             return super.analyze(text, reuse);
         } catch (IllegalArgumentException ex) {
-            if (lenient) {
-                logger.info("Synonym rule for [" + text + "] was ignored");
-                return new CharsRef("");
-            } else {
-                throw ex;
-            }
+            ruleSkipped = true;
+            return onAnalysisFailure(text, ex);
         }
     }
 
-    public void parse() throws IOException, ParseException {
-        // create a one-off client
-        final RestClientBuilder builder = RestClient.builder(new HttpHost(this.host, this.port));
+    @Override
+    public SynonymMap build() throws IOException {
+        final long start = System.nanoTime();
+        if (budget != null) {
+            account();
+        }
+        final SynonymMap map = counted != null ? counted.build(false) : super.build();
+        if (budget != null) {
+            final long snapshotBytes = snapshot == null ? 0 : snapshot.ramBytesUsed();
+            budget.set(SynonymMemoryBudget.ramBytesUsed(map) + snapshotBytes);
+        }
+        stats.buildNanos += System.nanoTime() - start;
+        return map;
+    }
+
+    /** Measures of the loading and compilation of the synonyms by this parser * */
+    public SynonymBuildStats stats() {
+        return stats;
+    }
+
+    private CharsRef onAnalysisFailure(String text, IllegalArgumentException ex) {
+        if (lenient) {
+            logger.info("Synonym rule for [" + text + "] was ignored");
+            return new CharsRef("");
+        } else {
+            throw ex;
+        }
+    }
 
+    /**
+     * Runs the requests of the parser in a context of their own, authenticated with the credentials
+     * of the filter if any, so that they do not inherit the headers of the thread which triggered
+     * the loading of the synonyms. The context must be restored once done.
+     */
+    ThreadContext.StoredContext stashContext() {
+        final ThreadContext threadContext = client.threadPool().getThreadContext();
+        final ThreadContext.StoredContext stored = threadContext.stashContext();
         // needs a least a password
         if (password != null && !password.isBlank()) {
-            BasicCredentialsProvider credsProv = new BasicCredentialsProvider();
-            credsProv.setCredentials(
-                    AuthScope.ANY, new UsernamePasswordCredentials(this.username, this.password));
-
-            builder.setHttpClientConfigCallback(
-                    new HttpClientConfigCallback() {
-                        @Override
-                        public HttpAsyncClientBuilder customizeHttpClient(
-                                HttpAsyncClientBuilder httpClientBuilder) {
-                            return httpClientBuilder.setDefaultCredentialsProvider(credsProv);
-                        }
-                    });
+            final String credentials = username + ":" + password;
+            threadContext.putHeader(
+                    "Authorization",
+                    "Basic "
+                            + Base64.getEncoder()
+                                    .encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
         }
+        return stored;
+    }
 
-        // Create the transport with a Jackson mapper
-        final ElasticsearchTransport transport =
-                new RestClientTransport(builder.build(), new JacksonJsonpMapper());
+    private boolean indexExists() {
+        return client.admin().indices().prepareExists(index).get().isExists();
+    }
+
+    /**
+     * Returns a cheap token describing the content of the synonym index. The token changes whenever
+     * a document is added, updated or deleted and when the index is recreated, so that an unchanged
+     * token means that the synonyms do not need loading again. It covers all the documents, the
+     * changes to the ones outside of the tags selected change it too.
+     *
+     * @return the token or null if it could not be determined
+     */
+    public String changeToken() {
+        try (ThreadContext.StoredContext ignored = stashContext()) {
+            if (!indexExists()) {
+                return MISSING_INDEX_TOKEN;
+            }
 
-        // And create the API client
-        final ElasticsearchClient client = new ElasticsearchClient(transport);
+            final StringBuilder token = new StringBuilder();
 
-        final boolean indexExists = client.indices().exists(e -> e.index(index)).value();
-        if (!indexExists) {
-            // just leave a message to indicate that the index does not exist
-            // but don't crash everything just for that
-            logger.error("Could not find index for synonyms {}", index);
-            client.shutdown();
-            return;
+            // the uuids tell apart an index which was recreated with similar content
+            final IndicesStatsResponse indexStats = indexStats();
+            if (indexStats.getFailedShards() > 0) {
+                throw new ElasticsearchException(
+                        "Could not read the stats of {} of the shards of the synonym index {}",
+                        indexStats.getFailedShards(),
+                        index);
+            }
+            token.append(indices(indexStats));
+
+            // the sequence numbers are per shard, a change to a shard moves its local checkpoint
+            // and a new primary gets a new term, the operations up to the checkpoint are all
+            // visible to the loads as they refresh the index first
+            final Metadata metadata =
+                    client.admin()
+                            .cluster()
+                            .prepareState()
+                            .clear()
+                            .setMetadata(true)
+                            .setIndices(index)
+                            .get()
+                            .getState()
+                            .metadata();
+            final List<ShardStats> primaries = new ArrayList<>();
+            for (ShardStats shard : indexStats.getShards()) {
+                if (shard.getShardRouting().primary()) {
+                    primaries.add(shard);
+                }
+            }
+            primaries.sort(
+                    Comparator.comparing(
+                                    (ShardStats shard) -> shard.getShardRouting().getIndexName())
+                            .thenComparingInt(shard -> shard.getShardRouting().id()));
+            for (ShardStats shard : primaries) {
+                final ShardRouting routing = shard.getShardRouting();
+                final IndexMetadata indexMetadata = metadata.index(routing.index());
+                final SeqNoStats seqNoStats = shard.getSeqNoStats();
+                token.append(routing.id())
+                        .append(':')
+                        .append(
+                                indexMetadata == null
+                                        ? -1
+                                        : indexMetadata.primaryTerm(routing.id()))
+                        .append(':')
+                        .append(seqNoStats == null ? -1 : seqNoStats.getLocalCheckpoint())
+                        .append(':')
+                        .append(shard.getStats().getDocs().getCount())
+                        .append(';');
+            }
+
+            return token.toString();
+        } catch (RuntimeException e) {
+            logger.warn("Could not get the change token for the synonyms in {}", index, e);
+            return null;
+        }
+    }
+
+    private IndicesStatsResponse indexStats() {
+        return client.admin().indices().prepareStats(index).clear().setDocs(true).get();
+    }
+
+    /** Names and uuids of the synonym indices * */
+    private static String indices(IndicesStatsResponse response) {
+        final StringBuilder indices = new StringBuilder();
+        for (IndexStats indexStats : new TreeMap<>(response.getIndices()).values()) {
+            indices.append(indexStats.getIndex())
+                    .append('/')
+                    .append(indexStats.getUuid())
+                    .append(':');
+        }
+        return indices.toString();
+    }
+
+    /**
+     * The lowest of the local checkpoints of the primary shards, the operations up to it are all in
+     * the index and visible after a refresh, a document changed from now on gets a higher sequence
+     * number. Documents with a higher one may also be unchanged, as the sequence numbers are per
+     * shard.
+     */
+    private static long seqNoThreshold(IndicesStatsResponse response) {
+        long threshold = Long.MAX_VALUE;
+        for (ShardStats shard : response.getShards()) {
+            final SeqNoStats seqNoStats = shard.getSeqNoStats();
+            if (shard.getShardRouting().primary() && seqNoStats != null) {
+                threshold = Math.min(threshold, seqNoStats.getLocalCheckpoint());
+            }
+        }
+        return threshold == Long.MAX_VALUE ? -1 : threshold;
+    }
+
+    /**
+     * Parses the rules held in documents obtained by other means than reading the synonym index,
+     * for instance files with the same content. The client is not used and can be null.
+     *
+     * @param documents the sources of the documents, in the order they would be read in
+     * @return the number of rules found
+     */
+    public int parse(Iterable<Map<String, Object>> documents) throws IOException, ParseException {
+        final long start = System.nanoTime();
+        int synonymsLoaded = 0;
+        for (Map<String, Object> source : documents) {
+            // filtered the same way as the documents read from the index
+            if (matches(source)) {
+                synonymsLoaded +=
+                        parseSource(XContentMapValues.filter(source, includes(), excludes()));
+            }
+        }
+        mergePartitions();
+        stats.analyzeNanos += System.nanoTime() - start;
+        stats.rulesLoaded += synonymsLoaded;
+        return synonymsLoaded;
+    }
+
+    /**
+     * Parses the sources of documents as returned by the synonym index, they are expected to be
+     * filtered already. Used to measure the streaming of the rules.
+     */
+    int parseSources(Iterable<BytesReference> sources) throws IOException, ParseException {
+        final long start = System.nanoTime();
+        int synonymsLoaded = 0;
+        for (BytesReference source : sources) {
+            synonymsLoaded += parseSource(source);
+        }
+        mergePartitions();
+        stats.analyzeNanos += System.nanoTime() - start;
+        stats.rulesLoaded += synonymsLoaded;
+        return synonymsLoaded;
+    }
+
+    public void parse() throws IOException, ParseException {
+        try (ThreadContext.StoredContext ignored = stashContext()) {
+            if (!indexExists()) {
+                // just leave a message to indicate that the index does not exist
+                // but don't crash everything just for that
+                logger.error("Could not find index for synonyms {}", index);
+                return;
+            }
+
+            // walk the whole index with a point in time so that the pages
+            // are consistent with each other even if the index gets modified
+            // a failure to read it fails the load, a partial map must not be built
+            // the changes counted in the change token read before are made visible first
+            refresh();
+            final String pitId = openPointInTime();
+            try {
+                final int synonymsLoaded = loadPages(pitId);
+
+                logger.info("{} synonyms loaded from index {}", synonymsLoaded, index);
+            } finally {
+                closePointInTime(pitId);
+            }
+        }
+    }
+
+    private String openPointInTime() {
+        return client.execute(
+                        OpenPointInTimeAction.INSTANCE,
+                        new OpenPointInTimeRequest(index).keepAlive(KEEP_ALIVE))
+                .actionGet()
+                .getPointInTimeId();
+    }
+
+    /**
+     * Makes the operations counted in the stats read before visible to the point in time opened
+     * next, they would otherwise be missing from the synonyms loaded for them
+     */
+    private void refresh() {
+        final RefreshResponse response = client.admin().indices().prepareRefresh(index).get();
+        if (response.getFailedShards() > 0) {
+            throw new ElasticsearchException(
+                    "Could not refresh {} of the shards of the synonym index {}",
+                    response.getFailedShards(),
+                    index);
         }
+    }
 
-        // get all the documents from the index
-        // assuming there are only a handful of documents
+    private void closePointInTime(String pitId) {
         try {
-            int synonymsLoaded = 0;
-
-            SearchResponse<ObjectNode> response =
-                    client.search(s -> s.index(index), ObjectNode.class);
-
-            List<Hit<ObjectNode>> hits = response.hits().hits();
-            for (Hit<ObjectNode> hit : hits) {
-                // get the data from the source field
-                Iterator<Entry<String, JsonNode>> fieldsIter = hit.source().fields();
-                while (fieldsIter.hasNext()) {
-                    Entry<String, JsonNode> node = fieldsIter.next();
-                    if (node.getValue().isArray()) {
-                        Iterator<JsonNode> iter = ((ArrayNode) node.getValue()).iterator();
-                        while (iter.hasNext()) {
-                            super.parse(new StringReader(iter.next().asText()));
-                            synonymsLoaded++;
+            client.execute(ClosePointInTimeAction.INSTANCE, new ClosePointInTimeRequest(pitId))
+                    .actionGet();
+        } catch (ElasticsearchException e) {
+            logger.warn("Could not close point in time for index {}", index, e);
+        }
+    }
+
+    /**
+     * Loads all the documents like {@link #parse()} into the base of an overlay, keeping a copy of
+     * their sources so that the synonyms can then be updated with {@link #parseChanges}.
+     *
+     * @param token the change token of the synonym index, kept with the base
+     * @param compactionThreshold number of changed inputs above which the delta is merged into the
+     *     base
+     */
+    public SynonymOverlay parseOverlay(String token, int compactionThreshold)
+            throws IOException, ParseException {
+        counted = new CountedSynonymMapBuilder();
+        try (ThreadContext.StoredContext ignored = stashContext()) {
+            if (!indexExists()) {
+                logger.error("Could not find index for synonyms {}", index);
+                snapshot = new SynonymSnapshot(MISSING_INDEX_TOKEN, -1);
+            } else {
+                // taken before the point in time, the changes made after it are above
+                final IndicesStatsResponse indexStats = indexStats();
+                snapshot = new SynonymSnapshot(indices(indexStats), seqNoThreshold(indexStats));
+                refresh();
+                final String pitId = openPointInTime();
+                try {
+                    final int synonymsLoaded = loadPages(pitId);
+                    logger.info("{} synonyms loaded from index {}", synonymsLoaded, index);
+                } finally {
+                    closePointInTime(pitId);
+                }
+            }
+        }
+        return new SynonymOverlay(build(), null, 0, snapshot, token, compactionThreshold);
+    }
+
+    /**
+     * Updates a version of the synonyms loaded with {@link #parseOverlay} with the documents added,
+     * updated or deleted since. Only these documents are fetched and analyzed, the mappings of
+     * their previous versions are taken out of the synonyms and the ones of their new versions put
+     * in. All the documents are loaded again when the synonym index was recreated or when the
+     * changes could not be read in full.
+     *
+     * @param previous the version to update, its snapshot of the documents is updated in place
+     */
+    public SynonymOverlay parseChanges(
+            SynonymOverlay previous, String token, int compactionThreshold)
+            throws IOException, ParseException {
+        snapshot = previous.snapshot();
+        final Map<String, SynonymSnapshot.Document> changed = new LinkedHashMap<>();
+        final List<String> deleted = new ArrayList<>();
+        final long seqNoThreshold;
+        try (ThreadContext.StoredContext ignored = stashContext()) {
+            final boolean exists = indexExists();
+            final IndicesStatsResponse indexStats = exists ? indexStats() : null;
+            final String indices = exists ? indices(indexStats) : MISSING_INDEX_TOKEN;
+            if (indices.equals(snapshot.indices()) == false) {
+                logger.info("Synonym index {} was recreated, loading all the synonyms", index);
+                return parseOverlay(token, compactionThreshold);
+            }
+            if (exists == false) {
+                return previous;
+            }
+            seqNoThreshold = seqNoThreshold(indexStats);
+
+            final long fetchStart = System.nanoTime();
+            refresh();
+            final String pitId = openPointInTime();
+            boolean complete = false;
+            try {
+                // the documents in the snapshot can be above its threshold, if on another shard
+                final int[] added = new int[1];
+                scan(
+                        pitId,
+                        changesQuery(snapshot.seqNoThreshold()),
+                        true,
+                        hit -> {
+                            final String key = key(hit);
+                            final SynonymSnapshot.Document known = snapshot.get(key);
+                            if (known == null || known.seqNo != hit.getSeqNo()) {
+                                changed.put(
+                                        key,
+                                        new SynonymSnapshot.Document(hit.getSeqNo(), source(hit)));
+                                if (known == null) {
+                                    added[0]++;
+                                }
+                            }
+                        });
+                // the deletions, and the documents which lost their tags, only show in the count
+                if (count(pitId) < snapshot.size() + added[0]) {
+                    final Set<String> present = new HashSet<>();
+                    scan(pitId, query(), false, hit -> present.add(key(hit)));
+                    for (String key : snapshot.keys()) {
+                        if (present.contains(key) == false) {
+                            deleted.add(key);
                         }
-                    } else {
-                        super.parse(new StringReader(node.getValue().asText()));
+                    }
+                }
+                complete = true;
+            } catch (ElasticsearchException e) {
+                logger.warn("Could not read the changes in {}, loading all the synonyms", index, e);
+            } finally {
+                closePointInTime(pitId);
+            }
+            stats.fetchNanos += System.nanoTime() - fetchStart;
+            // some changes could be missing, the delta cannot be trusted
+            if (complete == false) {
+                return parseOverlay(token, compactionThreshold);
+            }
+        }
+
+        final long analyzeStart = System.nanoTime();
+        counted = new CountedSynonymMapBuilder();
+        count = -1;
+        for (String key : changed.keySet()) {
+            final SynonymSnapshot.Document document = snapshot.get(key);
+            if (document != null) {
+                parseSource(document.source);
+            }
+        }
+        for (String key : deleted) {
+            parseSource(snapshot.get(key).source);
+        }
+        mergePartitions();
+        count = 1;
+        int synonymsLoaded = 0;
+        for (SynonymSnapshot.Document document : changed.values()) {
+            synonymsLoaded += parseSource(document.source);
+        }
+        mergePartitions();
+        stats.analyzeNanos += System.nanoTime() - analyzeStart;
+        stats.rulesLoaded += synonymsLoaded;
+
+        final long buildStart = System.nanoTime();
+        if (budget != null) {
+            account();
+        }
+        final SynonymOverlay next = previous.update(counted, compactionThreshold);
+        if (budget != null && next.delta() != null) {
+            budget.set(SynonymMemoryBudget.ramBytesUsed(next.delta()));
+        }
+        stats.buildNanos += System.nanoTime() - buildStart;
+        stats.source = "delta";
+
+        snapshot.update(changed, deleted, seqNoThreshold);
+        logger.info(
+                "{} documents changed and {} deleted in index {}, {} inputs in the delta",
+                changed.size(),
+                deleted.size(),
+                index,
+                next.deltaSize());
+        return next;
+    }
+
+    /** The documents with a sequence number above the threshold * */
+    private QueryBuilder changesQuery(long seqNoThreshold) {
+        final BoolQueryBuilder query =
+                QueryBuilders.boolQuery()
+                        .filter(QueryBuilders.rangeQuery("_seq_no").gt(seqNoThreshold));
+        if (tags.isEmpty() == false) {
+            query.filter(QueryBuilders.termsQuery(tagField, tags));
+        }
+        return query;
+    }
+
+    /** Number of documents read from the index * */
+    private long count(String pitId) {
+        final SearchSourceBuilder source =
+                new SearchSourceBuilder()
+                        .pointInTimeBuilder(new PointInTimeBuilder(pitId).setKeepAlive(KEEP_ALIVE))
+                        .size(0)
+                        .trackTotalHits(true);
+        if (query() != null) {
+            source.query(query());
+        }
+        return checkShards(client.search(searchRequest(source)).actionGet())
+                .getHits()
+                .getTotalHits()
+                .value;
+    }
+
+    /** Pages through the documents matching a query, one page after the other * */
+    private void scan(
+            String pitId, QueryBuilder query, boolean withSource, Consumer<SearchHit> consumer) {
+        Object[] searchAfter = null;
+        while (true) {
+            final SearchSourceBuilder source = page(pitId, query, searchAfter);
+            if (withSource == false) {
+                source.fetchSource(false);
+            }
+            final SearchHit[] hits =
+                    checkShards(client.search(searchRequest(source)).actionGet())
+                            .getHits()
+                            .getHits();
+            for (SearchHit hit : hits) {
+                consumer.accept(hit);
+            }
+            if (hits.length < pageSize) {
+                return;
+            }
+            searchAfter = hits[hits.length - 1].getSortValues();
+        }
+    }
+
+    /** Identifies a document of the snapshot * */
+    private static String key(SearchHit hit) {
+        return hit.getIndex() + "/" + hit.getId();
+    }
+
+    private static BytesReference source(SearchHit hit) {
+        return hit.getSourceRef() == null ? BytesArray.EMPTY : hit.getSourceRef();
+    }
+
+    /**
+     * Pages through the index with search_after, one cursor per slice. The next page of a slice is
+     * requested before the current one is parsed so that fetching and parsing overlap, while only
+     * one page per slice is ever held in memory.
+     */
+    private int loadPages(String pitId) throws IOException, ParseException {
+        final Deque<Slice> slices = new ArrayDeque<>(this.slices);
+        for (int i = 0; i < this.slices; i++) {
+            final Slice slice = new Slice(i);
+            slice.pending = fetchPage(pitId, slice, null);
+            slices.add(slice);
+        }
+
+        int synonymsLoaded = 0;
+
+        while (!slices.isEmpty()) {
+            final Slice slice = slices.poll();
+            final long fetchStart = System.nanoTime();
+            final SearchHit[] hits = checkShards(slice.pending.actionGet()).getHits().getHits();
+            stats.fetchNanos += System.nanoTime() - fetchStart;
+
+            // a full page means there could be more, ask for it straight away
+            if (hits.length == pageSize) {
+                slice.pending = fetchPage(pitId, slice, hits[hits.length - 1].getSortValues());
+                slices.add(slice);
+            }
+
+            final long analyzeStart = System.nanoTime();
+            for (SearchHit hit : hits) {
+                if (snapshot != null) {
+                    snapshot.put(key(hit), hit.getSeqNo(), source(hit));
+                    estimate(source(hit).length());
+                }
+                synonymsLoaded += parseSource(hit.getSourceRef());
+            }
+            stats.analyzeNanos += System.nanoTime() - analyzeStart;
+        }
+        final long analyzeStart = System.nanoTime();
+        mergePartitions();
+        stats.analyzeNanos += System.nanoTime() - analyzeStart;
+        stats.rulesLoaded += synonymsLoaded;
+
+        return synonymsLoaded;
+    }
+
+    /** Selects the documents with one of the tags, null to read all of them * */
+    private QueryBuilder query() {
+        if (tags.isEmpty()) {
+            return null;
+        }
+        return QueryBuilders.boolQuery().filter(QueryBuilders.termsQuery(tagField, tags));
+    }
+
+    private String[] includes() {
+        return fields.isEmpty() ? null : fields.toArray(new String[0]);
+    }
+
+    /** The tags are not rules * */
+    private String[] excludes() {
+        return tags.isEmpty() ? null : new String[] {tagField};
+    }
+
+    /** Whether a document which was not read from the index would have been selected * */
+    private boolean matches(Map<String, Object> source) {
+        if (tags.isEmpty()) {
+            return true;
+        }
+        final Object value = XContentMapValues.extractValue(tagField, source);
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                if (tags.contains(asText(item))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return value != null && tags.contains(asText(value));
+    }
+
+    private ActionFuture<SearchResponse> fetchPage(
+            String pitId, Slice slice, Object[] searchAfter) {
+        final SearchSourceBuilder source = page(pitId, query(), searchAfter);
+        if (this.slices > 1) {
+            source.slice(new SliceBuilder(slice.id, this.slices));
+        }
+        return client.search(searchRequest(source));
+    }
+
+    /** Shards which fail must fail the search rather than leave out their synonyms * */
+    private static SearchRequest searchRequest(SearchSourceBuilder source) {
+        return new SearchRequest().source(source).allowPartialSearchResults(false);
+    }
+
+    /**
+     * Fails on a response which misses the documents of some shards, the synonyms built from it
+     * would silently lack some rules
+     */
+    private SearchResponse checkShards(SearchResponse response) {
+        final ShardSearchFailure[] failures = response.getShardFailures();
+        if (response.getFailedShards() > 0 || failures.length > 0) {
+            throw new ElasticsearchException(
+                    "Could not read {} of the shards of the synonym index {}",
+                    failures.length > 0 ? failures[0].getCause() : null,
+                    Math.max(response.getFailedShards(), failures.length),
+                    index);
+        }
+        return response;
+    }
+
+    private SearchSourceBuilder page(String pitId, QueryBuilder query, Object[] searchAfter) {
+        final SearchSourceBuilder source =
+                new SearchSourceBuilder()
+                        .pointInTimeBuilder(new PointInTimeBuilder(pitId).setKeepAlive(KEEP_ALIVE))
+                        .size(pageSize)
+                        .sort(SortBuilders.pitTiebreaker())
+                        .trackTotalHits(false);
+        if (includes() != null || excludes() != null) {
+            source.fetchSource(includes(), excludes());
+        }
+        if (snapshot != null) {
+            source.seqNoAndPrimaryTerm(true);
+        }
+        if (query != null) {
+            source.query(query);
+        }
+        if (searchAfter != null) {
+            source.searchAfter(searchAfter);
+        }
+        return source;
+    }
+
+    /** Parses the rules held in the source of a document, returns how many were found * */
+    private int parseSource(Map<String, Object> source) throws IOException, ParseException {
+        int synonymsLoaded = 0;
+        if (source == null) {
+            return synonymsLoaded;
+        }
+        // get the data from the source field
+        for (Object value : source.values()) {
+            if (value instanceof List) {
+                for (Object item : (List<?>) value) {
+                    loadRule(asText(item));
+                    synonymsLoaded++;
+                }
+            } else {
+                loadRule(asText(value));
+                synonymsLoaded++;
+            }
+        }
+        return synonymsLoaded;
+    }
+
+    /**
+     * Streams the rules out of the source of a hit without turning it into a map. The strings are
+     * parsed straight from the buffer of the JSON parser when analyzed on this thread.
+     */
+    private int parseSource(BytesReference source) throws IOException, ParseException {
+        int synonymsLoaded = 0;
+        if (source == null) {
+            return synonymsLoaded;
+        }
+        try (XContentParser parser =
+                XContentHelper.createParser(
+                        NamedXContentRegistry.EMPTY,
+                        LoggingDeprecationHandler.INSTANCE,
+                        source,
+                        contentType(source))) {
+            if (parser.nextToken() != XContentParser.Token.START_OBJECT) {
+                return synonymsLoaded;
+            }
+            while (parser.nextToken() == XContentParser.Token.FIELD_NAME) {
+                XContentParser.Token token = parser.nextToken();
+                if (token == XContentParser.Token.START_ARRAY) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_ARRAY) {
+                        loadValue(parser, token);
                         synonymsLoaded++;
                     }
+                } else {
+                    loadValue(parser, token);
+                    synonymsLoaded++;
                 }
             }
+        }
+        return synonymsLoaded;
+    }
 
-            logger.info("{} synonyms loaded from index {}", synonymsLoaded, index);
+    /**
+     * The format the source of a document was indexed in, which the search keeps. Documents are
+     * usually indexed as JSON, the binary formats start with a header of their own.
+     */
+    static XContentType contentType(BytesReference source) {
+        if (source.length() >= 3
+                && source.get(0) == ':'
+                && source.get(1) == ')'
+                && source.get(2) == '\n') {
+            return XContentType.SMILE;
+        }
+        if (source.length() >= 3
+                && source.get(0) == '-'
+                && source.get(1) == '-'
+                && source.get(2) == '-') {
+            return XContentType.YAML;
+        }
+        // a map of any length, possibly tagged as CBOR
+        if (source.length() > 0
+                && ((source.get(0) & 0xe0) == 0xa0 || source.get(0) == (byte) 0xd9)) {
+            return XContentType.CBOR;
+        }
+        return XContentType.JSON;
+    }
 
-        } catch (ElasticsearchException e) {
-            logger.error("Exception caught when loading the synonyms from {}", index);
-        } finally {
-            client.shutdown();
+    /** Objects, arrays and nulls have no text, like in {@link #asText(Object)} * */
+    private void loadValue(XContentParser parser, XContentParser.Token token)
+            throws IOException, ParseException {
+        if (token == XContentParser.Token.VALUE_STRING) {
+            loadRule(parser.textCharacters(), parser.textOffset(), parser.textLength());
+        } else if (token.isValue()) {
+            loadRule(parser.text());
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    private void loadRule(char[] buffer, int offset, int length)
+            throws IOException, ParseException {
+        if (parallelism > 1) {
+            loadRule(new String(buffer, offset, length));
+            return;
+        }
+        ruleSkipped = false;
+        try {
+            parseRule(buffer, offset, length);
+        } catch (ParseException e) {
+            stats.ruleFailures++;
+            throw e;
+        }
+        if (ruleSkipped) {
+            stats.rulesSkipped++;
+        }
+    }
+
+    private void loadRule(String rule) throws IOException, ParseException {
+        if (parallelism == 1) {
+            ruleSkipped = false;
+            try {
+                parseRule(rule);
+            } catch (ParseException e) {
+                stats.ruleFailures++;
+                throw e;
+            }
+            if (ruleSkipped) {
+                stats.rulesSkipped++;
+            }
+            return;
+        }
+        pendingRules.add(rule);
+        if (pendingRules.size() >= PARTITION_SIZE) {
+            submitPartition();
+        }
+    }
+
+    /**
+     * Hands the pending rules over to the analysis pool. The partitions are merged in the order
+     * they were created, which gives exactly the same synonym map as analyzing the rules one after
+     * the other. Merging the oldest partition before submitting a new one bounds the number of
+     * analyzed rules held in memory.
+     */
+    private void submitPartition() throws IOException, ParseException {
+        if (pendingRules.isEmpty()) {
+            return;
+        }
+        while (partitions.size() >= parallelism) {
+            mergePartition(partitions.poll());
+        }
+        final Partition partition = new Partition(pendingRules);
+        pendingRules = new ArrayList<>(PARTITION_SIZE);
+        partitions.add(partition);
+        try {
+            analysisExecutor.execute(partition);
+        } catch (RuntimeException e) {
+            // rejected by the executor
+            partition.run();
+        }
+    }
+
+    private void mergePartitions() throws IOException, ParseException {
+        submitPartition();
+        while (!partitions.isEmpty()) {
+            mergePartition(partitions.poll());
+        }
+    }
+
+    private void mergePartition(Partition partition) throws IOException, ParseException {
+        final List<Mapping> mappings;
+        try {
+            mappings = partition.await();
+        } catch (ParseException e) {
+            stats.ruleFailures++;
+            throw e;
+        }
+        for (Mapping mapping : mappings) {
+            add(mapping.input, mapping.output, mapping.includeOrig);
+        }
+        stats.rulesSkipped += partition.skipped;
+        stats.add(partition.stats);
+    }
+
+    /** Text of a value of the source, objects and arrays have none * */
+    private static String asText(Object value) {
+        if (value instanceof Map || value instanceof List) {
+            return "";
+        }
+        return String.valueOf(value);
+    }
+
+    /** Rules analyzed by a thread of the analysis pool * */
+    private final class Partition implements Runnable {
+        private final List<String> rules;
+        private final CompletableFuture<List<Mapping>> mappings = new CompletableFuture<>();
+        // read once the mappings are available
+        private int skipped;
+        private final SynonymBuildStats stats = new SynonymBuildStats();
+
+        private Partition(List<String> rules) {
+            this.rules = rules;
+        }
+
+        @Override
+        public void run() {
+            try (Analyzer analyzer = analyzers.get()) {
+                final RecordingParser parser = new RecordingParser(analyzer, stats);
+                for (String rule : rules) {
+                    parser.ruleSkipped = false;
+                    parser.parseRule(rule);
+                    if (parser.ruleSkipped) {
+                        skipped++;
+                    }
+                }
+                mappings.complete(parser.mappings);
+            } catch (Exception e) {
+                mappings.completeExceptionally(e);
+            }
+        }
+
+        private List<Mapping> await() throws IOException, ParseException {
+            try {
+                return mappings.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while analyzing synonyms", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof ParseException) {
+                    throw (ParseException) e.getCause();
+                } else if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+    }
+
+    /** Analyzes the rules of a partition and records the mappings they produce * */
+    private final class RecordingParser extends SolrRuleParser {
+        private final List<Mapping> mappings = new ArrayList<>();
+        private final SynonymBuildStats stats;
+        private boolean ruleSkipped;
+
+        private RecordingParser(Analyzer analyzer, SynonymBuildStats stats) {
+            // the mappings are deduplicated when merged
+            super(false, expand, analyzer);
+            this.stats = stats;
+        }
+
+        @Override
+        public void add(CharsRef input, CharsRef output, boolean includeOrig) {
+            mappings.add(
+                    new Mapping(
+                            CharsRef.deepCopyOf(input), CharsRef.deepCopyOf(output), includeOrig));
+        }
+
+        @Override
+        public CharsRef analyze(String text, CharsRefBuilder reuse) throws IOException {
+            try {
+                if (termCache != null) {
+                    return termCache.analyze(fingerprint, text, reuse, super::analyze, stats);
+                }
+                return super.analyze(text, reuse);
+            } catch (IllegalArgumentException ex) {
+                ruleSkipped = true;
+                return onAnalysisFailure(text, ex);
+            }
+        }
+    }
+
+    /** Arguments of a call to add * */
+    private static final class Mapping {
+        private final CharsRef input;
+        private final CharsRef output;
+        private final boolean includeOrig;
+
+        private Mapping(CharsRef input, CharsRef output, boolean includeOrig) {
+            this.input = input;
+            this.output = output;
+            this.includeOrig = includeOrig;
+        }
+    }
+
+    /** Cursor for one slice of the point in time * */
+    private static final class Slice {
+        private final int id;
+        private ActionFuture<SearchResponse> pending;
+
+        private Slice(int id) {
+            this.id = id;
         }
     }
 }
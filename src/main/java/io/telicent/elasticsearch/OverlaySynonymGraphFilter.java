@@ -0,0 +1,468 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.RollingBuffer;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Applies a base synonym map and a delta of it together, as if they had been compiled into a single
+ * map where the outputs of the delta replace the ones of the base for the same input. An input of
+ * the delta without outputs is a tombstone, the rules it came from have been deleted.
+ *
+ * <p>The token graph is produced exactly like {@link SynonymGraphFilter} does, only the longest
+ * match is looked up in both maps. Like it, this filter cannot consume an incoming graph.
+ *
+ * <p>With {@link SynonymFirstTokens}, a token of the input which cannot start a match is returned
+ * as is, without being looked up in the maps nor buffered.
+ */
+public final class OverlaySynonymGraphFilter extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncrAtt =
+            addAttribute(PositionIncrementAttribute.class);
+    private final PositionLengthAttribute posLenAtt = addAttribute(PositionLengthAttribute.class);
+    private final TypeAttribute typeAtt = addAttribute(TypeAttribute.class);
+    private final OffsetAttribute offsetAtt = addAttribute(OffsetAttribute.class);
+
+    private final Matcher base;
+    private final Matcher delta;
+    private final SynonymFirstTokens firstTokens;
+
+    private final ByteArrayDataInput bytesReader = new ByteArrayDataInput();
+    private final BytesRef scratchBytes = new BytesRef();
+    private final CharsRefBuilder scratchChars = new CharsRefBuilder();
+
+    private final LinkedList<BufferedOutputToken> outputBuffer = new LinkedList<>();
+
+    private int nextNodeOut;
+    private int lastNodeOut;
+
+    // whether the current token of the input has not been captured yet
+    private boolean liveToken;
+
+    private int matchStartOffset;
+    private int matchEndOffset;
+
+    private boolean finished;
+
+    private int lookaheadNextRead;
+    private int lookaheadNextWrite;
+
+    private final RollingBuffer<BufferedInputToken> lookahead =
+            new RollingBuffer<BufferedInputToken>() {
+                @Override
+                protected BufferedInputToken newInstance() {
+                    return new BufferedInputToken();
+                }
+            };
+
+    /**
+     * @param base the synonyms compiled in full
+     * @param delta the synonyms changed since, as built by {@link CountedSynonymMapBuilder}
+     */
+    public OverlaySynonymGraphFilter(TokenStream input, SynonymMap base, SynonymMap delta) {
+        this(input, base, delta, null);
+    }
+
+    /**
+     * @param delta null if there are no changes
+     * @param firstTokens the first words of the inputs of both maps, null to look up every token
+     */
+    public OverlaySynonymGraphFilter(
+            TokenStream input, SynonymMap base, SynonymMap delta, SynonymFirstTokens firstTokens) {
+        super(input);
+        this.base = new Matcher(base);
+        this.delta = new Matcher(delta);
+        this.firstTokens = firstTokens;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (outputBuffer.isEmpty() == false) {
+            // pending outputs of a previous match
+            releaseBufferedToken();
+            return true;
+        }
+
+        if (parse()) {
+            releaseBufferedToken();
+            return true;
+        }
+
+        if (lookaheadNextRead == lookaheadNextWrite) {
+            // the token pulled by parse did not start a match, returned as is
+            if (finished) {
+                return false;
+            }
+            liveToken = false;
+        } else {
+            // replay the tokens read ahead by a previous parse
+            final BufferedInputToken token = lookahead.get(lookaheadNextRead);
+            lookaheadNextRead++;
+            restoreState(token.state);
+            lookahead.freeBefore(lookaheadNextRead);
+        }
+
+        lastNodeOut += posIncrAtt.getPositionIncrement();
+        nextNodeOut = lastNodeOut + posLenAtt.getPositionLength();
+        return true;
+    }
+
+    private void releaseBufferedToken() {
+        final BufferedOutputToken token = outputBuffer.pollFirst();
+        if (token.state != null) {
+            // an original token
+            restoreState(token.state);
+        } else {
+            clearAttributes();
+            termAtt.append(token.term);
+            offsetAtt.setOffset(matchStartOffset, matchEndOffset);
+            typeAtt.setType(SynonymGraphFilter.TYPE_SYNONYM);
+        }
+        posIncrAtt.setPositionIncrement(token.startNode - lastNodeOut);
+        lastNodeOut = token.startNode;
+        posLenAtt.setPositionLength(token.endNode - token.startNode);
+    }
+
+    /**
+     * Looks up the longest match at the current token in both maps, the delta taking precedence
+     * over the base for inputs of the same length. Returns whether there is one, in which case its
+     * tokens have been buffered.
+     */
+    private boolean parse() throws IOException {
+        BytesRef matchOutput = null;
+        SynonymMap matchMap = null;
+        int matchInputLength = 0;
+
+        base.start();
+        delta.start();
+
+        int matchLength = 0;
+        boolean doFinalCapture = false;
+        int lookaheadUpto = lookaheadNextRead;
+        matchStartOffset = -1;
+
+        while (true) {
+            final char[] buffer;
+            final int bufferLen;
+            final int inputEndOffset;
+
+            if (lookaheadUpto <= lookahead.getMaxPos()) {
+                // still in the tokens read ahead
+                final BufferedInputToken token = lookahead.get(lookaheadUpto);
+                lookaheadUpto++;
+                buffer = token.term.chars();
+                bufferLen = token.term.length();
+                inputEndOffset = token.endOffset;
+                if (matchStartOffset == -1) {
+                    matchStartOffset = token.startOffset;
+                }
+            } else if (finished) {
+                break;
+            } else if (input.incrementToken()) {
+                liveToken = true;
+                buffer = termAtt.buffer();
+                bufferLen = termAtt.length();
+                if (matchStartOffset == -1) {
+                    matchStartOffset = offsetAtt.startOffset();
+                }
+                inputEndOffset = offsetAtt.endOffset();
+                lookaheadUpto++;
+                if (matchLength == 0
+                        && firstTokens != null
+                        && firstTokens.mightStart(buffer, bufferLen) == false) {
+                    // no match can start there, the token is returned as is
+                    break;
+                }
+            } else {
+                finished = true;
+                break;
+            }
+
+            matchLength++;
+
+            // run the characters of the token through both FSTs
+            int bufUpto = 0;
+            while (bufUpto < bufferLen) {
+                final int codePoint = Character.codePointAt(buffer, bufUpto, bufferLen);
+                base.next(codePoint);
+                delta.next(codePoint);
+                if (base.matching == false && delta.matching == false) {
+                    break;
+                }
+                bufUpto += Character.charCount(codePoint);
+            }
+            if (base.matching == false && delta.matching == false) {
+                break;
+            }
+
+            // the delta replaces the input of the base, even with no outputs
+            if (delta.isFinal()) {
+                final BytesRef output = delta.finalOutput();
+                if (isTombstone(output)) {
+                    // a shorter match still applies
+                } else {
+                    matchOutput = output;
+                    matchMap = delta.map;
+                    matchInputLength = matchLength;
+                    matchEndOffset = inputEndOffset;
+                }
+            } else if (base.isFinal()) {
+                matchOutput = base.finalOutput();
+                matchMap = base.map;
+                matchInputLength = matchLength;
+                matchEndOffset = inputEndOffset;
+            }
+
+            // whether a longer input can match
+            base.next(SynonymMap.WORD_SEPARATOR);
+            delta.next(SynonymMap.WORD_SEPARATOR);
+            if (base.matching == false && delta.matching == false) {
+                break;
+            }
+            doFinalCapture = true;
+            if (liveToken) {
+                capture();
+            }
+        }
+
+        if (doFinalCapture && liveToken && finished == false) {
+            // the last token must be captured as the previous ones were
+            capture();
+        }
+
+        if (matchOutput != null) {
+            if (liveToken) {
+                // single token match
+                capture();
+            }
+            bufferOutputTokens(matchOutput, matchMap, matchInputLength);
+            lookaheadNextRead += matchInputLength;
+            lookahead.freeBefore(lookaheadNextRead);
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isTombstone(BytesRef output) {
+        // the first byte holds the number of outputs and the includeOrig flag
+        return (output.bytes[output.offset] & 0xFF) >>> 1 == 0;
+    }
+
+    /** Buffers the tokens of the synonyms as side paths of the input tokens they match * */
+    private void bufferOutputTokens(BytesRef bytes, SynonymMap map, int matchInputLength) {
+        bytesReader.reset(bytes.bytes, bytes.offset, bytes.length);
+
+        final int code = bytesReader.readVInt();
+        final boolean keepOrig = (code & 0x1) == 0;
+
+        // nodes along all the paths, to number the node where they merge back
+        int totalPathNodes = keepOrig ? matchInputLength - 1 : 0;
+
+        final int count = code >>> 1;
+        final List<List<String>> paths = new ArrayList<>();
+        for (int outputIDX = 0; outputIDX < count; outputIDX++) {
+            final int wordID = bytesReader.readVInt();
+            map.words.get(wordID, scratchBytes);
+            scratchChars.copyUTF8Bytes(scratchBytes);
+            int lastStart = 0;
+            final List<String> path = new ArrayList<>();
+            paths.add(path);
+            final int chEnd = scratchChars.length();
+            for (int chUpto = 0; chUpto <= chEnd; chUpto++) {
+                if (chUpto == chEnd || scratchChars.charAt(chUpto) == SynonymMap.WORD_SEPARATOR) {
+                    path.add(new String(scratchChars.chars(), lastStart, chUpto - lastStart));
+                    lastStart = 1 + chUpto;
+                }
+            }
+            totalPathNodes += path.size() - 1;
+        }
+
+        final int startNode = nextNodeOut;
+        final int endNode = startNode + totalPathNodes + 1;
+
+        // the first token of each side path departs from the start node
+        int newNodeCount = 0;
+        for (List<String> path : paths) {
+            final int pathEndNode;
+            if (path.size() == 1) {
+                pathEndNode = endNode;
+            } else {
+                pathEndNode = nextNodeOut + newNodeCount + 1;
+                newNodeCount += path.size() - 1;
+            }
+            outputBuffer.add(new BufferedOutputToken(null, path.get(0), startNode, pathEndNode));
+        }
+
+        // the original tokens come last, else the offsets would go backwards
+        if (keepOrig) {
+            final BufferedInputToken token = lookahead.get(lookaheadNextRead);
+            final int inputEndNode =
+                    matchInputLength == 1 ? endNode : nextNodeOut + newNodeCount + 1;
+            outputBuffer.add(
+                    new BufferedOutputToken(
+                            token.state, token.term.toString(), startNode, inputEndNode));
+        }
+
+        nextNodeOut = endNode;
+
+        // the rest of each side path
+        for (int pathID = 0; pathID < paths.size(); pathID++) {
+            final List<String> path = paths.get(pathID);
+            if (path.size() > 1) {
+                int lastNode = outputBuffer.get(pathID).endNode;
+                for (int i = 1; i < path.size() - 1; i++) {
+                    outputBuffer.add(
+                            new BufferedOutputToken(null, path.get(i), lastNode, lastNode + 1));
+                    lastNode++;
+                }
+                outputBuffer.add(
+                        new BufferedOutputToken(
+                                null, path.get(path.size() - 1), lastNode, endNode));
+            }
+        }
+
+        if (keepOrig && matchInputLength > 1) {
+            // the rest of the path of the original tokens
+            int lastNode = outputBuffer.get(paths.size()).endNode;
+            for (int i = 1; i < matchInputLength - 1; i++) {
+                final BufferedInputToken token = lookahead.get(lookaheadNextRead + i);
+                outputBuffer.add(
+                        new BufferedOutputToken(
+                                token.state, token.term.toString(), lastNode, lastNode + 1));
+                lastNode++;
+            }
+            final BufferedInputToken token =
+                    lookahead.get(lookaheadNextRead + matchInputLength - 1);
+            outputBuffer.add(
+                    new BufferedOutputToken(token.state, token.term.toString(), lastNode, endNode));
+        }
+    }
+
+    /** Buffers the current token of the input * */
+    private void capture() {
+        liveToken = false;
+        final BufferedInputToken token = lookahead.get(lookaheadNextWrite);
+        lookaheadNextWrite++;
+        token.state = captureState();
+        token.startOffset = offsetAtt.startOffset();
+        token.endOffset = offsetAtt.endOffset();
+        token.term.append(termAtt);
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        lookahead.reset();
+        lookaheadNextWrite = 0;
+        lookaheadNextRead = 0;
+        lastNodeOut = -1;
+        nextNodeOut = 0;
+        matchStartOffset = -1;
+        matchEndOffset = -1;
+        finished = false;
+        liveToken = false;
+        outputBuffer.clear();
+    }
+
+    /** Walks the FST of one of the maps along the tokens of a match * */
+    private static final class Matcher {
+        private final SynonymMap map;
+        private final FST<BytesRef> fst;
+        private final FST.BytesReader fstReader;
+        private final FST.Arc<BytesRef> arc = new FST.Arc<>();
+        private BytesRef pendingOutput;
+        private boolean matching;
+
+        private Matcher(SynonymMap map) {
+            this.map = map;
+            this.fst = map == null ? null : map.fst;
+            this.fstReader = fst == null ? null : fst.getBytesReader();
+        }
+
+        private void start() {
+            matching = fst != null;
+            if (matching) {
+                fst.getFirstArc(arc);
+                pendingOutput = fst.outputs.getNoOutput();
+            }
+        }
+
+        private void next(int label) throws IOException {
+            if (matching) {
+                if (fst.findTargetArc(label, arc, arc, fstReader) == null) {
+                    matching = false;
+                } else {
+                    pendingOutput = fst.outputs.add(pendingOutput, arc.output());
+                }
+            }
+        }
+
+        private boolean isFinal() {
+            return matching && arc.isFinal();
+        }
+
+        private BytesRef finalOutput() {
+            return fst.outputs.add(pendingOutput, arc.nextFinalOutput());
+        }
+    }
+
+    /** A token of the input, kept until the longest match is known * */
+    private static final class BufferedInputToken implements RollingBuffer.Resettable {
+        private final CharsRefBuilder term = new CharsRefBuilder();
+        private State state;
+        private int startOffset = -1;
+        private int endOffset = -1;
+
+        @Override
+        public void reset() {
+            state = null;
+            term.clear();
+            startOffset = -1;
+            endOffset = -1;
+        }
+    }
+
+    /** A token to return, original when it has a state or else a synonym * */
+    private static final class BufferedOutputToken {
+        private final State state;
+        private final String term;
+        private final int startNode;
+        private final int endNode;
+
+        private BufferedOutputToken(State state, String term, int startNode, int endNode) {
+            this.state = state;
+            this.term = term;
+            this.startNode = startNode;
+            this.endNode = endNode;
+        }
+    }
+}
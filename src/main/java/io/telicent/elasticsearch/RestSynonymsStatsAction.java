@@ -0,0 +1,51 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+import java.util.Arrays;
+import java.util.List;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+/** Exposes the statistics of the synonyms under _synonyms/stats * */
+public class RestSynonymsStatsAction extends BaseRestHandler {
+
+    @Override
+    public String getName() {
+        return "synonyms_stats_action";
+    }
+
+    @Override
+    public List<Route> routes() {
+        return Arrays.asList(
+                new Route(GET, "/_synonyms/stats"), new Route(GET, "/_synonyms/stats/{nodeId}"));
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) {
+        final String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
+        final SynonymsStatsRequest statsRequest = new SynonymsStatsRequest(nodesIds);
+        statsRequest.timeout(request.param("timeout"));
+        return channel ->
+                client.execute(
+                        SynonymsStatsAction.INSTANCE,
+                        statsRequest,
+                        new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * Parses rules in the SOLR format exactly like {@link SolrSynonymParser}, but straight from a
+ * buffer of characters. The buffers used to split, unescape and analyze the terms are reused from
+ * one rule to the next, so that parsing a rule does not go through a reader and its line buffer.
+ */
+public class SolrRuleParser extends SynonymMap.Parser {
+
+    private final boolean expand;
+
+    // reused by all the rules, add copies what it keeps
+    private final List<CharsRefBuilder> builders = new ArrayList<>();
+    private final Ranges sides = new Ranges();
+    private final Ranges terms = new Ranges();
+    private CharsRef[] inputs = new CharsRef[8];
+    private CharsRef[] outputs = new CharsRef[8];
+    private char[] term = new char[64];
+    private char[] rule = new char[256];
+
+    public SolrRuleParser(boolean dedup, boolean expand, Analyzer analyzer) {
+        super(dedup, analyzer);
+        this.expand = expand;
+    }
+
+    @Override
+    public void parse(Reader in) throws IOException, ParseException {
+        try (BufferedReader reader = new BufferedReader(in)) {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                parseLine(chars(line), 0, line.length(), lineNumber);
+            }
+        }
+    }
+
+    /** Parses a rule, several rules can be given on separate lines * */
+    public void parseRule(String rule) throws IOException, ParseException {
+        parseRule(chars(rule), 0, rule.length());
+    }
+
+    /**
+     * Parses a rule held in a buffer which is only read during the call, several rules can be given
+     * on separate lines.
+     */
+    public void parseRule(char[] buffer, int offset, int length)
+            throws IOException, ParseException {
+        final int end = offset + length;
+        int lineNumber = 1;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            final char ch = buffer[i];
+            if (ch == '\n' || ch == '\r') {
+                parseLine(buffer, start, i, lineNumber);
+                // \r\n ends a single line
+                if (ch == '\r' && i + 1 < end && buffer[i + 1] == '\n') {
+                    i++;
+                }
+                start = i + 1;
+                lineNumber++;
+            }
+        }
+        parseLine(buffer, start, end, lineNumber);
+    }
+
+    /** Copies the text to the reused buffer * */
+    private char[] chars(String text) {
+        if (text.length() > rule.length) {
+            rule = new char[ArrayUtil.oversize(text.length(), Character.BYTES)];
+        }
+        text.getChars(0, text.length(), rule, 0);
+        return rule;
+    }
+
+    private void parseLine(char[] buffer, int from, int to, int lineNumber)
+            throws IOException, ParseException {
+        if (from == to || buffer[from] == '#') {
+            return;
+        }
+        try {
+            split(buffer, from, to, "=>", sides);
+            if (sides.count > 1) {
+                if (sides.count != 2) {
+                    throw new IllegalArgumentException(
+                            "more than one explicit mapping specified on the same line");
+                }
+                inputs = analyzeTerms(buffer, sides.start(0), sides.end(0), 0, inputs);
+                final int inputCount = terms.count;
+                outputs = analyzeTerms(buffer, sides.start(1), sides.end(1), inputCount, outputs);
+                final int outputCount = terms.count;
+                // these mappings are explicit and never preserve original
+                for (int i = 0; i < inputCount; i++) {
+                    for (int j = 0; j < outputCount; j++) {
+                        add(inputs[i], outputs[j], false);
+                    }
+                }
+            } else {
+                // the whole line is split, as done by SolrSynonymParser
+                inputs = analyzeTerms(buffer, from, to, 0, inputs);
+                final int inputCount = terms.count;
+                if (expand) {
+                    // all pairs
+                    for (int i = 0; i < inputCount; i++) {
+                        for (int j = 0; j < inputCount; j++) {
+                            if (i != j) {
+                                add(inputs[i], inputs[j], true);
+                            }
+                        }
+                    }
+                } else {
+                    // all subsequent inputs map to first one; we also add inputs[0] to inputs[0]
+                    for (int i = 0; i < inputCount; i++) {
+                        add(inputs[i], inputs[0], false);
+                    }
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            final ParseException ex =
+                    new ParseException("Invalid synonym rule at line " + lineNumber, 0);
+            ex.initCause(e);
+            throw ex;
+        }
+    }
+
+    /**
+     * Analyzes the terms separated by commas, with builders starting at the given one so that they
+     * do not overwrite the terms of the other side of the rule. Returns the array holding the
+     * results, grown if needed, their number is left in {@code terms.count}.
+     */
+    private CharsRef[] analyzeTerms(
+            char[] buffer, int from, int to, int firstBuilder, CharsRef[] results)
+            throws IOException {
+        split(buffer, from, to, ",", terms);
+        if (results.length < terms.count) {
+            results =
+                    new CharsRef
+                            [ArrayUtil.oversize(
+                                    terms.count, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+        }
+        for (int i = 0; i < terms.count; i++) {
+            results[i] =
+                    analyze(term(buffer, terms.start(i), terms.end(i)), builder(firstBuilder + i));
+        }
+        return results;
+    }
+
+    private CharsRefBuilder builder(int index) {
+        while (builders.size() <= index) {
+            builders.add(new CharsRefBuilder());
+        }
+        return builders.get(index);
+    }
+
+    /** Unescapes and trims a term * */
+    private String term(char[] buffer, int from, int to) {
+        if (to - from > term.length) {
+            term = new char[ArrayUtil.oversize(to - from, Character.BYTES)];
+        }
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            char ch = buffer[i];
+            if (ch == '\\' && i < to - 1) {
+                ch = buffer[++i];
+            }
+            term[length++] = ch;
+        }
+        int start = 0;
+        while (start < length && term[start] <= ' ') {
+            start++;
+        }
+        while (length > start && term[length - 1] <= ' ') {
+            length--;
+        }
+        return new String(term, start, length - start);
+    }
+
+    /**
+     * Finds the parts of the text between the separators, skipping the empty ones. A backslash
+     * escapes the next character, the parts keep it.
+     */
+    private static void split(char[] buffer, int from, int to, String separator, Ranges ranges) {
+        ranges.count = 0;
+        int start = from;
+        int pos = from;
+        while (pos < to) {
+            if (startsWith(buffer, pos, to, separator)) {
+                if (pos > start) {
+                    ranges.add(start, pos);
+                }
+                pos += separator.length();
+                start = pos;
+                continue;
+            }
+            if (buffer[pos++] == '\\') {
+                if (pos >= to) {
+                    break;
+                }
+                pos++;
+            }
+        }
+        if (to > start) {
+            ranges.add(start, to);
+        }
+    }
+
+    private static boolean startsWith(char[] buffer, int pos, int to, String prefix) {
+        if (to - pos < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Bounds of the parts of a split text * */
+    private static final class Ranges {
+        private int[] bounds = new int[16];
+        private int count;
+
+        private void add(int start, int end) {
+            if (bounds.length < (count + 1) * 2) {
+                bounds = Arrays.copyOf(bounds, bounds.length * 2);
+            }
+            bounds[count * 2] = start;
+            bounds[count * 2 + 1] = end;
+            count++;
+        }
+
+        private int start(int index) {
+            return bounds[index * 2];
+        }
+
+        private int end(int index) {
+            return bounds[index * 2 + 1];
+        }
+    }
+}
@@ -0,0 +1,438 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ExceptionsHelper;
+import org.elasticsearch.ResourceAlreadyExistsException;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.IndexNotFoundException;
+import org.elasticsearch.index.engine.VersionConflictEngineException;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.xcontent.XContentBuilder;
+import org.elasticsearch.xcontent.XContentFactory;
+
+/**
+ * Shares the compiled synonyms between the nodes of the cluster through a hidden index. The first
+ * node which needs a version of the synonyms claims it and compiles it, then indexes the serialized
+ * map with the change token of the synonym index it was compiled from. The other nodes check for it
+ * again periodically, without holding a thread in the meantime, and download it instead of
+ * compiling the synonyms themselves. A node compiles the synonyms on its own if the artifact cannot
+ * be obtained in time.
+ *
+ * <p>The map is kept in a stored binary field, left out of the source. Publishing a version deletes
+ * the artifacts compiled from previous versions of the same documents, whatever the index using the
+ * synonyms or its analysis chain.
+ */
+public class SynonymArtifacts {
+
+    public static final Setting<Boolean> SHARED_ENABLED =
+            Setting.boolSetting("telicent.synonyms.shared.enabled", false, Property.NodeScope);
+
+    /** How long to wait for the synonyms compiled by another node * */
+    public static final Setting<TimeValue> SHARED_WAIT =
+            Setting.timeSetting(
+                    "telicent.synonyms.shared.wait",
+                    TimeValue.timeValueSeconds(30),
+                    TimeValue.ZERO,
+                    Property.NodeScope);
+
+    public static final String INDEX = ".synonyms-compiled";
+
+    /** Version of the format of the serialized synonyms * */
+    static final int FORMAT = 0;
+
+    private static final String BUILDING = "building";
+    private static final String READY = "ready";
+
+    private static final TimeValue POLL_INTERVAL = TimeValue.timeValueMillis(500);
+
+    /** Most superseded artifacts deleted each time a version is published * */
+    private static final int MAX_DELETED = 100;
+
+    private static final Logger logger = LogManager.getLogger(SynonymArtifacts.class);
+
+    private final Client client;
+    private final String nodeId;
+    private final TimeValue wait;
+
+    /** The artifacts this node is waiting for, by id * */
+    private final Map<String, Waiting> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * @param nodeId identifies the node compiling the synonyms in the artifacts
+     * @param wait how long to wait for the synonyms compiled by another node
+     */
+    public SynonymArtifacts(Client client, String nodeId, TimeValue wait) {
+        this.client = client;
+        this.nodeId = nodeId;
+        this.wait = wait;
+    }
+
+    /**
+     * Downloads the synonyms compiled by another node for the change token, or compiles them and
+     * shares them with the other nodes. Falls back to compiling them locally if anything goes
+     * wrong.
+     *
+     * @throws SynonymMapCache.RetryException while another node is compiling the synonyms, to be
+     *     called again later
+     * @param context the context the artifacts are read and written with
+     * @param budget the memory budget the synonyms downloaded are checked against, as if compiled
+     *     locally
+     * @param compile compiles the synonyms locally
+     * @param stats source set to artifact if the synonyms were downloaded
+     */
+    SynonymMap load(
+            SynonymMapCache.Key key,
+            String token,
+            Supplier<ThreadContext.StoredContext> context,
+            Supplier<SynonymMemoryBudget> budget,
+            CheckedSupplier<SynonymMap, Exception> compile,
+            SynonymBuildStats stats)
+            throws Exception {
+        final String id = id(key);
+        Outcome outcome;
+        try {
+            outcome = await(id, key, token, context, budget, stats);
+        } catch (SynonymMapCache.RetryException e) {
+            throw e;
+        } catch (Exception e) {
+            logger.warn("Could not share the synonyms for {}, compiling them locally", key, e);
+            outcome = Outcome.LOCAL;
+        }
+        waiting.remove(id);
+        if (outcome.map != null) {
+            return outcome.map;
+        }
+        final SynonymMap map = compile.get();
+        if (outcome.claim != null) {
+            publish(id, key, token, outcome.claim, map, context);
+        }
+        return map;
+    }
+
+    /**
+     * Gets the artifact if it is ready or claims it for this node, asks to be called again if
+     * another node is compiling it
+     */
+    private Outcome await(
+            String id,
+            SynonymMapCache.Key key,
+            String token,
+            Supplier<ThreadContext.StoredContext> context,
+            Supplier<SynonymMemoryBudget> budget,
+            SynonymBuildStats stats)
+            throws Exception {
+        while (true) {
+            final long fetchStart = System.nanoTime();
+            final GetResponse artifact = get(id, context);
+            stats.fetchNanos += System.nanoTime() - fetchStart;
+
+            final Map<String, Object> source = artifact == null ? null : artifact.getSource();
+            final boolean current =
+                    source != null
+                            && key.toString().equals(source.get("key"))
+                            && token.equals(source.get("token"))
+                            && Integer.valueOf(FORMAT).equals(source.get("format"));
+            if (current && READY.equals(source.get("state"))) {
+                final SynonymMap map;
+                try {
+                    map = read(artifact.getField("map"), budget);
+                } catch (CircuitBreakingException e) {
+                    // compiled by a node with more memory, the local build enforces the limits
+                    logger.warn(
+                            "Synonyms for {} compiled by another node do not fit in memory,"
+                                    + " compiling them locally",
+                            key,
+                            e);
+                    return Outcome.LOCAL;
+                }
+                logger.debug("Downloaded the synonyms for {} compiled by another node", key);
+                stats.source = "artifact";
+                return new Outcome(map, null);
+            }
+
+            // the wait starts the first time this version is found being compiled
+            final long now = System.nanoTime();
+            final Waiting since =
+                    waiting.compute(
+                            id,
+                            (k, w) ->
+                                    w != null && w.token.equals(token)
+                                            ? w
+                                            : new Waiting(token, now + wait.nanos()));
+            final boolean expired = now - since.deadline >= 0;
+            if (current && expired == false) {
+                // being compiled by another node
+                throw new SynonymMapCache.RetryException(POLL_INTERVAL);
+            }
+            // missing, stale or given up on by the node which claimed it
+            final IndexResponse claim = claim(id, key, token, artifact, context);
+            if (claim != null) {
+                return new Outcome(null, claim);
+            }
+            if (expired) {
+                logger.info("Synonyms for {} not shared in time, compiling them locally", key);
+                return Outcome.LOCAL;
+            }
+            // claimed by another node in the meantime
+        }
+    }
+
+    /** null if the index does not exist * */
+    private GetResponse get(String id, Supplier<ThreadContext.StoredContext> context) {
+        try (ThreadContext.StoredContext ignored = context.get()) {
+            return client.prepareGet(INDEX, "_doc", id)
+                    .setStoredFields("map")
+                    .setFetchSource(true)
+                    .get();
+        } catch (IndexNotFoundException e) {
+            return null;
+        }
+    }
+
+    /** Marks the artifact as being compiled by this node, returns null if another node did first */
+    private IndexResponse claim(
+            String id,
+            SynonymMapCache.Key key,
+            String token,
+            GetResponse previous,
+            Supplier<ThreadContext.StoredContext> context)
+            throws IOException {
+        try (ThreadContext.StoredContext ignored = context.get()) {
+            if (previous == null) {
+                createIndex();
+            }
+            final IndexRequestBuilder request =
+                    client.prepareIndex(INDEX, "_doc", id)
+                            .setSource(source(key, token, BUILDING, null));
+            if (previous != null && previous.isExists()) {
+                request.setIfSeqNo(previous.getSeqNo()).setIfPrimaryTerm(previous.getPrimaryTerm());
+            } else {
+                request.setCreate(true);
+            }
+            return request.get();
+        } catch (Exception e) {
+            if (ExceptionsHelper.unwrapCause(e) instanceof VersionConflictEngineException) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private void publish(
+            String id,
+            SynonymMapCache.Key key,
+            String token,
+            IndexResponse claim,
+            SynonymMap map,
+            Supplier<ThreadContext.StoredContext> context)
+            throws IOException {
+        final XContentBuilder source = source(key, token, READY, write(map));
+        try (ThreadContext.StoredContext ignored = context.get()) {
+            client.prepareIndex(INDEX, "_doc", id)
+                    .setSource(source)
+                    .setIfSeqNo(claim.getSeqNo())
+                    .setIfPrimaryTerm(claim.getPrimaryTerm())
+                    .get();
+            logger.debug("Shared the synonyms for {}", key);
+        } catch (Exception e) {
+            // reclaimed by another node which waited for too long
+            logger.warn("Could not share the synonyms for {}", key, e);
+            return;
+        }
+        deleteSuperseded(key, token, context);
+    }
+
+    /**
+     * Deletes the artifacts compiled from other versions of the same documents. Only those which
+     * are ready, the claims of other nodes are left to fail when they publish.
+     */
+    private void deleteSuperseded(
+            SynonymMapCache.Key key, String token, Supplier<ThreadContext.StoredContext> context) {
+        try (ThreadContext.StoredContext ignored = context.get()) {
+            final SearchResponse response =
+                    client.prepareSearch(INDEX)
+                            .setQuery(
+                                    QueryBuilders.boolQuery()
+                                            .filter(
+                                                    QueryBuilders.termQuery(
+                                                            "documents", key.documents()))
+                                            .filter(QueryBuilders.termQuery("state", READY))
+                                            .mustNot(QueryBuilders.termQuery("token", token)))
+                            .setFetchSource(false)
+                            .seqNoAndPrimaryTerm(true)
+                            .setSize(MAX_DELETED)
+                            .get();
+            final SearchHit[] hits = response.getHits().getHits();
+            if (hits.length == 0) {
+                return;
+            }
+            final BulkRequestBuilder bulk = client.prepareBulk();
+            for (SearchHit hit : hits) {
+                // unless compiled again in the meantime
+                bulk.add(
+                        client.prepareDelete(INDEX, "_doc", hit.getId())
+                                .setIfSeqNo(hit.getSeqNo())
+                                .setIfPrimaryTerm(hit.getPrimaryTerm()));
+            }
+            bulk.get();
+            logger.debug("Deleted {} superseded synonyms for {}", hits.length, key);
+        } catch (Exception e) {
+            logger.warn("Could not delete the superseded synonyms for {}", key, e);
+        }
+    }
+
+    private void createIndex() throws IOException {
+        try {
+            client.admin()
+                    .indices()
+                    .prepareCreate(INDEX)
+                    .setSettings(
+                            Settings.builder()
+                                    .put("index.hidden", true)
+                                    .put("index.number_of_shards", 1)
+                                    .put("index.auto_expand_replicas", "0-all"))
+                    .addMapping("_doc", mapping())
+                    .get();
+        } catch (ResourceAlreadyExistsException e) {
+            // created by another node
+        }
+    }
+
+    /** The map is only kept as a stored field, it would be copied into the source as base64 */
+    private static XContentBuilder mapping() throws IOException {
+        final XContentBuilder mapping = XContentFactory.jsonBuilder().startObject();
+        mapping.startObject("_doc");
+        mapping.startObject("_source").array("excludes", "map").endObject();
+        mapping.startObject("properties");
+        field(mapping, "key", "keyword", false);
+        field(mapping, "documents", "keyword", true);
+        field(mapping, "token", "keyword", true);
+        field(mapping, "format", "integer", false);
+        field(mapping, "state", "keyword", true);
+        field(mapping, "node", "keyword", false);
+        field(mapping, "created", "date", false);
+        mapping.startObject("map").field("type", "binary").field("store", true).endObject();
+        mapping.endObject();
+        mapping.endObject();
+        return mapping.endObject();
+    }
+
+    private static void field(XContentBuilder mapping, String name, String type, boolean index)
+            throws IOException {
+        mapping.startObject(name).field("type", type).field("index", index).endObject();
+    }
+
+    /**
+     * In SMILE, which keeps the map binary on its way to the stored field
+     *
+     * @param map the serialized synonyms, null while they are being compiled
+     */
+    private XContentBuilder source(SynonymMapCache.Key key, String token, String state, byte[] map)
+            throws IOException {
+        final Map<String, Object> source = new HashMap<>();
+        source.put("key", key.toString());
+        source.put("documents", key.documents());
+        source.put("token", token);
+        source.put("format", FORMAT);
+        source.put("state", state);
+        source.put("node", nodeId);
+        source.put("created", System.currentTimeMillis());
+        if (map != null) {
+            source.put("map", map);
+        }
+        return XContentFactory.smileBuilder().map(source);
+    }
+
+    static String id(SynonymMapCache.Key key) {
+        return MessageDigests.toHexString(
+                MessageDigests.sha256().digest(key.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /** The version of an artifact this node waits for and until when * */
+    private static final class Waiting {
+        private final String token;
+        private final long deadline;
+
+        private Waiting(String token, long deadline) {
+            this.token = token;
+            this.deadline = deadline;
+        }
+    }
+
+    /** Synonyms downloaded, or the claim of this node to compile them * */
+    private static final class Outcome {
+        private static final Outcome LOCAL = new Outcome(null, null);
+
+        private final SynonymMap map;
+        private final IndexResponse claim;
+
+        private Outcome(SynonymMap map, IndexResponse claim) {
+            this.map = map;
+            this.claim = claim;
+        }
+    }
+
+    static byte[] write(SynonymMap map) throws IOException {
+        final ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        SynonymMapSerializer.write(map, out);
+        return out.toArrayCopy();
+    }
+
+    /**
+     * Reads the synonyms from the stored map field, checking the serialized and then the compiled
+     * size against the budget. The bytes are released once read, the map is then accounted by its
+     * holder.
+     */
+    static SynonymMap read(DocumentField field, Supplier<SynonymMemoryBudget> budget)
+            throws IOException {
+        final BytesRef bytes = ((BytesReference) field.getValue()).toBytesRef();
+        try (SynonymMemoryBudget memory = budget.get()) {
+            memory.add(bytes.length);
+            final SynonymMap map =
+                    SynonymMapSerializer.read(
+                            new ByteArrayDataInput(bytes.bytes, bytes.offset, bytes.length));
+            memory.set(SynonymMemoryBudget.ramBytesUsed(map));
+            return map;
+        }
+    }
+}
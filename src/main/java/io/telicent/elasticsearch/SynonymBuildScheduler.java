@@ -0,0 +1,371 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Runs the compilations of the synonyms of a node, no more than a given number at a time. The
+ * others wait in a queue in the order they were requested instead of being rejected by the thread
+ * pool, so that reloading the analyzers of many indices at once compiles their synonyms a few at a
+ * time in the background. The requests for the same synonyms are merged by their holder, which
+ * hands its next compilation over only once the previous one has completed. The synonyms compiled
+ * with other parameters or analysis chains are queued separately, the queue is therefore bounded
+ * and the compilations beyond it are rejected.
+ *
+ * <p>The tasks which are {@link AbstractRunnable} are told when they are rejected, by the queue or
+ * by the thread pool.
+ *
+ * <p>A compilation which runs for longer than the maximum time, for instance stuck on a search, is
+ * interrupted and its slot given to the next one. The tasks which are {@link AbstractRunnable} are
+ * then told that they failed, even though they may still return later on.
+ */
+public class SynonymBuildScheduler implements Executor {
+
+    private static final Logger logger = LogManager.getLogger(SynonymBuildScheduler.class);
+
+    /** Most compilations running at the same time on the node * */
+    public static final Setting<Integer> MAX_CONCURRENT_BUILDS =
+            new Setting<>(
+                    "telicent.synonyms.max_concurrent_builds",
+                    settings ->
+                            Integer.toString(
+                                    Math.max(1, EsExecutors.allocatedProcessors(settings) / 4)),
+                    value -> Setting.parseInt(value, 1, "telicent.synonyms.max_concurrent_builds"),
+                    Property.NodeScope);
+
+    /** Most compilations waiting for their turn on the node * */
+    public static final Setting<Integer> BUILD_QUEUE_SIZE =
+            Setting.intSetting("telicent.synonyms.build_queue_size", 1000, 0, Property.NodeScope);
+
+    /** Longest a compilation may run before its slot is given to the next one, 0 for no limit * */
+    public static final Setting<TimeValue> BUILD_MAX_TIME =
+            Setting.positiveTimeSetting(
+                    "telicent.synonyms.build_max_time",
+                    TimeValue.timeValueMinutes(10),
+                    Property.NodeScope);
+
+    private final Executor executor;
+    private final int maxConcurrent;
+    private final int queueSize;
+    private final TimeValue maxTime;
+    private final SynonymsReloader.Scheduler timer;
+
+    // guarded by this
+    private final Deque<Scheduled> queue = new ArrayDeque<>();
+    private int running;
+
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final SynonymFilterSamples.Histogram waits = new SynonymFilterSamples.Histogram();
+
+    /**
+     * @param executor the thread pool running the compilations
+     */
+    SynonymBuildScheduler(Executor executor, int maxConcurrent) {
+        this(executor, maxConcurrent, BUILD_QUEUE_SIZE.get(Settings.EMPTY));
+    }
+
+    /**
+     * @param queueSize most compilations waiting for their turn
+     */
+    SynonymBuildScheduler(Executor executor, int maxConcurrent, int queueSize) {
+        this(executor, maxConcurrent, queueSize, TimeValue.ZERO, null);
+    }
+
+    /**
+     * @param maxTime longest a compilation may run, 0 for no limit
+     * @param timer checks that the compilations complete in time, can be null for no limit
+     */
+    SynonymBuildScheduler(
+            Executor executor,
+            int maxConcurrent,
+            int queueSize,
+            TimeValue maxTime,
+            SynonymsReloader.Scheduler timer) {
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        this.queueSize = queueSize;
+        this.maxTime = maxTime;
+        this.timer = timer;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        final Scheduled scheduled = new Scheduled(task);
+        final boolean full;
+        synchronized (this) {
+            if (running < maxConcurrent) {
+                running++;
+                full = false;
+            } else if (queue.size() < queueSize) {
+                queue.addLast(scheduled);
+                return;
+            } else {
+                full = true;
+            }
+        }
+        if (full) {
+            // neither running nor queued, told outside of the lock as the task can schedule more
+            reject(task);
+        } else {
+            start(scheduled);
+        }
+    }
+
+    /** Tells the task that the queue is full, like the thread pools of Elasticsearch do * */
+    private void reject(Runnable task) {
+        rejected.incrementAndGet();
+        final EsRejectedExecutionException e =
+                new EsRejectedExecutionException(
+                        "the queue of the synonym compilations is full [" + queueSize + "]");
+        if (task instanceof AbstractRunnable == false) {
+            throw e;
+        }
+        final AbstractRunnable runnable = (AbstractRunnable) task;
+        try {
+            runnable.onRejection(e);
+        } finally {
+            runnable.onAfter();
+        }
+    }
+
+    private void start(Scheduled scheduled) {
+        try {
+            executor.execute(scheduled);
+        } catch (RuntimeException e) {
+            // the thread pools of Elasticsearch tell the task instead of throwing
+            scheduled.onRejection(e);
+        }
+    }
+
+    /** Starts the next compilation waiting, once one has completed * */
+    private void next() {
+        final Scheduled scheduled;
+        synchronized (this) {
+            scheduled = queue.pollFirst();
+            if (scheduled == null) {
+                running--;
+                return;
+            }
+        }
+        start(scheduled);
+    }
+
+    Stats stats() {
+        final int running;
+        final int queued;
+        synchronized (this) {
+            running = this.running;
+            queued = queue.size();
+        }
+        return new Stats(
+                maxConcurrent,
+                running,
+                queued,
+                completed.get(),
+                rejected.get(),
+                timedOut.get(),
+                waits.snapshot());
+    }
+
+    /** A compilation, from the time it was requested * */
+    private final class Scheduled extends AbstractRunnable {
+        private final Runnable task;
+        private final long requestedAt = System.nanoTime();
+        // set by the first of the end of the compilation and its timeout
+        private final AtomicBoolean over = new AtomicBoolean();
+        private volatile Thread thread;
+
+        private Scheduled(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        protected void doRun() {
+            waits.add(System.nanoTime() - requestedAt);
+            thread = Thread.currentThread();
+            if (timer != null && maxTime.nanos() > 0) {
+                timer.schedule(this::expire, maxTime);
+            }
+            task.run();
+        }
+
+        /** Gives the slot to the next compilation if this one is still running * */
+        private void expire() {
+            if (over.compareAndSet(false, true) == false) {
+                return;
+            }
+            timedOut.incrementAndGet();
+            logger.error(
+                    "Compilation of synonyms did not complete within {}, interrupting it", maxTime);
+            thread.interrupt();
+            if (task instanceof AbstractRunnable) {
+                final AbstractRunnable runnable = (AbstractRunnable) task;
+                try {
+                    runnable.onFailure(
+                            new ElasticsearchTimeoutException(
+                                    "compilation of synonyms did not complete within {}", maxTime));
+                } finally {
+                    runnable.onAfter();
+                }
+            }
+            next();
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            logger.error("Failed to compile synonyms", e);
+        }
+
+        /** Counted as rejected rather than completed, the task fails and the slot is released * */
+        @Override
+        public void onRejection(Exception e) {
+            if (over.compareAndSet(false, true) == false) {
+                return;
+            }
+            rejected.incrementAndGet();
+            try {
+                if (task instanceof AbstractRunnable) {
+                    final AbstractRunnable runnable = (AbstractRunnable) task;
+                    try {
+                        runnable.onRejection(e);
+                    } finally {
+                        runnable.onAfter();
+                    }
+                } else {
+                    logger.error("Could not schedule the compilation of synonyms", e);
+                }
+            } finally {
+                next();
+            }
+        }
+
+        @Override
+        public void onAfter() {
+            if (over.compareAndSet(false, true)) {
+                completed.incrementAndGet();
+                next();
+            }
+        }
+    }
+
+    /** State of the compilations of a node * */
+    public static final class Stats implements Writeable, ToXContentObject {
+        private final int maxConcurrent;
+        private final int running;
+        private final int queued;
+        private final long completed;
+        private final long rejected;
+        private final long timedOut;
+        private final SynonymFilterSamples.Distribution waits;
+
+        Stats(
+                int maxConcurrent,
+                int running,
+                int queued,
+                long completed,
+                long rejected,
+                long timedOut,
+                SynonymFilterSamples.Distribution waits) {
+            this.maxConcurrent = maxConcurrent;
+            this.running = running;
+            this.queued = queued;
+            this.completed = completed;
+            this.rejected = rejected;
+            this.timedOut = timedOut;
+            this.waits = waits;
+        }
+
+        public Stats(StreamInput in) throws IOException {
+            this.maxConcurrent = in.readVInt();
+            this.running = in.readVInt();
+            this.queued = in.readVInt();
+            this.completed = in.readVLong();
+            this.rejected = in.readVLong();
+            this.timedOut = in.readVLong();
+            this.waits = new SynonymFilterSamples.Distribution(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVInt(maxConcurrent);
+            out.writeVInt(running);
+            out.writeVInt(queued);
+            out.writeVLong(completed);
+            out.writeVLong(rejected);
+            out.writeVLong(timedOut);
+            waits.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params)
+                throws IOException {
+            builder.startObject();
+            builder.field("max_concurrent", maxConcurrent);
+            builder.field("running", running);
+            builder.field("queued", queued);
+            builder.field("completed", completed);
+            builder.field("rejected", rejected);
+            builder.field("timed_out", timedOut);
+            waits.toXContent(builder, "wait_time_in_nanos");
+            return builder.endObject();
+        }
+
+        public int running() {
+            return running;
+        }
+
+        public int queued() {
+            return queued;
+        }
+
+        public long completed() {
+            return completed;
+        }
+
+        public long rejected() {
+            return rejected;
+        }
+
+        public long timedOut() {
+            return timedOut;
+        }
+
+        public SynonymFilterSamples.Distribution waits() {
+            return waits;
+        }
+    }
+}
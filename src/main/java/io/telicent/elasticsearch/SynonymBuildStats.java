@@ -0,0 +1,90 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+/**
+ * Measures taken while loading and compiling a version of the synonyms. Filled in by the thread
+ * running the compilation and read once it has completed.
+ */
+public class SynonymBuildStats {
+
+    long fetchNanos;
+    long analyzeNanos;
+    long buildNanos;
+    long rulesLoaded;
+    long rulesSkipped;
+    long ruleFailures;
+    long termCacheHits;
+    long termCacheMisses;
+    String source = "index";
+
+    /** Time spent waiting for the documents of the synonym index * */
+    public long fetchNanos() {
+        return fetchNanos;
+    }
+
+    /** Time spent parsing and analyzing the rules * */
+    public long analyzeNanos() {
+        return analyzeNanos;
+    }
+
+    /** Time spent compiling the FST * */
+    public long buildNanos() {
+        return buildNanos;
+    }
+
+    public long rulesLoaded() {
+        return rulesLoaded;
+    }
+
+    /** Rules ignored because they could not be analyzed and the filter is lenient * */
+    public long rulesSkipped() {
+        return rulesSkipped;
+    }
+
+    /** Rules which made the compilation fail * */
+    public long ruleFailures() {
+        return ruleFailures;
+    }
+
+    /** Terms of the rules whose analysis was found in the {@link SynonymTermCache} * */
+    public long termCacheHits() {
+        return termCacheHits;
+    }
+
+    /** Terms of the rules analyzed as not found in the {@link SynonymTermCache} * */
+    public long termCacheMisses() {
+        return termCacheMisses;
+    }
+
+    /**
+     * Where the synonyms came from: the synonym index, an artifact compiled by another node or the
+     * documents changed since the previous version (delta)
+     */
+    public String source() {
+        return source;
+    }
+
+    /** Adds the measures of another part of the same compilation * */
+    public void add(SynonymBuildStats other) {
+        fetchNanos += other.fetchNanos;
+        analyzeNanos += other.analyzeNanos;
+        buildNanos += other.buildNanos;
+        rulesLoaded += other.rulesLoaded;
+        rulesSkipped += other.rulesSkipped;
+        ruleFailures += other.ruleFailures;
+        termCacheHits += other.termCacheHits;
+        termCacheMisses += other.termCacheMisses;
+    }
+}
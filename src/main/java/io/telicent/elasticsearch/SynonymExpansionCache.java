@@ -0,0 +1,245 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.Attribute;
+import org.apache.lucene.util.AttributeSource;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+
+/**
+ * Least recently used cache of the tokens produced by the synonym filter for a given sequence of
+ * input tokens, so that frequent queries do not go through the synonym map every time. Each version
+ * of the synonyms has its own entries, the cache is cleared when a new one is published.
+ *
+ * <p>Only the term, position increment and length, offsets and type of the tokens are cached, the
+ * streams carrying any other attribute are not cached.
+ */
+public class SynonymExpansionCache {
+
+    /** Maximum number of token sequences cached per synonym map, 0 disables the cache * */
+    public static final Setting<Integer> CACHE_SIZE =
+            Setting.intSetting("telicent.synonyms.expansion_cache.size", 0, 0, Property.NodeScope);
+
+    /** Longer token streams are not cached * */
+    static final int MAX_TOKENS = 32;
+
+    private static final Set<Class<? extends Attribute>> SUPPORTED_ATTRIBUTES =
+            new HashSet<>(
+                    Arrays.asList(
+                            CharTermAttribute.class,
+                            TermToBytesRefAttribute.class,
+                            TermFrequencyAttribute.class,
+                            OffsetAttribute.class,
+                            PositionIncrementAttribute.class,
+                            PositionLengthAttribute.class,
+                            TypeAttribute.class));
+
+    private final Cache<String, Expansion> cache;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    SynonymExpansionCache(int size) {
+        this.cache = CacheBuilder.<String, Expansion>builder().setMaximumWeight(size).build();
+    }
+
+    /** Whether the tokens of a stream can be replayed from the cache * */
+    static boolean supports(AttributeSource attributes) {
+        final Iterator<Class<? extends Attribute>> iter = attributes.getAttributeClassesIterator();
+        while (iter.hasNext()) {
+            if (SUPPORTED_ATTRIBUTES.contains(iter.next()) == false) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the tokens produced for the input with a version of the synonyms, null if they are
+     * not cached
+     */
+    Expansion get(String input, SynonymMap synonyms) {
+        final Expansion expansion = cache.get(input);
+        if (expansion != null && expansion.synonyms == synonyms) {
+            hits.increment();
+            return expansion;
+        }
+        misses.increment();
+        return null;
+    }
+
+    void put(String input, Expansion expansion) {
+        cache.put(input, expansion);
+    }
+
+    /** Drops the tokens produced with the previous versions of the synonyms * */
+    void clear() {
+        cache.invalidateAll();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return cache.stats().getEvictions();
+    }
+
+    /** Appends a token of the input to the key identifying the sequence * */
+    static void appendKey(
+            StringBuilder key,
+            CharTermAttribute term,
+            PositionIncrementAttribute posInc,
+            PositionLengthAttribute posLen,
+            OffsetAttribute offset,
+            TypeAttribute type) {
+        key.append(term)
+                .append('\u0000')
+                .append(posInc.getPositionIncrement())
+                .append(',')
+                .append(posLen.getPositionLength())
+                .append(',')
+                .append(offset.startOffset())
+                .append(',')
+                .append(offset.endOffset())
+                .append(',')
+                .append(type.type())
+                .append('\u0001');
+    }
+
+    /** Tokens produced by the synonym filter for a sequence of input tokens * */
+    static final class Expansion {
+        private final SynonymMap synonyms;
+        private final String[] terms;
+        private final int[] positionIncrements;
+        private final int[] positionLengths;
+        private final int[] startOffsets;
+        private final int[] endOffsets;
+        private final String[] types;
+
+        private Expansion(SynonymMap synonyms, List<Token> tokens) {
+            this.synonyms = synonyms;
+            final int size = tokens.size();
+            this.terms = new String[size];
+            this.positionIncrements = new int[size];
+            this.positionLengths = new int[size];
+            this.startOffsets = new int[size];
+            this.endOffsets = new int[size];
+            this.types = new String[size];
+            for (int i = 0; i < size; i++) {
+                final Token token = tokens.get(i);
+                terms[i] = token.term;
+                positionIncrements[i] = token.positionIncrement;
+                positionLengths[i] = token.positionLength;
+                startOffsets[i] = token.startOffset;
+                endOffsets[i] = token.endOffset;
+                types[i] = token.type;
+            }
+        }
+
+        int size() {
+            return terms.length;
+        }
+
+        /** Sets the attributes of a token, which must have been cleared * */
+        void restore(
+                int i,
+                CharTermAttribute term,
+                PositionIncrementAttribute posInc,
+                PositionLengthAttribute posLen,
+                OffsetAttribute offset,
+                TypeAttribute type) {
+            term.append(terms[i]);
+            posInc.setPositionIncrement(positionIncrements[i]);
+            posLen.setPositionLength(positionLengths[i]);
+            offset.setOffset(startOffsets[i], endOffsets[i]);
+            type.setType(types[i]);
+        }
+    }
+
+    /** Records the tokens produced by the synonym filter * */
+    static final class Recorder {
+        private final List<Token> tokens = new ArrayList<>();
+
+        void add(
+                CharTermAttribute term,
+                PositionIncrementAttribute posInc,
+                PositionLengthAttribute posLen,
+                OffsetAttribute offset,
+                TypeAttribute type) {
+            tokens.add(
+                    new Token(
+                            term.toString(),
+                            posInc.getPositionIncrement(),
+                            posLen.getPositionLength(),
+                            offset.startOffset(),
+                            offset.endOffset(),
+                            type.type()));
+        }
+
+        Expansion build(SynonymMap synonyms) {
+            return new Expansion(synonyms, tokens);
+        }
+    }
+
+    private static final class Token {
+        private final String term;
+        private final int positionIncrement;
+        private final int positionLength;
+        private final int startOffset;
+        private final int endOffset;
+        private final String type;
+
+        private Token(
+                String term,
+                int positionIncrement,
+                int positionLength,
+                int startOffset,
+                int endOffset,
+                String type) {
+            this.term = term;
+            this.positionIncrement = positionIncrement;
+            this.positionLength = positionLength;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/**
+ * Measures of a sample of the token streams analyzed by a synonym filter: the tokens going in and
+ * out, the ratio between them, how far the input is read ahead of the output and the time taken.
+ * One stream in every interval is sampled by each analyzer, the others are not measured at all.
+ *
+ * <p>The measures are recorded into histograms with a bucket per power of two. Each histogram is
+ * striped so that the threads analyzing at the same time do not contend on the same counters.
+ */
+public class SynonymFilterSamples {
+
+    private final int interval;
+
+    private final Histogram tokensIn = new Histogram();
+    private final Histogram tokensOut = new Histogram();
+    private final Histogram expansionRatio = new Histogram();
+    private final Histogram lookahead = new Histogram();
+    private final Histogram time = new Histogram();
+
+    /**
+     * @param interval one stream in every interval is sampled
+     */
+    SynonymFilterSamples(int interval) {
+        this.interval = interval;
+    }
+
+    int interval() {
+        return interval;
+    }
+
+    /**
+     * Records the measures of a sampled stream
+     *
+     * @param in tokens read from the input of the filter
+     * @param out tokens produced by the filter
+     * @param lookahead most positions the input was read ahead of the output
+     * @param nanos time from the reset to the end of the stream
+     */
+    void record(long in, long out, long lookahead, long nanos) {
+        tokensIn.add(in);
+        tokensOut.add(out);
+        if (in > 0) {
+            expansionRatio.add(out * 100 / in);
+        }
+        this.lookahead.add(lookahead);
+        time.add(nanos);
+    }
+
+    Stats stats() {
+        return new Stats(
+                interval,
+                tokensIn.snapshot(),
+                tokensOut.snapshot(),
+                expansionRatio.snapshot(),
+                lookahead.snapshot(),
+                time.snapshot());
+    }
+
+    /** Lock-free histogram of non-negative values, with a bucket per power of two * */
+    static final class Histogram {
+        // one bucket for 0 and one per bit length, followed by the count, sum and maximum
+        private static final int BUCKETS = Long.SIZE + 1;
+        private static final int COUNT = BUCKETS;
+        private static final int SUM = BUCKETS + 1;
+        private static final int MAX = BUCKETS + 2;
+        private static final int STRIPES =
+                Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors()) * 2);
+
+        private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+
+        Histogram() {
+            for (int i = 0; i < STRIPES; i++) {
+                stripes[i] = new AtomicLongArray(MAX + 1);
+            }
+        }
+
+        void add(long value) {
+            final AtomicLongArray stripe =
+                    stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+            stripe.incrementAndGet(bucket(value));
+            stripe.incrementAndGet(COUNT);
+            stripe.addAndGet(SUM, value);
+            if (value > stripe.get(MAX)) {
+                stripe.accumulateAndGet(MAX, value, Math::max);
+            }
+        }
+
+        static int bucket(long value) {
+            return Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, value));
+        }
+
+        Distribution snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            long count = 0;
+            long sum = 0;
+            long max = 0;
+            for (AtomicLongArray stripe : stripes) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    buckets[i] += stripe.get(i);
+                }
+                count += stripe.get(COUNT);
+                sum += stripe.get(SUM);
+                max = Math.max(max, stripe.get(MAX));
+            }
+            return new Distribution(count, sum, max, buckets);
+        }
+    }
+
+    /** Values recorded into a histogram * */
+    public static final class Distribution implements Writeable {
+        private final long count;
+        private final long sum;
+        private final long max;
+        private final long[] buckets;
+
+        Distribution(long count, long sum, long max, long[] buckets) {
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.buckets = buckets;
+        }
+
+        Distribution(StreamInput in) throws IOException {
+            this.count = in.readVLong();
+            this.sum = in.readVLong();
+            this.max = in.readVLong();
+            this.buckets = in.readVLongArray();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeVLong(sum);
+            out.writeVLong(max);
+            out.writeVLongArray(buckets);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         * Upper bound of the bucket the percentile falls into, no more than the maximum recorded
+         *
+         * @param percent between 0 and 100
+         */
+        public long percentile(double percent) {
+            final long rank = (long) Math.ceil(count * percent / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    final long upper = i == 0 ? 0 : i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                    return Math.min(upper, max);
+                }
+            }
+            return max;
+        }
+
+        void toXContent(XContentBuilder builder, String name) throws IOException {
+            builder.startObject(name);
+            builder.field("mean", mean());
+            builder.field("p50", percentile(50));
+            builder.field("p90", percentile(90));
+            builder.field("p99", percentile(99));
+            builder.field("max", max);
+            builder.endObject();
+        }
+    }
+
+    /** Measures of the streams sampled by a filter * */
+    public static final class Stats implements Writeable, ToXContentObject {
+        private final int interval;
+        private final Distribution tokensIn;
+        private final Distribution tokensOut;
+        private final Distribution expansionRatio;
+        private final Distribution lookahead;
+        private final Distribution time;
+
+        Stats(
+                int interval,
+                Distribution tokensIn,
+                Distribution tokensOut,
+                Distribution expansionRatio,
+                Distribution lookahead,
+                Distribution time) {
+            this.interval = interval;
+            this.tokensIn = tokensIn;
+            this.tokensOut = tokensOut;
+            this.expansionRatio = expansionRatio;
+            this.lookahead = lookahead;
+            this.time = time;
+        }
+
+        public Stats(StreamInput in) throws IOException {
+            this.interval = in.readVInt();
+            this.tokensIn = new Distribution(in);
+            this.tokensOut = new Distribution(in);
+            this.expansionRatio = new Distribution(in);
+            this.lookahead = new Distribution(in);
+            this.time = new Distribution(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVInt(interval);
+            tokensIn.writeTo(out);
+            tokensOut.writeTo(out);
+            expansionRatio.writeTo(out);
+            lookahead.writeTo(out);
+            time.writeTo(out);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params)
+                throws IOException {
+            builder.startObject();
+            builder.field("sample_interval", interval);
+            builder.field("sampled", time.count());
+            tokensIn.toXContent(builder, "tokens_in");
+            tokensOut.toXContent(builder, "tokens_out");
+            expansionRatio.toXContent(builder, "expansion_ratio_percent");
+            lookahead.toXContent(builder, "lookahead_positions");
+            time.toXContent(builder, "time_in_nanos");
+            return builder.endObject();
+        }
+
+        public int interval() {
+            return interval;
+        }
+
+        public Distribution tokensIn() {
+            return tokensIn;
+        }
+
+        public Distribution tokensOut() {
+            return tokensOut;
+        }
+
+        public Distribution expansionRatio() {
+            return expansionRatio;
+        }
+
+        public Distribution lookahead() {
+            return lookahead;
+        }
+
+        public Distribution time() {
+            return time;
+        }
+    }
+}
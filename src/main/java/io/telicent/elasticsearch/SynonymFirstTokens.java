@@ -0,0 +1,159 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Bloom filter of the first words of the inputs of a version of the synonyms, telling apart most of
+ * the tokens which cannot start a match without going through the FST of the synonym map. A token
+ * may be reported as a possible start when it is not, never the reverse.
+ *
+ * <p>The first words are collected by walking the FST up to the first word separator of each input,
+ * which only visits their distinct prefixes.
+ */
+public final class SynonymFirstTokens {
+
+    private static final int HASHES = 3;
+    private static final int BITS_PER_WORD = 10;
+
+    // the version of the synonyms the filter was built for, the delta if loaded incrementally
+    private final SynonymMap synonyms;
+    private final long[] bits;
+    private final int mask;
+    private final int count;
+
+    private SynonymFirstTokens(SynonymMap synonyms, Set<String> words) {
+        this.synonyms = synonyms;
+        final int size =
+                Math.max(
+                        Long.SIZE,
+                        Integer.highestOneBit(Math.max(1, words.size()) * BITS_PER_WORD) * 2);
+        this.bits = new long[size / Long.SIZE];
+        this.mask = size - 1;
+        this.count = words.size();
+        for (String word : words) {
+            final long hash = hash(word.toCharArray(), word.length());
+            final int h1 = (int) hash;
+            final int h2 = (int) (hash >>> 32) | 1;
+            for (int i = 0; i < HASHES; i++) {
+                final int bit = (h1 + i * h2) & mask;
+                bits[bit >>> 6] |= 1L << bit;
+            }
+        }
+    }
+
+    /**
+     * Collects the first words of the inputs of the synonyms
+     *
+     * @param base the synonyms compiled in full
+     * @param delta the synonyms changed since, null if not loaded incrementally
+     */
+    static SynonymFirstTokens build(SynonymMap base, SynonymMap delta) throws IOException {
+        final Set<String> words = new HashSet<>();
+        collect(base, words);
+        collect(delta, words);
+        return new SynonymFirstTokens(delta != null ? delta : base, words);
+    }
+
+    private static void collect(SynonymMap map, Set<String> words) throws IOException {
+        if (map == null || map.fst == null) {
+            return;
+        }
+        final FST<BytesRef> fst = map.fst;
+        final FST.Arc<BytesRef> root = fst.getFirstArc(new FST.Arc<>());
+        collect(fst, fst.getBytesReader(), root, new StringBuilder(), words);
+    }
+
+    private static void collect(
+            FST<BytesRef> fst,
+            FST.BytesReader reader,
+            FST.Arc<BytesRef> follow,
+            StringBuilder word,
+            Set<String> words)
+            throws IOException {
+        if (FST.targetHasArcs(follow) == false) {
+            return;
+        }
+        final FST.Arc<BytesRef> arc = fst.readFirstTargetArc(follow, new FST.Arc<>(), reader);
+        while (true) {
+            final int label = arc.label();
+            if (label == SynonymMap.WORD_SEPARATOR) {
+                // the end of the first word of a multi-word input
+                words.add(word.toString());
+            } else if (label != FST.END_LABEL) {
+                final int length = word.length();
+                word.appendCodePoint(label);
+                if (arc.isFinal()) {
+                    // a single word input
+                    words.add(word.toString());
+                }
+                collect(fst, reader, arc, word, words);
+                word.setLength(length);
+            }
+            if (arc.isLast()) {
+                return;
+            }
+            fst.readNextArc(arc, reader);
+        }
+    }
+
+    /** The version of the synonyms the filter was built for * */
+    SynonymMap synonyms() {
+        return synonyms;
+    }
+
+    /** Whether a token may be the first word of an input, false if it is definitely not * */
+    public boolean mightStart(char[] buffer, int length) {
+        final long hash = hash(buffer, length);
+        final int h1 = (int) hash;
+        final int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < HASHES; i++) {
+            final int bit = (h1 + i * h2) & mask;
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long hash(char[] buffer, int length) {
+        // FNV-1a over the chars, finished with the mixer of murmur3
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ buffer[i]) * 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    /** Number of distinct first words * */
+    public int count() {
+        return count;
+    }
+
+    public long ramBytesUsed() {
+        return RamUsageEstimator.shallowSizeOfInstance(SynonymFirstTokens.class)
+                + RamUsageEstimator.sizeOf(bits);
+    }
+}
@@ -13,13 +13,24 @@
  */
 package io.telicent.elasticsearch;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.function.Function;
+import java.util.function.Supplier;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
 import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
 import org.elasticsearch.env.Environment;
 import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
@@ -31,28 +42,71 @@ import org.elasticsearch.index.analysis.TokenizerFactory;
 
 /**
  * Alternative implementation of the SynonymGraphTokenFilter which loads its dictionary from an
- * Elasticsearch index instead of a file. Used at search time only and not during indexing.
+ * Elasticsearch index instead of a file. Used at search time only and not during indexing. The
+ * index is read with the client of the node, without going through HTTP.
+ *
+ * <p>The synonyms are compiled in the background and swapped in once ready, the analyzers keep
+ * using the previous version until then.
  */
 public class SynonymGraphTokenFilterFactory extends AbstractTokenFilterFactory {
 
     public static final String DEFAULT_USERNAME = "elastic";
 
+    public static final String DEFAULT_INDEX = ".synonyms";
+
+    public static final String DEFAULT_TAG_FIELD = "tags";
+
+    public static final TimeValue DEFAULT_BUILD_TIMEOUT = TimeValue.timeValueSeconds(10);
+
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 10000;
+
     private final boolean expand;
     private final boolean lenient;
     private final String username;
     private final String password;
+    private final int pageSize;
+    private final int slices;
+    private final List<String> fields;
+    private final String tagField;
+    private final List<String> tags;
+    private final TimeValue buildTimeout;
+    private final int parallelism;
+    private final long maxMemory;
+    private final boolean incremental;
+    private final int compactionThreshold;
+    private final int maxExpansionsPerToken;
+    private final long maxGraphPaths;
+    private final int sampleInterval;
+    private final boolean prefilter;
 
     protected final String indexName;
-    protected final int port;
-    protected final String host = "localhost";
+
+    private final Environment env;
+    private final Client client;
+    private final SynonymMapCache cache;
+    private final Executor analysisExecutor;
+    private final SynonymArtifacts artifacts;
 
     SynonymGraphTokenFilterFactory(
-            IndexSettings indexSettings, Environment env, String name, Settings settings) {
+            IndexSettings indexSettings,
+            Environment env,
+            String name,
+            Settings settings,
+            Client client,
+            SynonymMapCache cache,
+            Executor analysisExecutor,
+            int analysisThreads,
+            SynonymArtifacts artifacts) {
         super(indexSettings, name, settings);
+        this.env = env;
+        this.client = client;
+        this.cache = cache;
+        this.analysisExecutor = analysisExecutor;
+        this.artifacts = artifacts;
 
         this.expand = settings.getAsBoolean("expand", true);
         this.lenient = settings.getAsBoolean("lenient", false);
-        this.indexName = settings.get("index", ".synonyms");
+        this.indexName = settings.get("index", DEFAULT_INDEX);
 
         String val = settings.get("username");
         if (val == null || val.isBlank()) {
@@ -63,7 +117,50 @@ public class SynonymGraphTokenFilterFactory extends AbstractTokenFilterFactory {
 
         this.password = settings.get("password");
 
-        this.port = env.settings().getAsInt("http.port", 9200);
+        this.pageSize = settings.getAsInt("page_size", IndexedSynonymParser.DEFAULT_PAGE_SIZE);
+        if (this.pageSize < 1) {
+            throw new IllegalArgumentException(
+                    "[page_size] must be positive for filter [" + name + "]");
+        }
+        this.slices = settings.getAsInt("slices", 1);
+        if (this.slices < 1) {
+            throw new IllegalArgumentException(
+                    "[slices] must be positive for filter [" + name + "]");
+        }
+        this.fields = settings.getAsList("fields", Collections.emptyList());
+        this.tagField = settings.get("tag_field", DEFAULT_TAG_FIELD);
+        this.tags = settings.getAsList("tags", Collections.emptyList());
+        this.buildTimeout = settings.getAsTime("build_timeout", DEFAULT_BUILD_TIMEOUT);
+        this.parallelism = settings.getAsInt("parallelism", analysisThreads);
+        if (this.parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "[parallelism] must be positive for filter [" + name + "]");
+        }
+        this.maxMemory = settings.getAsBytesSize("max_memory", new ByteSizeValue(-1)).getBytes();
+        this.incremental = settings.getAsBoolean("incremental", false);
+        this.compactionThreshold =
+                settings.getAsInt("compaction_threshold", DEFAULT_COMPACTION_THRESHOLD);
+        if (this.compactionThreshold < 1) {
+            throw new IllegalArgumentException(
+                    "[compaction_threshold] must be positive for filter [" + name + "]");
+        }
+        // not part of the key of the synonyms as only applied to the token streams
+        this.maxExpansionsPerToken = settings.getAsInt("max_expansions_per_token", -1);
+        if (this.maxExpansionsPerToken < -1 || this.maxExpansionsPerToken == 0) {
+            throw new IllegalArgumentException(
+                    "[max_expansions_per_token] must be positive or -1 for filter [" + name + "]");
+        }
+        this.maxGraphPaths = settings.getAsLong("max_graph_paths", -1L);
+        if (this.maxGraphPaths < -1 || this.maxGraphPaths == 0) {
+            throw new IllegalArgumentException(
+                    "[max_graph_paths] must be positive or -1 for filter [" + name + "]");
+        }
+        this.prefilter = settings.getAsBoolean("first_token_prefilter", false);
+        this.sampleInterval = settings.getAsInt("sample_interval", 0);
+        if (this.sampleInterval < 0) {
+            throw new IllegalArgumentException(
+                    "[sample_interval] must not be negative for filter [" + name + "]");
+        }
     }
 
     @Override
@@ -85,8 +182,72 @@ public class SynonymGraphTokenFilterFactory extends AbstractTokenFilterFactory {
             Function<String, TokenFilterFactory> allFilters) {
         final Analyzer analyzer =
                 buildSynonymAnalyzer(tokenizer, charFilters, previousTokenFilters, allFilters);
-        final SynonymMap synonyms = buildSynonyms(analyzer);
+        // the rules analyzed in parallel get analyzers of their own
+        final Supplier<Analyzer> analyzers =
+                () ->
+                        buildSynonymAnalyzer(
+                                tokenizer, charFilters, previousTokenFilters, allFilters);
+        final String fingerprint = fingerprint(tokenizer, charFilters, previousTokenFilters);
+        final SynonymMapCache.Key key =
+                new SynonymMapCache.Key(
+                        indexName,
+                        indexSettings.getIndexVersionCreated(),
+                        expand,
+                        lenient,
+                        fields,
+                        tagField,
+                        tags,
+                        fingerprint,
+                        incremental);
+        final SynonymsHolder synonyms =
+                cache.acquire(
+                        indexSettings,
+                        name(),
+                        key,
+                        new SynonymMapCache.Loader() {
+                            @Override
+                            public String changeToken() {
+                                return createParser(analyzer, analyzers, null, fingerprint)
+                                        .changeToken();
+                            }
+
+                            @Override
+                            public SynonymMap build(String token, SynonymBuildStats stats)
+                                    throws Exception {
+                                if (artifacts == null || token == null) {
+                                    return buildSynonyms(analyzer, analyzers, fingerprint, stats);
+                                }
+                                // read and written with the credentials of the filter
+                                final IndexedSynonymParser parser =
+                                        createParser(analyzer, analyzers, null, fingerprint);
+                                return artifacts.load(
+                                        key,
+                                        token,
+                                        parser::stashContext,
+                                        () -> budget(),
+                                        () ->
+                                                buildSynonyms(
+                                                        analyzer, analyzers, fingerprint, stats),
+                                        stats);
+                            }
+
+                            @Override
+                            public SynonymOverlay update(
+                                    SynonymOverlay previous,
+                                    String token,
+                                    SynonymBuildStats stats) {
+                                if (incremental == false) {
+                                    return null;
+                                }
+                                // the artifacts hold no snapshot of the documents to update from
+                                return updateSynonyms(
+                                        analyzer, analyzers, fingerprint, previous, token, stats);
+                            }
+                        },
+                        buildTimeout);
         final String name = name();
+        final SynonymFilterSamples samples =
+                synonyms.samples(indexSettings.getIndex().getName() + "/" + name, sampleInterval);
         return new TokenFilterFactory() {
             @Override
             public String name() {
@@ -95,9 +256,13 @@ public class SynonymGraphTokenFilterFactory extends AbstractTokenFilterFactory {
 
             @Override
             public TokenStream create(TokenStream tokenStream) {
-                return synonyms.fst == null
-                        ? tokenStream
-                        : new SynonymGraphFilter(tokenStream, synonyms, false);
+                return new IndexedSynonymGraphFilter(
+                        tokenStream,
+                        synonyms,
+                        maxExpansionsPerToken,
+                        maxGraphPaths,
+                        samples,
+                        prefilter);
             }
 
             @Override
@@ -107,24 +272,138 @@ public class SynonymGraphTokenFilterFactory extends AbstractTokenFilterFactory {
         };
     }
 
-    SynonymMap buildSynonyms(Analyzer analyzer) {
-        try {
-            IndexedSynonymParser parser =
-                    new IndexedSynonymParser(
-                            host,
-                            port,
-                            this.username,
-                            this.password,
-                            this.indexName,
-                            this.expand,
-                            true,
-                            this.lenient,
-                            analyzer);
+    /**
+     * @param fingerprint fingerprint of the analysis chain preceding the filter
+     */
+    IndexedSynonymParser createParser(
+            Analyzer analyzer,
+            Supplier<Analyzer> analyzers,
+            SynonymMemoryBudget budget,
+            String fingerprint) {
+        return new IndexedSynonymParser(
+                client,
+                this.username,
+                this.password,
+                this.indexName,
+                this.expand,
+                true,
+                this.lenient,
+                analyzer,
+                this.pageSize,
+                this.slices,
+                this.fields,
+                this.tagField,
+                this.tags,
+                analyzers,
+                this.analysisExecutor,
+                this.parallelism,
+                budget,
+                cache.termCache(),
+                fingerprint);
+    }
+
+    /** The memory budget of the filter for a version of the synonyms * */
+    private SynonymMemoryBudget budget() {
+        return new SynonymMemoryBudget(
+                cache.breaker(), maxMemory, indexSettings.getIndex().getName() + "/" + name());
+    }
+
+    /**
+     * Loads and compiles the synonyms within the memory budget of the filter, which applies to all
+     * the filters sharing the same synonyms when they are built on behalf of this one.
+     */
+    SynonymMap buildSynonyms(
+            Analyzer analyzer,
+            Supplier<Analyzer> analyzers,
+            String fingerprint,
+            SynonymBuildStats stats) {
+        IndexedSynonymParser parser = null;
+        try (SynonymMemoryBudget budget = budget()) {
+            parser = createParser(analyzer, analyzers, budget, fingerprint);
             parser.parse();
             return parser.build();
         } catch (Exception e) {
             throw new IllegalArgumentException("failed to build synonyms", e);
+        } finally {
+            if (parser != null) {
+                stats.add(parser.stats());
+            }
+        }
+    }
+
+    /**
+     * Loads the synonyms changed since the previous version within the memory budget of the filter,
+     * or all of them if there is no previous version.
+     */
+    SynonymOverlay updateSynonyms(
+            Analyzer analyzer,
+            Supplier<Analyzer> analyzers,
+            String fingerprint,
+            SynonymOverlay previous,
+            String token,
+            SynonymBuildStats stats) {
+        IndexedSynonymParser parser = null;
+        try (SynonymMemoryBudget budget = budget()) {
+            parser = createParser(analyzer, analyzers, budget, fingerprint);
+            return previous == null
+                    ? parser.parseOverlay(token, compactionThreshold)
+                    : parser.parseChanges(previous, token, compactionThreshold);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("failed to update synonyms", e);
+        } finally {
+            if (parser != null) {
+                stats.add(parser.stats());
+                // tells a delta apart from a full load
+                stats.source = parser.stats().source();
+            }
+        }
+    }
+
+    /**
+     * Summarises the analysis chain preceding this filter, two chains with the same fingerprint
+     * analyze the synonym rules identically and can share the same synonym map. The files the
+     * components read their word lists or rules from are part of it, so that a change to them leads
+     * to new synonyms when the analyzer is reloaded.
+     */
+    String fingerprint(
+            TokenizerFactory tokenizer,
+            List<CharFilterFactory> charFilters,
+            List<TokenFilterFactory> tokenFilters) {
+        final MessageDigest digest = MessageDigests.sha256();
+        updateDigest(digest, "tokenizer", tokenizer.name(), tokenizer);
+        for (CharFilterFactory charFilter : charFilters) {
+            updateDigest(digest, "char_filter", charFilter.name(), charFilter);
+        }
+        for (TokenFilterFactory tokenFilter : tokenFilters) {
+            updateDigest(digest, "filter", tokenFilter.name(), tokenFilter);
+        }
+        return MessageDigests.toHexString(digest.digest());
+    }
+
+    private void updateDigest(MessageDigest digest, String type, String name, Object factory) {
+        // the settings of the components defined in the index, empty for the built-in ones
+        final Settings componentSettings =
+                indexSettings.getSettings().getAsSettings("index.analysis." + type + "." + name);
+        final String description =
+                type + ":" + name + ":" + factory.getClass().getName() + ":" + componentSettings;
+        digest.update(description.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        for (String key : componentSettings.keySet()) {
+            if (key.endsWith("_path") && env != null) {
+                updateDigest(digest, env.configFile().resolve(componentSettings.get(key)));
+            }
+        }
+    }
+
+    /** Adds the content of a file, resolved like the components of the chain do * */
+    private static void updateDigest(MessageDigest digest, Path file) {
+        try {
+            digest.update(Files.readAllBytes(file));
+        } catch (IOException e) {
+            // the component fails to load it as well
+            digest.update(e.getClass().getName().getBytes(StandardCharsets.UTF_8));
         }
+        digest.update((byte) 0);
     }
 
     Analyzer buildSynonymAnalyzer(
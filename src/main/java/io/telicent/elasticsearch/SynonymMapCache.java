@@ -0,0 +1,560 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.Version;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.IndexSettings;
+
+/**
+ * Node-wide cache of the compiled synonym maps. Analyzers which load the same synonym index with
+ * the same settings and the same analysis chain share a single {@link SynonymMap} instead of
+ * fetching and compiling their own copy.
+ *
+ * <p>The synonyms are compiled in the background, see {@link SynonymsHolder}.
+ *
+ * <p>Each analyzer holds a lease on the entry it uses, the leases are grouped by scope (the index
+ * the analyzer belongs to) and released all at once when that index is removed from the node. An
+ * entry is evicted when its last lease is released. The scopes are only weakly referenced: the
+ * leases of a scope which is dropped without being released, such as the indices created
+ * temporarily by Elasticsearch to validate settings, are released once it is garbage collected.
+ *
+ * <p>The compiled maps are accounted in a circuit breaker while cached.
+ */
+public class SynonymMapCache {
+
+    private static final Logger logger = LogManager.getLogger(SynonymMapCache.class);
+
+    private final Map<Key, SynonymsHolder> entries = new HashMap<>();
+
+    private final Set<Lease> leases = new HashSet<>();
+
+    /** Leases whose scope has been garbage collected * */
+    private final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+    private final AtomicLong reloadsSkipped = new AtomicLong();
+
+    private final Executor executor;
+
+    private final SynonymsStore store;
+
+    private final int expansionCacheSize;
+
+    private final CircuitBreaker breaker;
+
+    private final SynonymTermCache termCache;
+
+    private final SynonymsReloader.Scheduler scheduler;
+
+    /**
+     * @param executor runs the compilation of the synonyms
+     * @param store where to keep a copy of the compiled synonyms, can be null
+     */
+    public SynonymMapCache(Executor executor, SynonymsStore store) {
+        this(executor, store, 0);
+    }
+
+    /**
+     * @param expansionCacheSize number of token sequences whose expansion is cached per map, 0 to
+     *     disable the cache
+     */
+    public SynonymMapCache(Executor executor, SynonymsStore store, int expansionCacheSize) {
+        this(executor, store, expansionCacheSize, new NoopCircuitBreaker("synonyms"));
+    }
+
+    /**
+     * @param breaker accounts for the memory of the builds and of the cached maps
+     */
+    public SynonymMapCache(
+            Executor executor,
+            SynonymsStore store,
+            int expansionCacheSize,
+            CircuitBreaker breaker) {
+        this(executor, store, expansionCacheSize, breaker, null);
+    }
+
+    /**
+     * @param termCache the terms analyzed by the builds, kept between them, can be null
+     */
+    public SynonymMapCache(
+            Executor executor,
+            SynonymsStore store,
+            int expansionCacheSize,
+            CircuitBreaker breaker,
+            SynonymTermCache termCache) {
+        this(executor, store, expansionCacheSize, breaker, termCache, null);
+    }
+
+    /**
+     * @param scheduler tries the builds which have to wait again later, can be null to fail them
+     */
+    public SynonymMapCache(
+            Executor executor,
+            SynonymsStore store,
+            int expansionCacheSize,
+            CircuitBreaker breaker,
+            SynonymTermCache termCache,
+            SynonymsReloader.Scheduler scheduler) {
+        this.executor = executor;
+        this.store = store;
+        this.expansionCacheSize = expansionCacheSize;
+        this.breaker = breaker;
+        this.termCache = termCache;
+        this.scheduler = scheduler;
+    }
+
+    /** The breaker the builds of the synonyms should account their memory in * */
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    /** The terms of the rules analyzed by the builds of the synonyms, null if not cached * */
+    public SynonymTermCache termCache() {
+        return termCache;
+    }
+
+    /** Loads the synonyms of an entry * */
+    public interface Loader {
+
+        /**
+         * Returns a token which changes whenever the content of the synonym index does, null if it
+         * cannot be determined.
+         */
+        String changeToken() throws Exception;
+
+        /**
+         * Loads the synonyms and compiles them. Fails if any of the synonyms could not be read, a
+         * partial map would replace the previous version in the analyzers and in the store. Throws
+         * a {@link RetryException} to be called again later rather than wait for the synonyms.
+         *
+         * @param token the change token of the synonym index, null if unknown
+         * @param stats filled in with the measures of the compilation, even if it fails
+         */
+        SynonymMap build(String token, SynonymBuildStats stats) throws Exception;
+
+        /**
+         * Loads the synonyms incrementally, as an overlay of the documents changed since the
+         * previous version on top of it.
+         *
+         * @param previous the version to update, null to load all the synonyms
+         * @param token the change token of the synonym index, null if unknown
+         * @param stats filled in with the measures of the compilation, even if it fails
+         * @return the new version, null if the synonyms are not loaded incrementally
+         */
+        default SynonymOverlay update(
+                SynonymOverlay previous, String token, SynonymBuildStats stats) throws Exception {
+            return null;
+        }
+    }
+
+    /**
+     * Thrown by a loader which has to wait for the synonyms, the build is tried again after the
+     * delay without holding a thread of the executor in the meantime.
+     */
+    public static final class RetryException extends Exception {
+        private final TimeValue delay;
+
+        public RetryException(TimeValue delay) {
+            super("retry the build of the synonyms in " + delay, null, false, false);
+            this.delay = delay;
+        }
+
+        public TimeValue delay() {
+            return delay;
+        }
+    }
+
+    /**
+     * Returns the holder of the synonym map for the key and schedules a compilation of the
+     * synonyms. When they are already cached, the change token of the synonym index is checked
+     * first and the map is compiled again only if the index was modified since. A second
+     * acquisition by the same owner means that its analyzer is being reloaded, if the change token
+     * is not available the map is then compiled again regardless. Acquiring another key from the
+     * same owner releases its lease on the previous one.
+     *
+     * <p>If no version of the synonyms is available yet, waits for the compilation to complete but
+     * no longer than the timeout; the holder lets the tokens through unchanged until then.
+     *
+     * @param scope the object the lease is attached to, compared by identity
+     * @param owner name of the filter within the scope
+     */
+    public SynonymsHolder acquire(
+            Object scope, String owner, Key key, Loader loader, TimeValue timeout) {
+        final SynonymsHolder holder;
+        final boolean reload;
+        synchronized (this) {
+            releaseCollected();
+            releaseSuperseded(scope, owner, key);
+            final Lease lease = new Lease(scope, owner, key, collected);
+            holder =
+                    entries.computeIfAbsent(
+                            key,
+                            k ->
+                                    new SynonymsHolder(
+                                            k,
+                                            executor,
+                                            reloadsSkipped,
+                                            store,
+                                            expansionCacheSize,
+                                            breaker,
+                                            scheduler));
+            reload = leases.add(lease) == false;
+            if (reload == false) {
+                holder.refCount++;
+            }
+        }
+
+        final CompletableFuture<SynonymMap> build = holder.refresh(loader, reload);
+        if (holder.isLoaded() == false) {
+            try {
+                // a stored copy of the synonyms is used before the build completes
+                CompletableFuture.anyOf(build, holder.firstLoad())
+                        .get(timeout.millis(), TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                logger.warn(
+                        "Synonyms for {} not built within {}, they will be applied once ready",
+                        key,
+                        timeout);
+            } catch (ExecutionException e) {
+                // already logged by the holder, the tokens go through unchanged
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return holder;
+    }
+
+    /** Releases all the leases held within a scope, evicting the entries no longer used * */
+    public void releaseAll(Object scope) {
+        releaseAll(scope, true);
+    }
+
+    /**
+     * Releases all the leases held within a scope, evicting the entries no longer used
+     *
+     * @param discard whether to delete the stored copies of the evicted entries, kept when the node
+     *     shuts down so that they can be used when it restarts
+     */
+    public synchronized void releaseAll(Object scope, boolean discard) {
+        releaseCollected();
+        final Iterator<Lease> iter = leases.iterator();
+        while (iter.hasNext()) {
+            final Lease lease = iter.next();
+            if (lease.get() != scope) {
+                continue;
+            }
+            iter.remove();
+            release(lease, discard);
+        }
+    }
+
+    /**
+     * Releases the leases of the owner on other entries, left behind when its analysis chain
+     * changed while it was reloaded
+     */
+    private void releaseSuperseded(Object scope, String owner, Key key) {
+        final Iterator<Lease> iter = leases.iterator();
+        while (iter.hasNext()) {
+            final Lease lease = iter.next();
+            if (lease.get() == scope
+                    && lease.owner.equals(owner)
+                    && lease.key.equals(key) == false) {
+                iter.remove();
+                logger.debug("Released synonyms for {} superseded by {}", lease.key, key);
+                release(lease, true);
+            }
+        }
+    }
+
+    /** Releases the leases whose scope was garbage collected without being released * */
+    private void releaseCollected() {
+        Reference<?> reference;
+        while ((reference = collected.poll()) != null) {
+            if (leases.remove(reference)) {
+                logger.debug(
+                        "Released synonyms for collected scope of {}", ((Lease) reference).key);
+                release((Lease) reference, true);
+            }
+        }
+    }
+
+    private void release(Lease lease, boolean discard) {
+        final SynonymsHolder holder = entries.get(lease.key);
+        if (holder != null && --holder.refCount == 0) {
+            entries.remove(lease.key);
+            holder.release(discard);
+            logger.debug("Evicted synonyms for {}", lease.key);
+        }
+    }
+
+    /**
+     * Compiles again the synonyms loaded from the given indices, in the background
+     *
+     * @return the number of synonym maps scheduled for compilation
+     */
+    public int refresh(Collection<String> indices) {
+        final List<SynonymsHolder> holders = new ArrayList<>();
+        synchronized (this) {
+            releaseCollected();
+            for (Map.Entry<Key, SynonymsHolder> entry : entries.entrySet()) {
+                if (indices.contains(entry.getKey().index())) {
+                    holders.add(entry.getValue());
+                }
+            }
+        }
+        int refreshed = 0;
+        for (SynonymsHolder holder : holders) {
+            if (holder.refresh() != null) {
+                refreshed++;
+            }
+        }
+        return refreshed;
+    }
+
+    /** Number of reloads which reused the cached map as the synonyms had not changed * */
+    public long reloadsSkipped() {
+        return reloadsSkipped.get();
+    }
+
+    /** Statistics of the synonym maps currently cached * */
+    public synchronized List<SynonymMapStats> stats() {
+        releaseCollected();
+        // an index can hold several leases on the same entry while its settings are validated
+        final Map<Key, Set<String>> filters = new HashMap<>();
+        for (Lease lease : leases) {
+            // collected but not queued for release yet
+            if (lease.get() != null) {
+                filters.computeIfAbsent(lease.key, k -> new TreeSet<>()).add(lease.describe());
+            }
+        }
+        final List<SynonymMapStats> stats = new ArrayList<>(entries.size());
+        for (Map.Entry<Key, SynonymsHolder> entry : entries.entrySet()) {
+            final Set<String> users = filters.getOrDefault(entry.getKey(), Collections.emptySet());
+            stats.add(entry.getValue().stats(new ArrayList<>(users)));
+        }
+        return stats;
+    }
+
+    /** Number of synonym maps currently cached * */
+    public synchronized int size() {
+        releaseCollected();
+        return entries.size();
+    }
+
+    /** Identifies a compiled synonym map * */
+    public static final class Key {
+        private final String index;
+        private final Version indexVersion;
+        private final boolean expand;
+        private final boolean lenient;
+        private final List<String> fields;
+        private final String tagField;
+        private final List<String> tags;
+        private final String fingerprint;
+        private final boolean incremental;
+
+        /**
+         * @param index the index the synonyms are loaded from
+         * @param indexVersion version the index using the analyzer was created with
+         * @param fields the fields the synonyms are read from
+         * @param fingerprint fingerprint of the analysis chain preceding the filter
+         */
+        public Key(
+                String index,
+                Version indexVersion,
+                boolean expand,
+                boolean lenient,
+                List<String> fields,
+                String fingerprint) {
+            this(
+                    index,
+                    indexVersion,
+                    expand,
+                    lenient,
+                    fields,
+                    null,
+                    Collections.emptyList(),
+                    fingerprint);
+        }
+
+        /**
+         * @param tagField the field the documents are selected on
+         * @param tags the tags of the documents the synonyms are loaded from, all of them if empty
+         */
+        public Key(
+                String index,
+                Version indexVersion,
+                boolean expand,
+                boolean lenient,
+                List<String> fields,
+                String tagField,
+                List<String> tags,
+                String fingerprint) {
+            this(index, indexVersion, expand, lenient, fields, tagField, tags, fingerprint, false);
+        }
+
+        /**
+         * @param incremental whether the synonyms are loaded as an overlay *
+         */
+        public Key(
+                String index,
+                Version indexVersion,
+                boolean expand,
+                boolean lenient,
+                List<String> fields,
+                String tagField,
+                List<String> tags,
+                String fingerprint,
+                boolean incremental) {
+            this.index = index;
+            this.indexVersion = indexVersion;
+            this.expand = expand;
+            this.lenient = lenient;
+            this.fields = fields;
+            // the tag field does not matter when all the documents are read
+            this.tagField = tags.isEmpty() ? null : tagField;
+            this.tags = tags;
+            this.fingerprint = fingerprint;
+            this.incremental = incremental;
+        }
+
+        public String index() {
+            return index;
+        }
+
+        /** The documents the synonyms are read from, which their change token is for * */
+        String documents() {
+            return tags.isEmpty() ? index : index + ", tag_field=" + tagField + ", tags=" + tags;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return expand == key.expand
+                    && lenient == key.lenient
+                    && incremental == key.incremental
+                    && index.equals(key.index)
+                    && indexVersion.equals(key.indexVersion)
+                    && fields.equals(key.fields)
+                    && Objects.equals(tagField, key.tagField)
+                    && tags.equals(key.tags)
+                    && fingerprint.equals(key.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(
+                    index,
+                    indexVersion,
+                    expand,
+                    lenient,
+                    fields,
+                    tagField,
+                    tags,
+                    fingerprint,
+                    incremental);
+        }
+
+        @Override
+        public String toString() {
+            // the tags are left out when not used so that the stored synonyms keep their name
+            final String subset =
+                    tags.isEmpty() ? "" : ", tag_field=" + tagField + ", tags=" + tags;
+            return "[index="
+                    + index
+                    + ", version="
+                    + indexVersion
+                    + ", expand="
+                    + expand
+                    + ", lenient="
+                    + lenient
+                    + ", fields="
+                    + fields
+                    + subset
+                    + ", fingerprint="
+                    + fingerprint
+                    + (incremental ? ", incremental=true" : "")
+                    + "]";
+        }
+    }
+
+    /** Weak reference to the scope of the lease * */
+    private static final class Lease extends WeakReference<Object> {
+        private final String owner;
+        private final Key key;
+        // the scope is gone once collected
+        private final int hash;
+
+        private Lease(Object scope, String owner, Key key, ReferenceQueue<Object> queue) {
+            super(scope, queue);
+            this.owner = owner;
+            this.key = key;
+            this.hash = Objects.hash(System.identityHashCode(scope), owner, key);
+        }
+
+        /** The filter holding the lease, qualified with the name of its index when known * */
+        private String describe() {
+            final Object scope = get();
+            if (scope instanceof IndexSettings) {
+                return ((IndexSettings) scope).getIndex().getName() + "/" + owner;
+            }
+            return owner;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Lease lease = (Lease) o;
+            // a collected scope is only equal to its own lease
+            final Object scope = get();
+            return scope != null
+                    && scope == lease.get()
+                    && owner.equals(lease.owner)
+                    && key.equals(lease.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.DataOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefHash;
+import org.apache.lucene.util.fst.ByteSequenceOutputs;
+import org.apache.lucene.util.fst.FST;
+
+/**
+ * Writes and reads a compiled {@link SynonymMap}: its FST and the table of the words the outputs of
+ * the FST point to. The words are written in the order of their ids so that adding them back to an
+ * empty hash gives them the same ids.
+ */
+public final class SynonymMapSerializer {
+
+    private SynonymMapSerializer() {}
+
+    public static void write(SynonymMap map, DataOutput out) throws IOException {
+        out.writeVInt(map.maxHorizontalContext);
+
+        final BytesRef scratch = new BytesRef();
+        final int size = map.words.size();
+        out.writeVInt(size);
+        for (int ord = 0; ord < size; ord++) {
+            map.words.get(ord, scratch);
+            out.writeVInt(scratch.length);
+            out.writeBytes(scratch.bytes, scratch.offset, scratch.length);
+        }
+
+        out.writeByte((byte) (map.fst == null ? 0 : 1));
+        if (map.fst != null) {
+            map.fst.save(out, out);
+        }
+    }
+
+    public static SynonymMap read(DataInput in) throws IOException {
+        final int maxHorizontalContext = in.readVInt();
+
+        final BytesRefHash words = new BytesRefHash();
+        final int size = in.readVInt();
+        final BytesRef scratch = new BytesRef();
+        for (int ord = 0; ord < size; ord++) {
+            final int length = in.readVInt();
+            if (scratch.bytes.length < length) {
+                scratch.bytes = new byte[length];
+            }
+            in.readBytes(scratch.bytes, 0, length);
+            scratch.length = length;
+            if (words.add(scratch) != ord) {
+                throw new IOException("Duplicate word in serialized synonyms at " + ord);
+            }
+        }
+
+        FST<BytesRef> fst = null;
+        if (in.readByte() == 1) {
+            fst = new FST<>(in, in, ByteSequenceOutputs.getSingleton());
+        }
+        return new SynonymMap(fst, words, maxHorizontalContext);
+    }
+}
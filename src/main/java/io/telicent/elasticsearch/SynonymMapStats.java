@@ -0,0 +1,348 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.xcontent.ToXContentObject;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/** Statistics of a synonym map cached on a node, as returned by the _synonyms/stats endpoint * */
+public class SynonymMapStats implements Writeable, ToXContentObject {
+
+    private final String index;
+    private final List<String> filters;
+    private final boolean loaded;
+    private final long version;
+    private final String changeToken;
+    private final String source;
+    private final long loadedAt;
+    private final long memorySize;
+    private final int deltaSize;
+    private final long rulesLoaded;
+    private final long rulesSkipped;
+    private final long ruleFailures;
+    private final long fetchNanos;
+    private final long analyzeNanos;
+    private final long buildNanos;
+    private final long termCacheHits;
+    private final long termCacheMisses;
+    private final long builds;
+    private final long buildFailures;
+    private final long reloads;
+    private final long reloadsSkipped;
+    private final long expansionsCapped;
+    private final int expansionsCached;
+    private final long expansionHits;
+    private final long expansionMisses;
+    private final long expansionEvictions;
+    private final Map<String, SynonymFilterSamples.Stats> samples;
+
+    /**
+     * @param index the index the synonyms are loaded from
+     * @param filters the filters using the map, as index/filter
+     * @param version incremented each time a new version of the map is published
+     * @param source where the version in use came from: index, store, delta or compaction
+     * @param loadedAt time in millis at which the version in use was published
+     * @param deltaSize number of inputs changed since the base, when loaded incrementally
+     * @param lastBuild measures of the last compilation, can be null
+     * @param expansions cache of the expansions of the synonyms, can be null
+     * @param expansionsCapped token streams given their original tokens as their expansion went
+     *     over a bound
+     * @param samples measures of the streams sampled by the filters, by index/filter
+     */
+    SynonymMapStats(
+            String index,
+            List<String> filters,
+            boolean loaded,
+            long version,
+            String changeToken,
+            String source,
+            long loadedAt,
+            long memorySize,
+            int deltaSize,
+            SynonymBuildStats lastBuild,
+            SynonymExpansionCache expansions,
+            long builds,
+            long buildFailures,
+            long reloads,
+            long reloadsSkipped,
+            long expansionsCapped,
+            Map<String, SynonymFilterSamples.Stats> samples) {
+        this.index = index;
+        this.filters = filters;
+        this.loaded = loaded;
+        this.version = version;
+        this.changeToken = changeToken;
+        this.source = source;
+        this.loadedAt = loadedAt;
+        this.memorySize = memorySize;
+        this.deltaSize = deltaSize;
+        final SynonymBuildStats build = lastBuild == null ? new SynonymBuildStats() : lastBuild;
+        this.rulesLoaded = build.rulesLoaded();
+        this.rulesSkipped = build.rulesSkipped();
+        this.ruleFailures = build.ruleFailures();
+        this.fetchNanos = build.fetchNanos();
+        this.analyzeNanos = build.analyzeNanos();
+        this.buildNanos = build.buildNanos();
+        this.termCacheHits = build.termCacheHits();
+        this.termCacheMisses = build.termCacheMisses();
+        this.builds = builds;
+        this.buildFailures = buildFailures;
+        this.reloads = reloads;
+        this.reloadsSkipped = reloadsSkipped;
+        this.expansionsCapped = expansionsCapped;
+        this.expansionsCached = expansions == null ? 0 : expansions.count();
+        this.expansionHits = expansions == null ? 0 : expansions.hits();
+        this.expansionMisses = expansions == null ? 0 : expansions.misses();
+        this.expansionEvictions = expansions == null ? 0 : expansions.evictions();
+        this.samples = new TreeMap<>(samples);
+    }
+
+    public SynonymMapStats(StreamInput in) throws IOException {
+        this.index = in.readString();
+        this.filters = in.readStringList();
+        this.loaded = in.readBoolean();
+        this.version = in.readVLong();
+        this.changeToken = in.readOptionalString();
+        this.source = in.readOptionalString();
+        this.loadedAt = in.readLong();
+        this.memorySize = in.readVLong();
+        this.deltaSize = in.readVInt();
+        this.rulesLoaded = in.readVLong();
+        this.rulesSkipped = in.readVLong();
+        this.ruleFailures = in.readVLong();
+        this.fetchNanos = in.readVLong();
+        this.analyzeNanos = in.readVLong();
+        this.buildNanos = in.readVLong();
+        this.termCacheHits = in.readVLong();
+        this.termCacheMisses = in.readVLong();
+        this.builds = in.readVLong();
+        this.buildFailures = in.readVLong();
+        this.reloads = in.readVLong();
+        this.reloadsSkipped = in.readVLong();
+        this.expansionsCapped = in.readVLong();
+        this.expansionsCached = in.readVInt();
+        this.expansionHits = in.readVLong();
+        this.expansionMisses = in.readVLong();
+        this.expansionEvictions = in.readVLong();
+        this.samples =
+                new TreeMap<>(in.readMap(StreamInput::readString, SynonymFilterSamples.Stats::new));
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(index);
+        out.writeStringCollection(filters);
+        out.writeBoolean(loaded);
+        out.writeVLong(version);
+        out.writeOptionalString(changeToken);
+        out.writeOptionalString(source);
+        out.writeLong(loadedAt);
+        out.writeVLong(memorySize);
+        out.writeVInt(deltaSize);
+        out.writeVLong(rulesLoaded);
+        out.writeVLong(rulesSkipped);
+        out.writeVLong(ruleFailures);
+        out.writeVLong(fetchNanos);
+        out.writeVLong(analyzeNanos);
+        out.writeVLong(buildNanos);
+        out.writeVLong(termCacheHits);
+        out.writeVLong(termCacheMisses);
+        out.writeVLong(builds);
+        out.writeVLong(buildFailures);
+        out.writeVLong(reloads);
+        out.writeVLong(reloadsSkipped);
+        out.writeVLong(expansionsCapped);
+        out.writeVInt(expansionsCached);
+        out.writeVLong(expansionHits);
+        out.writeVLong(expansionMisses);
+        out.writeVLong(expansionEvictions);
+        out.writeMap(samples, StreamOutput::writeString, (o, v) -> v.writeTo(o));
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("index", index);
+        builder.field("filters", filters);
+        builder.field("loaded", loaded);
+        builder.field("version", version);
+        builder.field("change_token", changeToken);
+        builder.field("source", source);
+        if (loaded) {
+            builder.timeField("loaded_at_millis", "loaded_at", loadedAt);
+        }
+        builder.humanReadableField(
+                "memory_size_in_bytes", "memory_size", new ByteSizeValue(memorySize));
+        builder.field("delta_entries", deltaSize);
+        builder.startObject("rules");
+        builder.field("loaded", rulesLoaded);
+        builder.field("skipped", rulesSkipped);
+        builder.field("failed", ruleFailures);
+        builder.endObject();
+        builder.startObject("last_build");
+        builder.humanReadableField("fetch_time_in_nanos", "fetch_time", nanos(fetchNanos));
+        builder.humanReadableField("analyze_time_in_nanos", "analyze_time", nanos(analyzeNanos));
+        builder.humanReadableField("build_time_in_nanos", "build_time", nanos(buildNanos));
+        builder.field(
+                "analyze_time_per_rule_in_nanos",
+                rulesLoaded == 0 ? 0 : analyzeNanos / rulesLoaded);
+        builder.field("term_cache_hits", termCacheHits);
+        builder.field("term_cache_misses", termCacheMisses);
+        builder.endObject();
+        builder.field("builds", builds);
+        builder.field("build_failures", buildFailures);
+        builder.field("reloads", reloads);
+        builder.field("reloads_skipped", reloadsSkipped);
+        builder.field("expansions_capped", expansionsCapped);
+        builder.startObject("expansion_cache");
+        builder.field("count", expansionsCached);
+        builder.field("hits", expansionHits);
+        builder.field("misses", expansionMisses);
+        builder.field("evictions", expansionEvictions);
+        final long lookups = expansionHits + expansionMisses;
+        builder.field("hit_rate", lookups == 0 ? 0.0 : (double) expansionHits / lookups);
+        builder.endObject();
+        if (samples.isEmpty() == false) {
+            builder.startObject("samples");
+            for (Map.Entry<String, SynonymFilterSamples.Stats> entry : samples.entrySet()) {
+                builder.field(entry.getKey());
+                entry.getValue().toXContent(builder, params);
+            }
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+
+    private static TimeValue nanos(long nanos) {
+        return new TimeValue(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public String getIndex() {
+        return index;
+    }
+
+    public List<String> getFilters() {
+        return filters;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public String getChangeToken() {
+        return changeToken;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public int getDeltaSize() {
+        return deltaSize;
+    }
+
+    public long getExpansionsCapped() {
+        return expansionsCapped;
+    }
+
+    public long getTermCacheHits() {
+        return termCacheHits;
+    }
+
+    public long getTermCacheMisses() {
+        return termCacheMisses;
+    }
+
+    public long getRulesLoaded() {
+        return rulesLoaded;
+    }
+
+    public long getRulesSkipped() {
+        return rulesSkipped;
+    }
+
+    public long getRuleFailures() {
+        return ruleFailures;
+    }
+
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    public long getAnalyzeNanos() {
+        return analyzeNanos;
+    }
+
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    public long getBuilds() {
+        return builds;
+    }
+
+    public long getBuildFailures() {
+        return buildFailures;
+    }
+
+    public long getReloads() {
+        return reloads;
+    }
+
+    public long getReloadsSkipped() {
+        return reloadsSkipped;
+    }
+
+    public int getExpansionsCached() {
+        return expansionsCached;
+    }
+
+    public long getExpansionHits() {
+        return expansionHits;
+    }
+
+    public long getExpansionMisses() {
+        return expansionMisses;
+    }
+
+    public long getExpansionEvictions() {
+        return expansionEvictions;
+    }
+
+    public Map<String, SynonymFilterSamples.Stats> getSamples() {
+        return samples;
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.core.Releasable;
+
+/**
+ * Memory used by a build of the synonyms, checked against the budget of the filter and accounted in
+ * the circuit breaker of the plugin. Exceeding either aborts the build with a {@link
+ * CircuitBreakingException}. The bytes are released from the breaker when the build is over, the
+ * compiled map is then accounted by its holder. Used by a single thread.
+ */
+public class SynonymMemoryBudget implements Releasable {
+
+    private final CircuitBreaker breaker;
+    private final long limit;
+    private final String label;
+
+    private long used;
+
+    /**
+     * @param limit maximum number of bytes, -1 for no limit other than the breaker
+     * @param label describes the build in the messages of the breaker
+     */
+    public SynonymMemoryBudget(CircuitBreaker breaker, long limit, String label) {
+        this.breaker = breaker;
+        this.limit = limit;
+        this.label = label;
+    }
+
+    /** Adds bytes to the estimate, fails if they do not fit * */
+    public void add(long bytes) {
+        final long total = used + bytes;
+        if (limit >= 0 && total > limit) {
+            throw new CircuitBreakingException(
+                    "["
+                            + label
+                            + "] synonyms would use ["
+                            + new ByteSizeValue(total)
+                            + "], which is larger than the limit of ["
+                            + new ByteSizeValue(limit)
+                            + "]",
+                    total,
+                    limit,
+                    CircuitBreaker.Durability.PERMANENT);
+        }
+        breaker.addEstimateBytesAndMaybeBreak(bytes, label);
+        used = total;
+    }
+
+    /** Replaces the estimate with the size of the compiled map, fails if it does not fit * */
+    public void set(long bytes) {
+        if (bytes > used) {
+            add(bytes - used);
+        } else {
+            breaker.addWithoutBreaking(bytes - used);
+            used = bytes;
+        }
+    }
+
+    /** Bytes currently accounted * */
+    public long used() {
+        return used;
+    }
+
+    @Override
+    public void close() {
+        breaker.addWithoutBreaking(-used);
+        used = 0;
+    }
+
+    /** Heap used by a compiled synonym map * */
+    static long ramBytesUsed(SynonymMap map) {
+        long bytes = map.words.ramBytesUsed();
+        if (map.fst != null) {
+            bytes += map.fst.ramBytesUsed();
+        }
+        return bytes;
+    }
+}
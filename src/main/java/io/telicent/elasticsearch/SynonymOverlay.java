@@ -0,0 +1,156 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.Map;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.IntsRefFSTEnum;
+
+/**
+ * A version of the synonyms loaded incrementally: a base map compiled in full now and then, and a
+ * small delta holding the inputs changed since, which the {@link OverlaySynonymGraphFilter} applies
+ * on top of the base. Both maps are built by {@link CountedSynonymMapBuilder}. The delta is merged
+ * into the base once it has grown past the compaction threshold.
+ */
+public class SynonymOverlay {
+
+    private final SynonymMap base;
+    private final SynonymMap delta;
+    private final int deltaSize;
+    private final SynonymSnapshot snapshot;
+    private final String baseToken;
+    private final int compactionThreshold;
+
+    /**
+     * @param delta the inputs changed since the base, null if none
+     * @param deltaSize number of inputs in the delta
+     * @param snapshot the documents the synonyms were loaded from
+     * @param baseToken change token of the synonym index the base was loaded at
+     * @param compactionThreshold number of inputs in the delta above which it is merged into the
+     *     base
+     */
+    SynonymOverlay(
+            SynonymMap base,
+            SynonymMap delta,
+            int deltaSize,
+            SynonymSnapshot snapshot,
+            String baseToken,
+            int compactionThreshold) {
+        this.base = base;
+        this.delta = delta;
+        this.deltaSize = deltaSize;
+        this.snapshot = snapshot;
+        this.baseToken = baseToken;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    public SynonymMap base() {
+        return base;
+    }
+
+    /** The inputs changed since the base, null if none * */
+    public SynonymMap delta() {
+        return delta;
+    }
+
+    public int deltaSize() {
+        return deltaSize;
+    }
+
+    SynonymSnapshot snapshot() {
+        return snapshot;
+    }
+
+    /** The change token of the synonym index the base was loaded at * */
+    public String baseToken() {
+        return baseToken;
+    }
+
+    /** Whether the delta should be merged into the base * */
+    public boolean compactionDue() {
+        return delta != null && deltaSize >= compactionThreshold;
+    }
+
+    /**
+     * Applies the mappings added and taken out by the documents changed since this version. The
+     * inputs they touch are copied to the delta with their outputs in this version, then changed.
+     *
+     * @param compactionThreshold the threshold of the new version, the settings can have changed
+     */
+    SynonymOverlay update(CountedSynonymMapBuilder changes, int compactionThreshold)
+            throws IOException {
+        final CountedSynonymMapBuilder next = new CountedSynonymMapBuilder();
+        // the inputs changed before stay in the delta
+        if (delta != null) {
+            final IntsRefFSTEnum<BytesRef> entries = new IntsRefFSTEnum<>(delta.fst);
+            IntsRefFSTEnum.InputOutput<BytesRef> entry;
+            while ((entry = entries.next()) != null) {
+                next.add(entry.input, entry.output, delta.words);
+            }
+        }
+        for (Map.Entry<IntsRef, CountedSynonymMapBuilder.Entry> change :
+                changes.entries().entrySet()) {
+            final IntsRef input = change.getKey();
+            if (change.getValue().isEmpty()) {
+                // the changes cancel out, as for a document indexed again as is
+                continue;
+            }
+            if (next.entries().containsKey(input) == false) {
+                final BytesRef output = CountedSynonymMapBuilder.get(base, input);
+                if (output != null) {
+                    next.add(input, output, base.words);
+                }
+            }
+            next.add(input, change.getValue(), changes.words());
+        }
+        final int size = next.entries().size();
+        return new SynonymOverlay(
+                base,
+                size == 0 ? null : next.build(true),
+                size,
+                snapshot,
+                baseToken,
+                compactionThreshold);
+    }
+
+    /**
+     * Merges the delta into the base
+     *
+     * @param token the change token of the synonym index the delta was loaded at
+     */
+    SynonymOverlay compact(String token) throws IOException {
+        if (delta == null) {
+            return this;
+        }
+        return new SynonymOverlay(
+                CountedSynonymMapBuilder.merge(base, delta),
+                null,
+                0,
+                snapshot,
+                token,
+                compactionThreshold);
+    }
+
+    /** Heap used by the maps and the copy of the documents * */
+    long ramBytesUsed() {
+        long bytes = SynonymMemoryBudget.ramBytesUsed(base) + snapshot.ramBytesUsed();
+        if (delta != null) {
+            bytes += SynonymMemoryBudget.ramBytesUsed(delta);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.bytes.BytesReference;
+
+/**
+ * Copy of the sources of the documents the synonyms were loaded from, with their sequence numbers.
+ * The rules of a document which is updated or deleted are found in its previous source, so that
+ * their mappings can be taken out of the synonyms. Only used by the builds of the synonyms, which
+ * run one at a time.
+ */
+final class SynonymSnapshot {
+
+    /** Estimated bytes held for a document, besides its source and its key * */
+    private static final int DOCUMENT_BYTES = 96;
+
+    private final Map<String, Document> documents = new HashMap<>();
+
+    private final String indices;
+    private long seqNoThreshold;
+    private long ramBytesUsed;
+
+    /**
+     * @param indices identifies the synonym indices, a full load is needed when they change
+     * @param seqNoThreshold the documents with a higher sequence number may not be in the snapshot
+     */
+    SynonymSnapshot(String indices, long seqNoThreshold) {
+        this.indices = indices;
+        this.seqNoThreshold = seqNoThreshold;
+    }
+
+    String indices() {
+        return indices;
+    }
+
+    long seqNoThreshold() {
+        return seqNoThreshold;
+    }
+
+    /** The version of a document in the snapshot, null if it is not in it * */
+    Document get(String key) {
+        return documents.get(key);
+    }
+
+    Set<String> keys() {
+        return documents.keySet();
+    }
+
+    int size() {
+        return documents.size();
+    }
+
+    /** Adds or replaces a document, the source is copied * */
+    void put(String key, long seqNo, BytesReference source) {
+        final Document document =
+                new Document(seqNo, new BytesArray(BytesReference.toBytes(source)));
+        remove(key);
+        documents.put(key, document);
+        ramBytesUsed += document.ramBytesUsed(key);
+    }
+
+    void remove(String key) {
+        final Document removed = documents.remove(key);
+        if (removed != null) {
+            ramBytesUsed -= removed.ramBytesUsed(key);
+        }
+    }
+
+    /** Applies the changes the synonyms were updated with * */
+    void update(Map<String, Document> changed, Collection<String> deleted, long seqNoThreshold) {
+        for (Map.Entry<String, Document> entry : changed.entrySet()) {
+            put(entry.getKey(), entry.getValue().seqNo, entry.getValue().source);
+        }
+        for (String key : deleted) {
+            remove(key);
+        }
+        this.seqNoThreshold = seqNoThreshold;
+    }
+
+    /** Estimated heap used by the snapshot * */
+    long ramBytesUsed() {
+        return ramBytesUsed;
+    }
+
+    /** Version of a document * */
+    static final class Document {
+        final long seqNo;
+        final BytesReference source;
+
+        Document(long seqNo, BytesReference source) {
+            this.seqNo = seqNo;
+            this.source = source;
+        }
+
+        private long ramBytesUsed(String key) {
+            return DOCUMENT_BYTES + Character.BYTES * key.length() + source.length();
+        }
+    }
+}
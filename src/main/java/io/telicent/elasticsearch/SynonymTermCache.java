@@ -0,0 +1,166 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.unit.ByteSizeValue;
+
+/**
+ * Cache of the terms of the synonym rules as analyzed by the analysis chain preceding a filter,
+ * identified by its fingerprint. The same terms come up in many rules and in every compilation of
+ * the same synonyms, they are only analyzed once while cached. The terms which cannot be analyzed
+ * are cached too, so that they fail again the same way.
+ *
+ * <p>Shared by the compilations running on the node, including the partitions analyzed in parallel.
+ * A lookup has to cost less than the analysis of a short term, so the cache takes no lock and keeps
+ * no recency: the terms are added until it is full, then it is emptied. The terms of the chains no
+ * longer used go at the same time.
+ */
+public class SynonymTermCache {
+
+    /** Maximum size of the analyzed terms cached on the node, 0 disables the cache * */
+    public static final Setting<ByteSizeValue> CACHE_SIZE =
+            Setting.byteSizeSetting(
+                    "telicent.synonyms.term_cache.size",
+                    new ByteSizeValue(16 * 1024 * 1024),
+                    Property.NodeScope);
+
+    /** Estimated bytes held for an entry, besides its characters * */
+    private static final int ENTRY_BYTES = 96;
+
+    /** Analyzes a term, as done by the parser of the rules * */
+    interface Analysis {
+        CharsRef analyze(String text, CharsRefBuilder reuse) throws IOException;
+    }
+
+    private final Map<Term, Analyzed> cache = new ConcurrentHashMap<>();
+    private final long size;
+    private final AtomicLong used = new AtomicLong();
+
+    /**
+     * @param size maximum size of the entries in bytes
+     */
+    SynonymTermCache(long size) {
+        this.size = size;
+    }
+
+    /**
+     * Returns the analyzed term from the cache, or analyzes it and caches it
+     *
+     * @param fingerprint fingerprint of the analysis chain
+     * @param stats counts the hits and misses of the compilation
+     * @throws IllegalArgumentException if the term cannot be analyzed, even if cached
+     */
+    CharsRef analyze(
+            String fingerprint,
+            String text,
+            CharsRefBuilder reuse,
+            Analysis analysis,
+            SynonymBuildStats stats)
+            throws IOException {
+        final Term term = new Term(fingerprint, text);
+        final Analyzed cached = cache.get(term);
+        if (cached != null) {
+            stats.termCacheHits++;
+            if (cached.failure != null) {
+                throw new IllegalArgumentException(cached.failure);
+            }
+            reuse.copyChars(cached.chars, 0, cached.chars.length);
+            return reuse.get();
+        }
+        stats.termCacheMisses++;
+        final CharsRef analyzed;
+        try {
+            analyzed = analysis.analyze(text, reuse);
+        } catch (IllegalArgumentException e) {
+            put(term, new Analyzed(null, e.getMessage()));
+            throw e;
+        }
+        final char[] chars =
+                ArrayUtil.copyOfSubArray(
+                        analyzed.chars, analyzed.offset, analyzed.offset + analyzed.length);
+        put(term, new Analyzed(chars, null));
+        return analyzed;
+    }
+
+    private void put(Term term, Analyzed analyzed) {
+        final long bytes = term.ramBytesUsed() + analyzed.ramBytesUsed();
+        if (used.addAndGet(bytes) > size) {
+            // concurrent additions can go over a little before the cache is emptied
+            cache.clear();
+            used.set(0);
+        } else if (cache.putIfAbsent(term, analyzed) != null) {
+            used.addAndGet(-bytes);
+        }
+    }
+
+    /** Number of terms cached * */
+    public int count() {
+        return cache.size();
+    }
+
+    /** A term of a rule for an analysis chain * */
+    private static final class Term {
+        private final String fingerprint;
+        private final String text;
+
+        private Term(String fingerprint, String text) {
+            this.fingerprint = fingerprint;
+            this.text = text;
+        }
+
+        private long ramBytesUsed() {
+            // the fingerprint is shared by all the terms of the chain
+            return ENTRY_BYTES + Character.BYTES * text.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Term term = (Term) o;
+            return text.equals(term.text) && fingerprint.equals(term.fingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * fingerprint.hashCode() + text.hashCode();
+        }
+    }
+
+    /** The analyzed term, or the message of the failure to analyze it * */
+    private static final class Analyzed {
+        private final char[] chars;
+        private final String failure;
+
+        private Analyzed(char[] chars, String failure) {
+            this.chars = chars;
+            this.failure = failure;
+        }
+
+        private long ramBytesUsed() {
+            final int length =
+                    chars != null ? chars.length : failure == null ? 0 : failure.length();
+            return Character.BYTES * length;
+        }
+    }
+}
@@ -0,0 +1,494 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.BytesRefHash;
+import org.elasticsearch.ElasticsearchTimeoutException;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+
+/**
+ * Holds the current version of a compiled synonym map. New versions are compiled in the background
+ * and published in one step, until then the analyzers keep using the previous one. A failed
+ * compilation leaves the previous version in place. The version published is accounted in the
+ * circuit breaker until the holder is evicted from the cache.
+ */
+public class SynonymsHolder {
+
+    private static final Logger logger = LogManager.getLogger(SynonymsHolder.class);
+
+    /** Used until the synonyms have been loaded, lets the tokens through unchanged * */
+    static final SynonymMap EMPTY = new SynonymMap(null, new BytesRefHash(), 0);
+
+    private final SynonymMapCache.Key key;
+    private final Executor executor;
+    private final AtomicLong reloadsSkipped;
+    private final SynonymsStore store;
+    private final SynonymExpansionCache expansions;
+    private final CircuitBreaker breaker;
+    private final SynonymsReloader.Scheduler scheduler;
+
+    /** Completes when a first version of the synonyms is published * */
+    private final CompletableFuture<Void> firstLoad = new CompletableFuture<>();
+
+    private volatile SynonymMap current = EMPTY;
+    // the base and the delta of the synonyms when loaded incrementally, published together
+    private volatile SynonymOverlay overlay;
+    // the first words of the inputs of the version published, null until then
+    private volatile SynonymFirstTokens firstTokens;
+    private volatile String token;
+    private volatile boolean loaded;
+    private volatile long version;
+    private volatile String source;
+    private volatile long loadedAt;
+    private volatile SynonymBuildStats lastBuild;
+
+    private final AtomicLong builds = new AtomicLong();
+    private final AtomicLong buildFailures = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private final AtomicLong holderReloadsSkipped = new AtomicLong();
+    private final AtomicLong expansionsCapped = new AtomicLong();
+    // by index/filter, kept across the reloads of the filters
+    private final Map<String, SynonymFilterSamples> samples = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private CompletableFuture<SynonymMap> running;
+    private CompletableFuture<SynonymMap> next;
+    private SynonymMapCache.Loader nextLoader;
+    // the loader of the latest request, used when the synonym index is known to have changed
+    private SynonymMapCache.Loader loader;
+    private boolean nextReload;
+    private long accountedBytes;
+    private boolean released;
+    private boolean discarded;
+
+    // guarded by the cache
+    int refCount;
+
+    /**
+     * @param store where to keep a copy of the synonyms, can be null
+     * @param expansionCacheSize number of token sequences whose expansion is cached, 0 for none
+     * @param scheduler tries the builds which have to wait again later, can be null to fail them
+     */
+    SynonymsHolder(
+            SynonymMapCache.Key key,
+            Executor executor,
+            AtomicLong reloadsSkipped,
+            SynonymsStore store,
+            int expansionCacheSize,
+            CircuitBreaker breaker,
+            SynonymsReloader.Scheduler scheduler) {
+        this.key = key;
+        this.executor = executor;
+        this.reloadsSkipped = reloadsSkipped;
+        this.store = store;
+        this.expansions =
+                expansionCacheSize > 0 ? new SynonymExpansionCache(expansionCacheSize) : null;
+        this.breaker = breaker;
+        this.scheduler = scheduler;
+    }
+
+    /** The synonym map to use for the next token stream * */
+    public SynonymMap current() {
+        return current;
+    }
+
+    /**
+     * The synonyms loaded incrementally, their base is the same as the current map. Null if the
+     * synonyms are not loaded incrementally or not yet.
+     */
+    public SynonymOverlay overlay() {
+        return overlay;
+    }
+
+    /**
+     * The first words of the inputs of the synonyms, for the version they were built for. Null
+     * until a version has been published.
+     */
+    SynonymFirstTokens firstTokens() {
+        return firstTokens;
+    }
+
+    /** The cache of the expansions of the current synonyms, null if disabled * */
+    SynonymExpansionCache expansions() {
+        return expansions;
+    }
+
+    /** Counts a token stream whose expansion went over a bound of its filter * */
+    void expansionCapped() {
+        expansionsCapped.incrementAndGet();
+    }
+
+    /**
+     * Where a filter records the measures of the streams it samples. The measures carry on when the
+     * filter is reloaded with the same interval.
+     *
+     * @param filter the filter using the synonyms, as index/filter
+     * @param interval one stream in every interval is sampled, 0 for none
+     * @return null if the streams are not sampled
+     */
+    SynonymFilterSamples samples(String filter, int interval) {
+        if (interval <= 0) {
+            samples.remove(filter);
+            return null;
+        }
+        return samples.compute(
+                filter,
+                (k, v) ->
+                        v != null && v.interval() == interval
+                                ? v
+                                : new SynonymFilterSamples(interval));
+    }
+
+    /** Whether a version of the synonyms has been published yet * */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /** Completes when a first version of the synonyms has been published * */
+    CompletableFuture<Void> firstLoad() {
+        return firstLoad;
+    }
+
+    /**
+     * Schedules a compilation of the synonyms. If one is already running, another one is run once
+     * it has completed as the synonym index could have changed in the meantime; requests arriving
+     * until then are merged into it.
+     *
+     * @param reload whether the request comes from an analyzer being reloaded
+     * @return completes with the synonym map in use once the request has been served
+     */
+    synchronized CompletableFuture<SynonymMap> refresh(
+            SynonymMapCache.Loader loader, boolean reload) {
+        if (reload) {
+            reloads.incrementAndGet();
+        }
+        this.loader = loader;
+        if (running == null) {
+            final CompletableFuture<SynonymMap> future = new CompletableFuture<>();
+            running = future;
+            start(future, loader, reload);
+            return future;
+        }
+        if (next == null) {
+            next = new CompletableFuture<>();
+        }
+        nextLoader = loader;
+        nextReload |= reload;
+        return next;
+    }
+
+    /**
+     * Schedules a compilation of the synonyms with the loader of the latest request, as their index
+     * has changed. Skipped if the change token shows that the changes are not visible yet.
+     *
+     * @return null if the synonyms were never requested
+     */
+    synchronized CompletableFuture<SynonymMap> refresh() {
+        return loader == null ? null : refresh(loader, false);
+    }
+
+    private void start(
+            CompletableFuture<SynonymMap> future, SynonymMapCache.Loader loader, boolean reload) {
+        try {
+            executor.execute(
+                    new AbstractRunnable() {
+                        private volatile boolean retrying;
+                        // a build which timed out is only reported once, when it times out
+                        private final AtomicBoolean failed = new AtomicBoolean();
+                        private final AtomicBoolean over = new AtomicBoolean();
+
+                        @Override
+                        protected void doRun() throws Exception {
+                            try {
+                                future.complete(load(loader, reload, future));
+                            } catch (SynonymMapCache.RetryException e) {
+                                if (scheduler == null || future.isDone()) {
+                                    throw e;
+                                }
+                                // still the build running, it waits without holding a thread
+                                scheduler.schedule(() -> start(future, loader, reload), e.delay());
+                                retrying = true;
+                            }
+                        }
+
+                        @Override
+                        public void onFailure(Exception e) {
+                            if (retrying || failed.compareAndSet(false, true) == false) {
+                                return;
+                            }
+                            buildFailures.incrementAndGet();
+                            logger.error(
+                                    "Failed to build synonyms for {}, keeping the previous ones",
+                                    key,
+                                    e);
+                            // not published if it completes afterwards
+                            synchronized (SynonymsHolder.this) {
+                                future.completeExceptionally(e);
+                            }
+                        }
+
+                        @Override
+                        public void onRejection(Exception e) {
+                            logger.error("Could not schedule the build of synonyms for {}", key, e);
+                            future.completeExceptionally(e);
+                        }
+
+                        @Override
+                        public void onAfter() {
+                            if (retrying == false && over.compareAndSet(false, true)) {
+                                onCompleted();
+                            }
+                        }
+                    });
+        } catch (RuntimeException e) {
+            // rejected by the executor
+            logger.error("Could not schedule the build of synonyms for {}", key, e);
+            future.completeExceptionally(e);
+            onCompleted();
+        }
+    }
+
+    private synchronized void onCompleted() {
+        running = next;
+        next = null;
+        if (running != null) {
+            final SynonymMapCache.Loader loader = nextLoader;
+            final boolean reload = nextReload;
+            nextLoader = null;
+            nextReload = false;
+            start(running, loader, reload);
+        }
+    }
+
+    /**
+     * @param build completes with the map once loaded, the map is not published if it completes
+     *     earlier, as when the build times out
+     */
+    private SynonymMap load(
+            SynonymMapCache.Loader loader, boolean reload, CompletableFuture<?> build)
+            throws Exception {
+        // use the copy stored on disk straight away then check whether it is still valid
+        if (loaded == false && store != null) {
+            final SynonymsStore.Stored stored = store.read(key);
+            if (stored != null) {
+                logger.info("Loaded stored synonyms for {}", key);
+                publish(stored.map(), null, stored.token(), "store", build);
+                reload = false;
+            }
+        }
+
+        // get the token before loading so that changes made in the meantime
+        // are picked up the next time
+        final String latest = loader.changeToken();
+        if (loaded) {
+            final boolean unchanged = latest != null && latest.equals(token);
+            if (unchanged || (latest == null && reload == false)) {
+                if (reload) {
+                    reloadsSkipped.incrementAndGet();
+                    holderReloadsSkipped.incrementAndGet();
+                    logger.info("Synonyms unchanged for {}, skipping the reload", key);
+                } else {
+                    logger.debug("Reusing cached synonyms for {}", key);
+                }
+                return current;
+            }
+        }
+        final SynonymBuildStats stats = new SynonymBuildStats();
+        final SynonymMap map;
+        try {
+            final SynonymOverlay updated = loader.update(overlay, latest, stats);
+            if (updated != null) {
+                builds.incrementAndGet();
+                return publish(updated, latest, stats.source(), build);
+            }
+            map = loader.build(latest, stats);
+        } finally {
+            lastBuild = stats;
+        }
+        // only reached once all the synonyms were read, a failure keeps the previous version
+        builds.incrementAndGet();
+        publish(map, null, latest, stats.source(), build);
+        store(latest, map);
+        return map;
+    }
+
+    /** Publishes a version loaded incrementally, merging its delta into its base if it is due * */
+    private SynonymMap publish(
+            SynonymOverlay updated, String latest, String source, CompletableFuture<?> build)
+            throws IOException {
+        final SynonymOverlay previous = overlay;
+        if (updated.compactionDue()) {
+            publish(updated.base(), updated, latest, source, build);
+            final long start = System.nanoTime();
+            updated = updated.compact(latest);
+            logger.info(
+                    "Merged the changed synonyms into the base for {} in {} ms",
+                    key,
+                    (System.nanoTime() - start) / 1_000_000);
+            source = "compaction";
+        }
+        publish(updated.base(), updated, latest, source, build);
+        // only the base is stored, the synonyms are loaded in full again from it on a restart
+        if (previous == null || previous.base() != updated.base()) {
+            store(updated.baseToken(), updated.base());
+        }
+        return updated.base();
+    }
+
+    private void store(String token, SynonymMap map) {
+        if (store == null) {
+            return;
+        }
+        synchronized (this) {
+            if (released) {
+                return;
+            }
+        }
+        try {
+            store.write(key, token, map);
+        } catch (IOException e) {
+            logger.warn("Could not store the synonyms for {}", key, e);
+        }
+        // evicted while being written
+        final boolean discard;
+        synchronized (this) {
+            discard = discarded;
+        }
+        if (discard) {
+            store.delete(key);
+        }
+    }
+
+    /**
+     * @param overlay the version the map is the base of, null if not loaded incrementally
+     */
+    private void publish(
+            SynonymMap map,
+            SynonymOverlay overlay,
+            String token,
+            String source,
+            CompletableFuture<?> build)
+            throws IOException {
+        final SynonymFirstTokens firstTokens =
+                SynonymFirstTokens.build(map, overlay != null ? overlay.delta() : null);
+        publish(map, overlay, firstTokens, token, source, build);
+    }
+
+    private synchronized void publish(
+            SynonymMap map,
+            SynonymOverlay overlay,
+            SynonymFirstTokens firstTokens,
+            String token,
+            String source,
+            CompletableFuture<?> build) {
+        if (build.isDone()) {
+            // given up on, a later build may already have published a newer version
+            throw new ElasticsearchTimeoutException("build of the synonyms for {} timed out", key);
+        }
+        if (released == false) {
+            // the build has already been checked against the breaker
+            final long bytes =
+                    (overlay != null
+                                    ? overlay.ramBytesUsed()
+                                    : SynonymMemoryBudget.ramBytesUsed(map))
+                            + firstTokens.ramBytesUsed();
+            breaker.addWithoutBreaking(bytes - accountedBytes);
+            accountedBytes = bytes;
+        }
+        this.token = token;
+        // the readers which see the overlay use its base, the others the current map
+        this.overlay = overlay;
+        this.current = map;
+        this.firstTokens = firstTokens;
+        if (expansions != null) {
+            expansions.clear();
+        }
+        this.source = source;
+        this.loadedAt = System.currentTimeMillis();
+        this.version++;
+        this.loaded = true;
+        firstLoad.complete(null);
+    }
+
+    /**
+     * Called once evicted from the cache, the synonyms stop being accounted in the breaker
+     *
+     * @param discard whether to delete the stored copy
+     */
+    void release(boolean discard) {
+        synchronized (this) {
+            breaker.addWithoutBreaking(-accountedBytes);
+            accountedBytes = 0;
+            released = true;
+            discarded = discard;
+        }
+        if (discard && store != null) {
+            store.delete(key);
+        }
+    }
+
+    /**
+     * Statistics of the synonyms held
+     *
+     * @param filters the filters using them, as index/filter
+     */
+    SynonymMapStats stats(List<String> filters) {
+        final SynonymOverlay overlay = this.overlay;
+        final SynonymFirstTokens firstTokens = this.firstTokens;
+        final long memorySize =
+                (overlay != null
+                                ? overlay.ramBytesUsed()
+                                : SynonymMemoryBudget.ramBytesUsed(current))
+                        + (firstTokens != null ? firstTokens.ramBytesUsed() : 0);
+        // the filters no longer using the synonyms are left out
+        final Map<String, SynonymFilterSamples.Stats> sampled = new HashMap<>();
+        for (String filter : filters) {
+            final SynonymFilterSamples filterSamples = samples.get(filter);
+            if (filterSamples != null) {
+                sampled.put(filter, filterSamples.stats());
+            }
+        }
+        return new SynonymMapStats(
+                key.index(),
+                filters,
+                loaded,
+                version,
+                token,
+                source,
+                loadedAt,
+                memorySize,
+                overlay != null ? overlay.deltaSize() : 0,
+                lastBuild,
+                expansions,
+                builds.get(),
+                buildFailures.get(),
+                reloads.get(),
+                holderReloadsSkipped.get(),
+                expansionsCapped.get(),
+                sampled);
+    }
+}
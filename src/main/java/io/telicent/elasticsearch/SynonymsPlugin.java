@@ -15,27 +15,305 @@ package io.telicent.elasticsearch;
 
 import static org.elasticsearch.plugins.AnalysisPlugin.requiresAnalysisSettings;
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.unit.MemorySizeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.IndexSettings;
 import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.shard.IndexEventListener;
 import org.elasticsearch.indices.analysis.AnalysisModule.AnalysisProvider;
+import org.elasticsearch.indices.breaker.BreakerSettings;
+import org.elasticsearch.indices.cluster.IndicesClusterStateService.AllocatedIndices.IndexRemovalReason;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.AnalysisPlugin;
+import org.elasticsearch.plugins.CircuitBreakerPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.ReloadablePlugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
 
 /** Main class for Telicent Synonym Plugin * */
-public class SynonymsPlugin extends Plugin implements AnalysisPlugin, ReloadablePlugin {
+public class SynonymsPlugin extends Plugin
+        implements ActionPlugin, AnalysisPlugin, CircuitBreakerPlugin, ReloadablePlugin {
+
+    private static final Logger logger = LogManager.getLogger(SynonymsPlugin.class);
+
+    /** Type of the synonym filter in the analysis settings * */
+    public static final String FILTER_NAME = "index_synonym_graph";
+
+    /** Name of the thread pool compiling the synonyms * */
+    public static final String SYNONYMS_THREAD_POOL_NAME = "index_synonyms";
+
+    /** Name of the thread pool analyzing the synonym rules in parallel * */
+    public static final String ANALYSIS_THREAD_POOL_NAME = "index_synonyms_analysis";
+
+    /** Directory of the node data path where the compiled synonyms are stored * */
+    static final String STORE_DIRECTORY = "telicent-synonyms";
+
+    /**
+     * Name of the circuit breaker accounting for the compiled synonyms, its limit is set with
+     * breaker.synonyms.limit
+     */
+    public static final String BREAKER_NAME = "synonyms";
+
+    static final String DEFAULT_BREAKER_LIMIT = "20%";
+
+    private Client client;
+    private SynonymMapCache cache;
+    private ExecutorService analysisExecutor;
+    private int analysisThreads;
+    private SynonymArtifacts artifacts;
+    private CircuitBreaker breaker = new NoopCircuitBreaker(BREAKER_NAME);
+    private SynonymsReloader reloader;
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(
+                SynonymsStore.STORE_ENABLED,
+                SynonymsStore.PRUNE_DELAY,
+                SynonymExpansionCache.CACHE_SIZE,
+                SynonymTermCache.CACHE_SIZE,
+                SynonymArtifacts.SHARED_ENABLED,
+                SynonymArtifacts.SHARED_WAIT,
+                SynonymsReloader.ENABLED,
+                SynonymsReloader.QUIET_PERIOD,
+                SynonymsReloader.MAX_DELAY,
+                SynonymBuildScheduler.MAX_CONCURRENT_BUILDS,
+                SynonymBuildScheduler.BUILD_QUEUE_SIZE,
+                SynonymBuildScheduler.BUILD_MAX_TIME);
+    }
+
+    @Override
+    public Collection<Object> createComponents(
+            Client client,
+            ClusterService clusterService,
+            ThreadPool threadPool,
+            ResourceWatcherService resourceWatcherService,
+            ScriptService scriptService,
+            NamedXContentRegistry xContentRegistry,
+            Environment environment,
+            NodeEnvironment nodeEnvironment,
+            NamedWriteableRegistry namedWriteableRegistry,
+            IndexNameExpressionResolver indexNameExpressionResolver,
+            Supplier<RepositoriesService> repositoriesServiceSupplier) {
+        this.client = client;
+
+        final SynonymsReloader.Scheduler timer =
+                (task, delay) -> threadPool.schedule(task, delay, ThreadPool.Names.GENERIC);
+        SynonymsStore store = null;
+        if (SynonymsStore.STORE_ENABLED.get(environment.settings())
+                && nodeEnvironment.hasNodeFile()) {
+            store = new SynonymsStore(nodeEnvironment.nodeDataPaths()[0].resolve(STORE_DIRECTORY));
+            try {
+                store.prune();
+            } catch (IOException e) {
+                logger.warn("Could not prune the stored synonyms", e);
+            }
+            // leaves time for the indices to be allocated to the node again
+            timer.schedule(
+                    store::pruneUnused, SynonymsStore.PRUNE_DELAY.get(environment.settings()));
+        }
+        final long termCacheSize =
+                SynonymTermCache.CACHE_SIZE.get(environment.settings()).getBytes();
+        // the builds wait in the scheduler rather than in the queue of the thread pool
+        final SynonymBuildScheduler scheduler =
+                new SynonymBuildScheduler(
+                        threadPool.executor(SYNONYMS_THREAD_POOL_NAME),
+                        SynonymBuildScheduler.MAX_CONCURRENT_BUILDS.get(environment.settings()),
+                        SynonymBuildScheduler.BUILD_QUEUE_SIZE.get(environment.settings()),
+                        SynonymBuildScheduler.BUILD_MAX_TIME.get(environment.settings()),
+                        timer);
+        cache =
+                new SynonymMapCache(
+                        scheduler,
+                        store,
+                        SynonymExpansionCache.CACHE_SIZE.get(environment.settings()),
+                        breaker,
+                        termCacheSize > 0 ? new SynonymTermCache(termCacheSize) : null,
+                        timer);
+        analysisExecutor = threadPool.executor(ANALYSIS_THREAD_POOL_NAME);
+        analysisThreads = threadPool.info(ANALYSIS_THREAD_POOL_NAME).getMax();
+        if (SynonymArtifacts.SHARED_ENABLED.get(environment.settings())) {
+            artifacts =
+                    new SynonymArtifacts(
+                            client,
+                            nodeEnvironment.nodeId(),
+                            SynonymArtifacts.SHARED_WAIT.get(environment.settings()));
+        }
+        if (SynonymsReloader.ENABLED.get(environment.settings())) {
+            reloader =
+                    new SynonymsReloader(
+                            timer,
+                            System::nanoTime,
+                            SynonymsReloader.QUIET_PERIOD.get(environment.settings()),
+                            SynonymsReloader.MAX_DELAY.get(environment.settings()),
+                            indices -> refresh(client, indices));
+            clusterService.addListener(reloader);
+        }
+        // injected into the transport actions reporting the stats and refreshing the synonyms
+        return Arrays.asList(cache, scheduler);
+    }
+
+    /** Has the synonyms loaded from the indices compiled again on all the nodes * */
+    private static void refresh(Client client, List<String> indices) {
+        final ThreadContext threadContext = client.threadPool().getThreadContext();
+        // sent on behalf of the node rather than of the user who wrote to the index
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.markAsSystemContext();
+            client.execute(
+                    SynonymsRefreshAction.INSTANCE,
+                    new SynonymsRefreshRequest(indices),
+                    ActionListener.wrap(
+                            response -> {
+                                if (response.hasFailures()) {
+                                    logger.warn(
+                                            "Could not refresh the synonyms of {} on some nodes",
+                                            indices,
+                                            response.failures().get(0));
+                                }
+                            },
+                            e -> logger.warn("Could not refresh the synonyms of {}", indices, e)));
+        }
+    }
+
+    @Override
+    public BreakerSettings getCircuitBreaker(Settings settings) {
+        // overridden by the breaker.synonyms.* settings, which can be updated dynamically
+        return new BreakerSettings(
+                BREAKER_NAME,
+                MemorySizeValue.parseBytesSizeValueOrHeapRatio(
+                                DEFAULT_BREAKER_LIMIT, "breaker." + BREAKER_NAME + ".limit")
+                        .getBytes(),
+                1.0,
+                CircuitBreaker.Type.MEMORY,
+                CircuitBreaker.Durability.PERMANENT);
+    }
+
+    @Override
+    public void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(
+                new ActionHandler<>(
+                        SynonymsStatsAction.INSTANCE, TransportSynonymsStatsAction.class),
+                new ActionHandler<>(
+                        SynonymsRefreshAction.INSTANCE, TransportSynonymsRefreshAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(
+            Settings settings,
+            RestController restController,
+            ClusterSettings clusterSettings,
+            IndexScopedSettings indexScopedSettings,
+            SettingsFilter settingsFilter,
+            IndexNameExpressionResolver indexNameExpressionResolver,
+            Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestSynonymsStatsAction());
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        final int processors = EsExecutors.allocatedProcessors(settings);
+        final int size = Math.max(1, processors / 2);
+        return Arrays.asList(
+                new FixedExecutorBuilder(
+                        settings,
+                        SYNONYMS_THREAD_POOL_NAME,
+                        size,
+                        1000,
+                        "thread_pool." + SYNONYMS_THREAD_POOL_NAME),
+                // separate from the pool above which waits for the analysis to complete
+                new FixedExecutorBuilder(
+                        settings,
+                        ANALYSIS_THREAD_POOL_NAME,
+                        processors,
+                        1000,
+                        "thread_pool." + ANALYSIS_THREAD_POOL_NAME));
+    }
 
     @Override
     public Map<String, AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
         final Map<String, AnalysisProvider<TokenFilterFactory>> filters = new TreeMap<>();
         filters.put(
-                "index_synonym_graph",
-                requiresAnalysisSettings(SynonymGraphTokenFilterFactory::new));
+                FILTER_NAME,
+                requiresAnalysisSettings(
+                        (indexSettings, env, name, settings) ->
+                                new SynonymGraphTokenFilterFactory(
+                                        indexSettings,
+                                        env,
+                                        name,
+                                        settings,
+                                        client,
+                                        cache,
+                                        analysisExecutor,
+                                        analysisThreads,
+                                        artifacts)));
         return filters;
     }
 
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // the analyzers of an index stop using the cached synonyms once it is removed
+        indexModule.addIndexEventListener(
+                new IndexEventListener() {
+                    @Override
+                    public void afterIndexRemoved(
+                            Index index, IndexSettings indexSettings, IndexRemovalReason reason) {
+                        // the stored copies are used again when the node restarts
+                        cache.releaseAll(indexSettings, reason != IndexRemovalReason.SHUTDOWN);
+                    }
+                });
+        if (reloader != null) {
+            // only reacts to the writes to the synonym indices
+            indexModule.addIndexOperationListener(reloader);
+        }
+    }
+
+    SynonymMapCache getCache() {
+        return cache;
+    }
+
     @Override
     public void reload(Settings settings) throws Exception {
         // nothing special required it seems
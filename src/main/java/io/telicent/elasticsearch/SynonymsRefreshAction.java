@@ -0,0 +1,30 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import org.elasticsearch.action.ActionType;
+
+/**
+ * Compiles again on every node the synonyms loaded from indices which have changed. Sent by the
+ * nodes holding the primary shards of the synonym indices, with the context of the system.
+ */
+public class SynonymsRefreshAction extends ActionType<SynonymsRefreshResponse> {
+
+    public static final SynonymsRefreshAction INSTANCE = new SynonymsRefreshAction();
+    public static final String NAME = "internal:admin/synonyms/refresh";
+
+    private SynonymsRefreshAction() {
+        super(NAME, SynonymsRefreshResponse::new);
+    }
+}
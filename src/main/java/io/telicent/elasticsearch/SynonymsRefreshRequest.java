@@ -0,0 +1,72 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/** Request to compile again the synonyms loaded from the given indices, on all the nodes * */
+public class SynonymsRefreshRequest extends BaseNodesRequest<SynonymsRefreshRequest> {
+
+    private final List<String> indices;
+
+    public SynonymsRefreshRequest(List<String> indices) {
+        super((String[]) null);
+        this.indices = indices;
+    }
+
+    public SynonymsRefreshRequest(StreamInput in) throws IOException {
+        super(in);
+        this.indices = in.readStringList();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeStringCollection(indices);
+    }
+
+    public List<String> indices() {
+        return indices;
+    }
+
+    /** Request sent to each of the nodes * */
+    public static class NodeRequest extends BaseNodeRequest {
+
+        private final List<String> indices;
+
+        NodeRequest(List<String> indices) {
+            this.indices = indices;
+        }
+
+        public NodeRequest(StreamInput in) throws IOException {
+            super(in);
+            this.indices = in.readStringList();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeStringCollection(indices);
+        }
+
+        public List<String> indices() {
+            return indices;
+        }
+    }
+}
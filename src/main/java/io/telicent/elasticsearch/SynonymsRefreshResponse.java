@@ -0,0 +1,74 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+/** Number of synonym maps scheduled for compilation on each of the nodes * */
+public class SynonymsRefreshResponse
+        extends BaseNodesResponse<SynonymsRefreshResponse.NodeResponse> {
+
+    public SynonymsRefreshResponse(StreamInput in) throws IOException {
+        super(in);
+    }
+
+    public SynonymsRefreshResponse(
+            ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeResponse::new);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+        out.writeList(nodes);
+    }
+
+    /** Number of synonym maps scheduled for compilation on a node * */
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private final int refreshed;
+
+        NodeResponse(DiscoveryNode node, int refreshed) {
+            super(node);
+            this.refreshed = refreshed;
+        }
+
+        public NodeResponse(StreamInput in) throws IOException {
+            super(in);
+            this.refreshed = in.readVInt();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeVInt(refreshed);
+        }
+
+        public int getRefreshed() {
+            return refreshed;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.elasticsearch.cluster.ClusterChangedEvent;
+import org.elasticsearch.cluster.ClusterStateListener;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsException;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.shard.IndexingOperationListener;
+import org.elasticsearch.index.shard.ShardId;
+
+/**
+ * Watches the writes to the synonym indices and has the synonyms loaded from them compiled again on
+ * all the nodes, without waiting for the analyzers to be reloaded. The writes are seen by the nodes
+ * holding the primary shards, which wait for a quiet period without any write before asking all the
+ * nodes to compile the synonyms again, so that a bulk edit causes a single compilation. The
+ * compilation happens at the latest after the maximum delay under a continuous flow of writes.
+ *
+ * <p>The synonym indices are the ones named by the filters in the settings of the indices of the
+ * cluster. The changes are only picked up once visible to the searches, the quiet period should
+ * therefore be longer than the refresh interval of the synonym indices.
+ */
+public class SynonymsReloader implements IndexingOperationListener, ClusterStateListener {
+
+    private static final Logger logger = LogManager.getLogger(SynonymsReloader.class);
+
+    /** Whether the synonyms are compiled again when their index changes * */
+    public static final Setting<Boolean> ENABLED =
+            Setting.boolSetting("telicent.synonyms.auto_reload.enabled", true, Property.NodeScope);
+
+    /** Time without any write to the synonym indices before the synonyms are compiled again * */
+    public static final Setting<TimeValue> QUIET_PERIOD =
+            Setting.positiveTimeSetting(
+                    "telicent.synonyms.auto_reload.quiet_period",
+                    TimeValue.timeValueSeconds(5),
+                    Property.NodeScope);
+
+    /** Longest time the compilation is put off by a continuous flow of writes * */
+    public static final Setting<TimeValue> MAX_DELAY =
+            Setting.positiveTimeSetting(
+                    "telicent.synonyms.auto_reload.max_delay",
+                    TimeValue.timeValueMinutes(1),
+                    Property.NodeScope);
+
+    /** Runs a task after a delay * */
+    interface Scheduler {
+        void schedule(Runnable task, TimeValue delay);
+    }
+
+    private final Scheduler scheduler;
+    private final LongSupplier nanoClock;
+    private final long quietPeriod;
+    private final long maxDelay;
+    private final Consumer<List<String>> refresh;
+
+    private volatile Set<String> synonymIndices = Collections.emptySet();
+
+    // the synonym indices changed since the last refresh
+    private final Set<String> changed = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private volatile long firstChange;
+    private volatile long lastChange;
+
+    /**
+     * @param nanoClock relative time in nanoseconds
+     * @param refresh has the synonyms of the given indices compiled again on all the nodes
+     */
+    SynonymsReloader(
+            Scheduler scheduler,
+            LongSupplier nanoClock,
+            TimeValue quietPeriod,
+            TimeValue maxDelay,
+            Consumer<List<String>> refresh) {
+        this.scheduler = scheduler;
+        this.nanoClock = nanoClock;
+        this.quietPeriod = quietPeriod.nanos();
+        this.maxDelay = maxDelay.nanos();
+        this.refresh = refresh;
+    }
+
+    @Override
+    public void clusterChanged(ClusterChangedEvent event) {
+        if (event.metadataChanged()) {
+            watch(synonymIndices(event.state().metadata()));
+        }
+    }
+
+    /** Sets the indices whose writes are watched * */
+    void watch(Set<String> indices) {
+        this.synonymIndices = indices;
+    }
+
+    /** The synonym indices named by the filters of the indices * */
+    static Set<String> synonymIndices(Metadata metadata) {
+        final Set<String> indices = new HashSet<>();
+        for (IndexMetadata index : metadata) {
+            final Map<String, Settings> filters;
+            try {
+                filters = index.getSettings().getGroups("index.analysis.filter");
+            } catch (SettingsException e) {
+                // not valid for the analysis either
+                continue;
+            }
+            for (Settings filter : filters.values()) {
+                if (SynonymsPlugin.FILTER_NAME.equals(filter.get("type"))) {
+                    indices.add(filter.get("index", SynonymGraphTokenFilterFactory.DEFAULT_INDEX));
+                }
+            }
+        }
+        return indices;
+    }
+
+    @Override
+    public void postIndex(ShardId shardId, Engine.Index index, Engine.IndexResult result) {
+        if (index.origin() == Engine.Operation.Origin.PRIMARY
+                && result.getResultType() == Engine.Result.Type.SUCCESS) {
+            changed(shardId.getIndexName());
+        }
+    }
+
+    @Override
+    public void postDelete(ShardId shardId, Engine.Delete delete, Engine.DeleteResult result) {
+        if (delete.origin() == Engine.Operation.Origin.PRIMARY
+                && result.getResultType() == Engine.Result.Type.SUCCESS) {
+            changed(shardId.getIndexName());
+        }
+    }
+
+    /** Records a write to an index, a refresh is scheduled if it is a synonym index * */
+    void changed(String index) {
+        if (synonymIndices.contains(index) == false) {
+            return;
+        }
+        final long now = nanoClock.getAsLong();
+        lastChange = now;
+        changed.add(index);
+        if (scheduled.compareAndSet(false, true)) {
+            firstChange = now;
+            scheduler.schedule(this::run, TimeValue.timeValueNanos(quietPeriod));
+        }
+    }
+
+    private void run() {
+        final long now = nanoClock.getAsLong();
+        final long idle = now - lastChange;
+        final long waited = now - firstChange;
+        if (idle < quietPeriod && waited < maxDelay) {
+            final long delay = Math.min(quietPeriod - idle, maxDelay - waited);
+            scheduler.schedule(this::run, TimeValue.timeValueNanos(delay));
+            return;
+        }
+        // the writes from now on schedule another refresh
+        scheduled.set(false);
+        final List<String> indices = new ArrayList<>();
+        final Iterator<String> iter = changed.iterator();
+        while (iter.hasNext()) {
+            indices.add(iter.next());
+            iter.remove();
+        }
+        if (indices.isEmpty()) {
+            return;
+        }
+        logger.info(
+                "Synonym indices {} changed {} ms ago, compiling their synonyms again",
+                indices,
+                TimeUnit.NANOSECONDS.toMillis(idle));
+        try {
+            refresh.accept(indices);
+        } catch (RuntimeException e) {
+            logger.warn("Could not refresh the synonyms of {}", indices, e);
+        }
+    }
+}
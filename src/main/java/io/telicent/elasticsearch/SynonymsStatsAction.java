@@ -0,0 +1,27 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import org.elasticsearch.action.ActionType;
+
+/** Returns the statistics of the synonym maps cached on the nodes of the cluster * */
+public class SynonymsStatsAction extends ActionType<SynonymsStatsResponse> {
+
+    public static final SynonymsStatsAction INSTANCE = new SynonymsStatsAction();
+    public static final String NAME = "cluster:monitor/synonyms/stats";
+
+    private SynonymsStatsAction() {
+        super(NAME, SynonymsStatsResponse::new);
+    }
+}
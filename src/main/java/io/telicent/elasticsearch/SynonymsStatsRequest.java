@@ -0,0 +1,41 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+
+/** Request for the statistics of the synonyms on the given nodes, all of them by default * */
+public class SynonymsStatsRequest extends BaseNodesRequest<SynonymsStatsRequest> {
+
+    public SynonymsStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public SynonymsStatsRequest(StreamInput in) throws IOException {
+        super(in);
+    }
+
+    /** Request sent to each of the nodes * */
+    public static class NodeRequest extends BaseNodeRequest {
+
+        NodeRequest() {}
+
+        public NodeRequest(StreamInput in) throws IOException {
+            super(in);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.xcontent.ToXContentFragment;
+import org.elasticsearch.xcontent.XContentBuilder;
+
+/** Statistics of the synonyms on each of the nodes * */
+public class SynonymsStatsResponse extends BaseNodesResponse<SynonymsStatsResponse.NodeResponse>
+        implements ToXContentFragment {
+
+    public SynonymsStatsResponse(StreamInput in) throws IOException {
+        super(in);
+    }
+
+    public SynonymsStatsResponse(
+            ClusterName clusterName, List<NodeResponse> nodes, List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<NodeResponse> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(NodeResponse::new);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<NodeResponse> nodes) throws IOException {
+        out.writeList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (NodeResponse node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            builder.field("name", node.getNode().getName());
+            builder.field("builds");
+            node.getBuilds().toXContent(builder, params);
+            builder.startArray("synonyms");
+            for (SynonymMapStats stats : node.getStats()) {
+                stats.toXContent(builder, params);
+            }
+            builder.endArray();
+            builder.endObject();
+        }
+        return builder.endObject();
+    }
+
+    /** Statistics of the synonym maps cached on a node * */
+    public static class NodeResponse extends BaseNodeResponse {
+
+        private final List<SynonymMapStats> stats;
+        private final SynonymBuildScheduler.Stats builds;
+
+        NodeResponse(
+                DiscoveryNode node,
+                List<SynonymMapStats> stats,
+                SynonymBuildScheduler.Stats builds) {
+            super(node);
+            this.stats = stats;
+            this.builds = builds;
+        }
+
+        public NodeResponse(StreamInput in) throws IOException {
+            super(in);
+            this.stats = in.readList(SynonymMapStats::new);
+            this.builds = new SynonymBuildScheduler.Stats(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeList(stats);
+            builds.writeTo(out);
+        }
+
+        /** The compilations running and waiting on the node * */
+        public SynonymBuildScheduler.Stats getBuilds() {
+            return builds;
+        }
+
+        public List<SynonymMapStats> getStats() {
+            return stats;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.AccessController;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.ChecksumIndexInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.elasticsearch.common.hash.MessageDigests;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.core.TimeValue;
+
+/**
+ * Keeps a copy of the compiled synonyms in the data path of the node, so that they can be used
+ * straight away when the node restarts instead of being loaded and compiled again. Each file is
+ * tagged with the key of the synonyms and the change token of the synonym index they were compiled
+ * from.
+ *
+ * <p>A file is deleted once its synonyms are no longer used on the node, unless the node is
+ * shutting down. On startup, the files which cannot be used are deleted, and the files whose
+ * synonyms are not used within a delay after startup are too, such as those of an index deleted
+ * while the node was down.
+ */
+public class SynonymsStore {
+
+    public static final Setting<Boolean> STORE_ENABLED =
+            Setting.boolSetting("telicent.synonyms.store.enabled", true, Property.NodeScope);
+
+    /** How long after startup the files whose synonyms are not used are deleted * */
+    public static final Setting<TimeValue> PRUNE_DELAY =
+            Setting.positiveTimeSetting(
+                    "telicent.synonyms.store.prune_delay",
+                    TimeValue.timeValueHours(1),
+                    Property.NodeScope);
+
+    private static final Logger logger = LogManager.getLogger(SynonymsStore.class);
+
+    private static final String CODEC = "telicent_synonyms";
+    private static final int VERSION_START = 0;
+    private static final int VERSION_CURRENT = VERSION_START;
+
+    private static final String EXTENSION = ".syn";
+
+    private final Path path;
+
+    /** The files found on startup whose synonyms have not been used since * */
+    private final Set<String> unused = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param path directory holding the files, created if needed
+     */
+    public SynonymsStore(Path path) {
+        this.path = path;
+    }
+
+    /** Stored version of some synonyms * */
+    public static final class Stored {
+        private final String token;
+        private final SynonymMap map;
+
+        Stored(String token, SynonymMap map) {
+            this.token = token;
+            this.map = map;
+        }
+
+        /** Change token of the synonym index when the synonyms were compiled, can be null * */
+        public String token() {
+            return token;
+        }
+
+        public SynonymMap map() {
+            return map;
+        }
+    }
+
+    private static String fileName(SynonymMapCache.Key key) {
+        final byte[] digest =
+                MessageDigests.sha256().digest(key.toString().getBytes(StandardCharsets.UTF_8));
+        return MessageDigests.toHexString(digest) + EXTENSION;
+    }
+
+    /**
+     * Deletes the files which cannot be used, left over by an interrupted write or in another
+     * format, and keeps track of the others until their synonyms are used. Called on startup.
+     */
+    public void prune() throws IOException {
+        final List<String> deleted = new ArrayList<>();
+        doPrivileged(
+                () -> {
+                    if (Files.isDirectory(path) == false) {
+                        return null;
+                    }
+                    try (Directory directory = FSDirectory.open(path)) {
+                        for (String name : directory.listAll()) {
+                            if (readable(directory, name)) {
+                                unused.add(name);
+                            } else {
+                                directory.deleteFile(name);
+                                deleted.add(name);
+                            }
+                        }
+                    }
+                    return null;
+                });
+        if (deleted.isEmpty() == false) {
+            logger.info("Deleted {} stored synonyms which cannot be used", deleted.size());
+        }
+    }
+
+    private static boolean readable(Directory directory, String name) {
+        if (name.endsWith(EXTENSION) == false) {
+            return false;
+        }
+        try (IndexInput in = directory.openInput(name, IOContext.READONCE)) {
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /** Deletes the files found on startup whose synonyms have not been used since * */
+    public void pruneUnused() {
+        int deleted = 0;
+        for (String name : unused) {
+            if (unused.remove(name)) {
+                delete(name);
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            logger.info("Deleted {} stored synonyms not used since the node started", deleted);
+        }
+    }
+
+    /** Deletes the stored version of the synonyms, if any * */
+    public void delete(SynonymMapCache.Key key) {
+        final String name = fileName(key);
+        unused.remove(name);
+        delete(name);
+    }
+
+    /** Writes the synonyms, replacing any previous version * */
+    public void write(SynonymMapCache.Key key, String token, SynonymMap map) throws IOException {
+        final String name = fileName(key);
+        unused.remove(name);
+        final String tmpName = name + ".tmp";
+        doPrivileged(
+                () -> {
+                    try (Directory directory = FSDirectory.open(path)) {
+                        try (IndexOutput out = directory.createOutput(tmpName, IOContext.DEFAULT)) {
+                            CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+                            out.writeString(key.toString());
+                            out.writeByte((byte) (token == null ? 0 : 1));
+                            if (token != null) {
+                                out.writeString(token);
+                            }
+                            SynonymMapSerializer.write(map, out);
+                            CodecUtil.writeFooter(out);
+                        }
+                        directory.sync(Collections.singleton(tmpName));
+                        // atomically replaces the previous version
+                        directory.rename(tmpName, name);
+                        directory.syncMetaData();
+                    }
+                    return null;
+                });
+    }
+
+    /**
+     * Reads the stored version of the synonyms.
+     *
+     * @return the synonyms or null if there are none or they could not be read
+     */
+    public Stored read(SynonymMapCache.Key key) {
+        final String name = fileName(key);
+        unused.remove(name);
+        try {
+            return doPrivileged(
+                    () -> {
+                        // a memory mapped directory on most platforms
+                        try (Directory directory = FSDirectory.open(path);
+                                ChecksumIndexInput in =
+                                        directory.openChecksumInput(name, IOContext.READONCE)) {
+                            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+                            final String storedKey = in.readString();
+                            if (storedKey.equals(key.toString()) == false) {
+                                throw new CorruptIndexException(
+                                        "Stored synonyms are for " + storedKey, in);
+                            }
+                            final String token = in.readByte() == 1 ? in.readString() : null;
+                            final SynonymMap map = SynonymMapSerializer.read(in);
+                            CodecUtil.checkFooter(in);
+                            return new Stored(token, map);
+                        }
+                    });
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Could not read the stored synonyms for {}, discarding them", key, e);
+            delete(name);
+            return null;
+        }
+    }
+
+    private void delete(String name) {
+        try {
+            doPrivileged(
+                    () -> {
+                        try (Directory directory = FSDirectory.open(path)) {
+                            directory.deleteFile(name);
+                        }
+                        return null;
+                    });
+        } catch (NoSuchFileException e) {
+            // never stored
+        } catch (IOException e) {
+            logger.warn("Could not delete the stored synonyms in {}", name, e);
+        }
+    }
+
+    // still required by the security manager of Elasticsearch
+    @SuppressWarnings("removal")
+    private static <T> T doPrivileged(PrivilegedExceptionAction<T> action) throws IOException {
+        try {
+            return AccessController.doPrivileged(action);
+        } catch (PrivilegedActionException e) {
+            throw (IOException) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/** Schedules the compilation of the synonyms loaded from the changed indices on each node * */
+public class TransportSynonymsRefreshAction
+        extends TransportNodesAction<
+                SynonymsRefreshRequest,
+                SynonymsRefreshResponse,
+                SynonymsRefreshRequest.NodeRequest,
+                SynonymsRefreshResponse.NodeResponse> {
+
+    private final SynonymMapCache cache;
+
+    @Inject
+    public TransportSynonymsRefreshAction(
+            ThreadPool threadPool,
+            ClusterService clusterService,
+            TransportService transportService,
+            ActionFilters actionFilters,
+            SynonymMapCache cache) {
+        super(
+                SynonymsRefreshAction.NAME,
+                threadPool,
+                clusterService,
+                transportService,
+                actionFilters,
+                SynonymsRefreshRequest::new,
+                SynonymsRefreshRequest.NodeRequest::new,
+                ThreadPool.Names.MANAGEMENT,
+                SynonymsRefreshResponse.NodeResponse.class);
+        this.cache = cache;
+    }
+
+    @Override
+    protected SynonymsRefreshResponse newResponse(
+            SynonymsRefreshRequest request,
+            List<SynonymsRefreshResponse.NodeResponse> nodes,
+            List<FailedNodeException> failures) {
+        return new SynonymsRefreshResponse(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected SynonymsRefreshRequest.NodeRequest newNodeRequest(SynonymsRefreshRequest request) {
+        return new SynonymsRefreshRequest.NodeRequest(request.indices());
+    }
+
+    @Override
+    protected SynonymsRefreshResponse.NodeResponse newNodeResponse(
+            StreamInput in, DiscoveryNode node) throws IOException {
+        return new SynonymsRefreshResponse.NodeResponse(in);
+    }
+
+    @Override
+    protected SynonymsRefreshResponse.NodeResponse nodeOperation(
+            SynonymsRefreshRequest.NodeRequest request) {
+        // the compilations run in the background, the action does not wait for them
+        return new SynonymsRefreshResponse.NodeResponse(
+                clusterService.localNode(), cache.refresh(request.indices()));
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.List;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+/** Collects the statistics of the synonym maps cached on each of the nodes * */
+public class TransportSynonymsStatsAction
+        extends TransportNodesAction<
+                SynonymsStatsRequest,
+                SynonymsStatsResponse,
+                SynonymsStatsRequest.NodeRequest,
+                SynonymsStatsResponse.NodeResponse> {
+
+    private final SynonymMapCache cache;
+    private final SynonymBuildScheduler scheduler;
+
+    @Inject
+    public TransportSynonymsStatsAction(
+            ThreadPool threadPool,
+            ClusterService clusterService,
+            TransportService transportService,
+            ActionFilters actionFilters,
+            SynonymMapCache cache,
+            SynonymBuildScheduler scheduler) {
+        super(
+                SynonymsStatsAction.NAME,
+                threadPool,
+                clusterService,
+                transportService,
+                actionFilters,
+                SynonymsStatsRequest::new,
+                SynonymsStatsRequest.NodeRequest::new,
+                ThreadPool.Names.MANAGEMENT,
+                SynonymsStatsResponse.NodeResponse.class);
+        this.cache = cache;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    protected SynonymsStatsResponse newResponse(
+            SynonymsStatsRequest request,
+            List<SynonymsStatsResponse.NodeResponse> nodes,
+            List<FailedNodeException> failures) {
+        return new SynonymsStatsResponse(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected SynonymsStatsRequest.NodeRequest newNodeRequest(SynonymsStatsRequest request) {
+        return new SynonymsStatsRequest.NodeRequest();
+    }
+
+    @Override
+    protected SynonymsStatsResponse.NodeResponse newNodeResponse(StreamInput in, DiscoveryNode node)
+            throws IOException {
+        return new SynonymsStatsResponse.NodeResponse(in);
+    }
+
+    @Override
+    protected SynonymsStatsResponse.NodeResponse nodeOperation(
+            SynonymsStatsRequest.NodeRequest request) {
+        return new SynonymsStatsResponse.NodeResponse(
+                clusterService.localNode(), cache.stats(), scheduler.stats());
+    }
+}
@@ -0,0 +1,511 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.OffsetAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.elasticsearch.Version;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.core.TimeValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test class for IndexedSynonymGraphFilter * */
+public class IndexedSynonymGraphFilterTest {
+
+    private String[] rule = new String[] {"universe", "cosmos"};
+
+    private final SynonymMapCache.Loader loader =
+            new SynonymMapCache.Loader() {
+                @Override
+                public String changeToken() {
+                    return rule[1];
+                }
+
+                @Override
+                public SynonymMap build(String token, SynonymBuildStats stats) throws Exception {
+                    SynonymMap.Builder builder = new SynonymMap.Builder(true);
+                    builder.add(
+                            SynonymMap.Builder.join(rule[0].split(" "), new CharsRefBuilder()),
+                            new CharsRef(rule[1]),
+                            true);
+                    return builder.build();
+                }
+            };
+
+    private SynonymsHolder acquire(SynonymMapCache cache, Object scope) {
+        return cache.acquire(
+                scope,
+                "synonyms",
+                new SynonymMapCache.Key(
+                        ".synonyms", Version.CURRENT, true, false, Collections.emptyList(), "a"),
+                loader,
+                TimeValue.timeValueSeconds(1));
+    }
+
+    private static List<String> terms(Analyzer analyzer, String text) throws IOException {
+        List<String> terms = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("field", text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                terms.add(term.toString());
+            }
+            stream.end();
+        }
+        return terms;
+    }
+
+    /** Describes all the attributes of the tokens, as well as the final offset */
+    private static List<String> tokens(Analyzer analyzer, String text) throws IOException {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("field", text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posInc =
+                    stream.addAttribute(PositionIncrementAttribute.class);
+            PositionLengthAttribute posLen = stream.addAttribute(PositionLengthAttribute.class);
+            OffsetAttribute offset = stream.addAttribute(OffsetAttribute.class);
+            TypeAttribute type = stream.addAttribute(TypeAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(
+                        term
+                                + "/"
+                                + posInc.getPositionIncrement()
+                                + "/"
+                                + posLen.getPositionLength()
+                                + "/"
+                                + offset.startOffset()
+                                + "-"
+                                + offset.endOffset()
+                                + "/"
+                                + type.type());
+            }
+            stream.end();
+            tokens.add("end/" + offset.endOffset());
+        }
+        return tokens;
+    }
+
+    private static Analyzer analyzer(SynonymsHolder holder) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(
+                        tokenizer, new IndexedSynonymGraphFilter(tokenizer, holder));
+            }
+        };
+    }
+
+    @Test
+    /** A new version of the synonyms is used by the next stream, even when reused */
+    public void swappedOnReset() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope = new Object();
+        SynonymsHolder holder = acquire(cache, scope);
+        try (Analyzer analyzer = analyzer(holder)) {
+            Assert.assertEquals(
+                    Arrays.asList("the", "cosmos", "universe"), terms(analyzer, "the universe"));
+
+            rule = new String[] {"universe", "world"};
+            acquire(cache, scope);
+
+            Assert.assertEquals(
+                    Arrays.asList("the", "world", "universe"), terms(analyzer, "the universe"));
+        }
+    }
+
+    @Test
+    /** The cached expansions are replayed identically and dropped when the synonyms change */
+    public void cachedExpansions() throws Exception {
+        rule = new String[] {"big universe", "cosmos"};
+        Object scope = new Object();
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null, 10);
+        SynonymsHolder holder = acquire(cache, scope);
+        List<String> expected =
+                tokens(
+                        analyzer(acquire(new SynonymMapCache(Runnable::run, null), scope)),
+                        "a big universe ");
+        try (Analyzer analyzer = analyzer(holder)) {
+            Assert.assertEquals(expected, tokens(analyzer, "a big universe "));
+            Assert.assertEquals(0, holder.expansions().hits());
+            Assert.assertEquals(1, holder.expansions().count());
+
+            Assert.assertEquals(expected, tokens(analyzer, "a big universe "));
+            Assert.assertEquals(1, holder.expansions().hits());
+            Assert.assertEquals(1, holder.expansions().misses());
+
+            rule = new String[] {"big universe", "world"};
+            acquire(cache, scope);
+            Assert.assertEquals(0, holder.expansions().count());
+            Assert.assertEquals(
+                    Arrays.asList("a", "world", "big", "universe"),
+                    terms(analyzer, "a big universe "));
+        }
+    }
+
+    @Test
+    /** Long streams are analyzed as usual without being cached */
+    public void longStreamsNotCached() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < SynonymExpansionCache.MAX_TOKENS; i++) {
+            text.append("word").append(i).append(' ');
+        }
+        text.append("the universe");
+        Object scope = new Object();
+        List<String> expected =
+                tokens(
+                        analyzer(acquire(new SynonymMapCache(Runnable::run, null), scope)),
+                        text.toString());
+        SynonymsHolder holder = acquire(new SynonymMapCache(Runnable::run, null, 10), scope);
+        try (Analyzer analyzer = analyzer(holder)) {
+            Assert.assertEquals(expected, tokens(analyzer, text.toString()));
+            Assert.assertEquals(0, holder.expansions().count());
+        }
+    }
+
+    @Test
+    /** Tokens go through unchanged until the synonyms are loaded */
+    public void passThroughWhenEmpty() throws Exception {
+        SynonymsHolder holder =
+                new SynonymsHolder(
+                        null,
+                        Runnable::run,
+                        new AtomicLong(),
+                        null,
+                        0,
+                        new NoopCircuitBreaker("synonyms"),
+                        null);
+        try (Analyzer analyzer = analyzer(holder)) {
+            Assert.assertEquals(Arrays.asList("the", "universe"), terms(analyzer, "the universe"));
+        }
+    }
+
+    private static Analyzer analyzer(Function<TokenStream, TokenStream> filter) {
+        return new Analyzer() {
+            @Override
+            protected TokenStreamComponents createComponents(String fieldName) {
+                Tokenizer tokenizer = new WhitespaceTokenizer();
+                return new TokenStreamComponents(tokenizer, filter.apply(tokenizer));
+            }
+        };
+    }
+
+    private static CharsRef join(String words) {
+        return SynonymMap.Builder.join(words.split(" "), new CharsRefBuilder());
+    }
+
+    @Test
+    /** Without a delta, the overlay gives the same tokens as the synonym graph filter */
+    public void overlayWithoutDelta() throws Exception {
+        String[] vocabulary = {"a", "b", "c", "d", "e"};
+        Random random = new Random(0);
+        for (int round = 0; round < 20; round++) {
+            SynonymMap.Builder builder = new SynonymMap.Builder(true);
+            CountedSynonymMapBuilder counted = new CountedSynonymMapBuilder();
+            for (int i = 0; i < 10; i++) {
+                CharsRef input = join(phrase(random, vocabulary, 3));
+                CharsRef output = join(phrase(random, vocabulary, 2));
+                boolean includeOrig = random.nextBoolean();
+                builder.add(input, output, includeOrig);
+                counted.add(input, output, includeOrig, 1);
+            }
+            SynonymMap expected = builder.build();
+            SynonymMap base = counted.build(false);
+            String text = phrase(random, vocabulary, 12);
+            try (Analyzer lucene = analyzer(in -> new SynonymGraphFilter(in, expected, false));
+                    Analyzer overlay =
+                            analyzer(in -> new OverlaySynonymGraphFilter(in, base, null));
+                    Analyzer countedOnly =
+                            analyzer(in -> new SynonymGraphFilter(in, base, false))) {
+                Assert.assertEquals(tokens(lucene, text), tokens(overlay, text));
+                // the counts are ignored by the synonym graph filter
+                Assert.assertEquals(tokens(lucene, text), tokens(countedOnly, text));
+            }
+        }
+    }
+
+    @Test
+    /** The tokens which cannot start a match skip the lookup without changing the tokens */
+    public void firstTokensPrefilter() throws Exception {
+        String[] vocabulary = {"a", "b", "c", "d", "e"};
+        String[] text = {"a", "b", "c", "d", "e", "f", "g", "h", "i", "j"};
+        Random random = new Random(0);
+        for (int round = 0; round < 20; round++) {
+            SynonymMap.Builder builder = new SynonymMap.Builder(true);
+            Set<String> starts = new HashSet<>();
+            for (int i = 0; i < 5; i++) {
+                String input = phrase(random, vocabulary, 3);
+                starts.add(input.split(" ")[0]);
+                builder.add(join(input), join(phrase(random, text, 2)), random.nextBoolean());
+            }
+            SynonymMap map = builder.build();
+            SynonymFirstTokens firstTokens = SynonymFirstTokens.build(map, null);
+            Assert.assertEquals(starts.size(), firstTokens.count());
+            for (String start : starts) {
+                Assert.assertTrue(firstTokens.mightStart(start.toCharArray(), start.length()));
+            }
+            String phrase = phrase(random, text, 12);
+            try (Analyzer lucene = analyzer(in -> new SynonymGraphFilter(in, map, false));
+                    Analyzer prefiltered =
+                            analyzer(
+                                    in ->
+                                            new OverlaySynonymGraphFilter(
+                                                    in, map, null, firstTokens))) {
+                Assert.assertEquals(tokens(lucene, phrase), tokens(prefiltered, phrase));
+            }
+        }
+
+        // built along with each version of the synonyms
+        SynonymsHolder holder = acquire(new SynonymMapCache(Runnable::run, null), new Object());
+        Assert.assertSame(holder.current(), holder.firstTokens().synonyms());
+        Assert.assertFalse(holder.firstTokens().mightStart("cosmos".toCharArray(), 6));
+        try (Analyzer plain = analyzer(holder);
+                Analyzer prefiltered =
+                        analyzer(
+                                in ->
+                                        new IndexedSynonymGraphFilter(
+                                                in, holder, -1, -1, null, true))) {
+            Assert.assertEquals(
+                    tokens(plain, "the universe is big"),
+                    tokens(prefiltered, "the universe is big"));
+        }
+    }
+
+    private static String phrase(Random random, String[] vocabulary, int maxWords) {
+        StringBuilder phrase = new StringBuilder();
+        int words = 1 + random.nextInt(maxWords);
+        for (int i = 0; i < words; i++) {
+            if (i > 0) {
+                phrase.append(' ');
+            }
+            phrase.append(vocabulary[random.nextInt(vocabulary.length)]);
+        }
+        return phrase.toString();
+    }
+
+    @Test
+    /** The inputs of the delta replace the ones of the base, or hide them once taken out */
+    public void overlayDelta() throws Exception {
+        CountedSynonymMapBuilder base = new CountedSynonymMapBuilder();
+        base.add(join("universe"), join("cosmos"), true, 1);
+        base.add(join("big apple"), join("new york"), false, 1);
+        base.add(join("big"), join("large"), true, 1);
+        SynonymOverlay overlay =
+                new SynonymOverlay(
+                        base.build(false), null, 0, new SynonymSnapshot("", -1), "a", 10);
+
+        CountedSynonymMapBuilder changes = new CountedSynonymMapBuilder();
+        changes.add(join("universe"), join("cosmos"), true, -1);
+        changes.add(join("big apple"), join("new york"), false, -1);
+        changes.add(join("big apple"), join("nyc"), false, 1);
+        changes.add(join("tv"), join("television"), true, 1);
+        // taken out then put back by the same change
+        changes.add(join("big"), join("large"), true, -1);
+        changes.add(join("big"), join("large"), true, 1);
+        overlay = overlay.update(changes, 10);
+        Assert.assertEquals(3, overlay.deltaSize());
+
+        SynonymMap baseMap = overlay.base();
+        SynonymMap delta = overlay.delta();
+        try (Analyzer analyzer =
+                analyzer(in -> new OverlaySynonymGraphFilter(in, baseMap, delta))) {
+            Assert.assertEquals(Arrays.asList("the", "universe"), terms(analyzer, "the universe"));
+            Assert.assertEquals(Arrays.asList("nyc"), terms(analyzer, "big apple"));
+            Assert.assertEquals(Arrays.asList("large", "big"), terms(analyzer, "big"));
+            Assert.assertEquals(Arrays.asList("television", "tv"), terms(analyzer, "tv"));
+        }
+
+        // merged into the base, the synonyms stay the same
+        SynonymMap compacted = overlay.compact("b").base();
+        try (Analyzer analyzer = analyzer(in -> new SynonymGraphFilter(in, compacted, false))) {
+            Assert.assertEquals(Arrays.asList("the", "universe"), terms(analyzer, "the universe"));
+            Assert.assertEquals(Arrays.asList("nyc"), terms(analyzer, "big apple"));
+            Assert.assertEquals(Arrays.asList("television", "tv"), terms(analyzer, "tv"));
+        }
+    }
+
+    /** Three synonyms for a and b each * */
+    private static SynonymsHolder expanding(SynonymMapCache cache) {
+        SynonymMapCache.Loader expanding =
+                new SynonymMapCache.Loader() {
+                    @Override
+                    public String changeToken() {
+                        return "a";
+                    }
+
+                    @Override
+                    public SynonymMap build(String token, SynonymBuildStats stats)
+                            throws Exception {
+                        SynonymMap.Builder builder = new SynonymMap.Builder(true);
+                        for (String output : new String[] {"x", "y", "z"}) {
+                            builder.add(join("a"), join(output), true);
+                            builder.add(join("b"), join(output + output), true);
+                        }
+                        return builder.build();
+                    }
+                };
+        return cache.acquire(
+                new Object(),
+                "synonyms",
+                new SynonymMapCache.Key(
+                        ".synonyms", Version.CURRENT, true, false, Collections.emptyList(), "a"),
+                expanding,
+                TimeValue.timeValueSeconds(1));
+    }
+
+    @Test
+    /** A stream whose expansion goes over a bound gets its original tokens and is counted */
+    public void boundedExpansion() throws Exception {
+        SynonymsHolder holder = expanding(new SynonymMapCache(Runnable::run, null));
+        List<String> expanded;
+        try (Analyzer unbounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder))) {
+            expanded = tokens(unbounded, "a b c");
+        }
+        // 4 tokens at a position and 16 paths
+        try (Analyzer bounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder, 4, 16))) {
+            Assert.assertEquals(expanded, tokens(bounded, "a b c"));
+        }
+        Assert.assertEquals(0, holder.stats(Collections.emptyList()).getExpansionsCapped());
+
+        List<String> original;
+        try (Analyzer none = analyzer(in -> in)) {
+            original = tokens(none, "a b c");
+        }
+        try (Analyzer bounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder, 3, -1))) {
+            Assert.assertEquals(original, tokens(bounded, "a b c"));
+        }
+        try (Analyzer bounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder, -1, 15))) {
+            Assert.assertEquals(original, tokens(bounded, "a b c"));
+            Assert.assertEquals(Arrays.asList("c/1/1/0-1/word", "end/1"), tokens(bounded, "c"));
+        }
+        Assert.assertEquals(2, holder.stats(Collections.emptyList()).getExpansionsCapped());
+    }
+
+    @Test
+    /** The filters with other bounds sharing the synonyms do not replay each other's expansions */
+    public void boundedExpansionCached() throws Exception {
+        SynonymsHolder holder = expanding(new SynonymMapCache(Runnable::run, null, 10));
+        List<String> expanded;
+        List<String> original;
+        try (Analyzer unbounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder));
+                Analyzer none = analyzer(in -> in)) {
+            expanded = tokens(unbounded, "a b c");
+            original = tokens(none, "a b c");
+        }
+        try (Analyzer bounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder, 3, -1))) {
+            Assert.assertEquals(original, tokens(bounded, "a b c"));
+            // counted every time, capped streams are not cached
+            Assert.assertEquals(original, tokens(bounded, "a b c"));
+        }
+        Assert.assertEquals(2, holder.stats(Collections.emptyList()).getExpansionsCapped());
+        try (Analyzer bounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder, 4, 16))) {
+            Assert.assertEquals(expanded, tokens(bounded, "a b c"));
+            Assert.assertEquals(expanded, tokens(bounded, "a b c"));
+        }
+        try (Analyzer unbounded = analyzer(in -> new IndexedSynonymGraphFilter(in, holder))) {
+            Assert.assertEquals(expanded, tokens(unbounded, "a b c"));
+        }
+        // the unbounded and the loosely bounded filters have an entry each
+        Assert.assertEquals(2, holder.expansions().count());
+        Assert.assertEquals(2, holder.expansions().hits());
+    }
+
+    @Test
+    /** One stream in every interval is measured, the measures are reported per filter */
+    public void sampledStreams() throws Exception {
+        SynonymsHolder holder = acquire(new SynonymMapCache(Runnable::run, null), new Object());
+        SynonymFilterSamples samples = holder.samples("test/synonyms", 2);
+        Assert.assertSame(samples, holder.samples("test/synonyms", 2));
+        try (Analyzer analyzer =
+                analyzer(in -> new IndexedSynonymGraphFilter(in, holder, -1, -1, samples))) {
+            for (int i = 0; i < 5; i++) {
+                Assert.assertEquals(
+                        Arrays.asList("the", "cosmos", "universe", "is", "big"),
+                        terms(analyzer, "the universe is big"));
+            }
+        }
+        SynonymFilterSamples.Stats stats =
+                holder.stats(Collections.singletonList("test/synonyms"))
+                        .getSamples()
+                        .get("test/synonyms");
+        Assert.assertEquals(2, stats.interval());
+        Assert.assertEquals(2, stats.time().count());
+        Assert.assertEquals(4, stats.tokensIn().max());
+        Assert.assertEquals(5, stats.tokensOut().max());
+        Assert.assertEquals(125, stats.expansionRatio().max());
+        Assert.assertTrue(stats.time().max() > 0);
+        // the filters no longer using the synonyms are not reported
+        Assert.assertTrue(holder.stats(Collections.emptyList()).getSamples().isEmpty());
+        Assert.assertNull(holder.samples("test/synonyms", 0));
+        Assert.assertTrue(
+                holder.stats(Collections.singletonList("test/synonyms")).getSamples().isEmpty());
+    }
+
+    @Test
+    /** The percentiles are bounded by the buckets of the values and by the maximum */
+    public void sampleHistogram() {
+        SynonymFilterSamples.Histogram histogram = new SynonymFilterSamples.Histogram();
+        for (long value = 0; value < 100; value++) {
+            histogram.add(value);
+        }
+        SynonymFilterSamples.Distribution distribution = histogram.snapshot();
+        Assert.assertEquals(100, distribution.count());
+        Assert.assertEquals(49.5, distribution.mean(), 0.0);
+        Assert.assertEquals(99, distribution.max());
+        // 50 falls in [32, 63], 99 in [64, 127]
+        Assert.assertEquals(63, distribution.percentile(50));
+        Assert.assertEquals(99, distribution.percentile(99));
+        Assert.assertEquals(0, distribution.percentile(1));
+        Assert.assertEquals(0, new SynonymFilterSamples.Histogram().snapshot().percentile(50));
+    }
+
+    @Test
+    /** The paths through a token graph are counted across stacked tokens, spans and holes */
+    public void graphBounds() {
+        IndexedSynonymGraphFilter.GraphBounds bounds =
+                new IndexedSynonymGraphFilter.GraphBounds(-1, 6);
+        // a multi-word synonym spanning the two tokens of "new york" and both of them
+        Assert.assertTrue(bounds.add(1, 2));
+        Assert.assertTrue(bounds.add(0, 1));
+        Assert.assertTrue(bounds.add(1, 1));
+        // 2 paths so far, each token stacked after the hole adds 2 more
+        Assert.assertTrue(bounds.add(2, 1));
+        Assert.assertTrue(bounds.add(0, 1));
+        Assert.assertTrue(bounds.add(0, 1));
+        Assert.assertFalse(bounds.add(0, 1));
+    }
+}
@@ -13,151 +13,860 @@
  */
 package io.telicent.elasticsearch;
 
-import co.elastic.clients.elasticsearch.ElasticsearchClient;
-import co.elastic.clients.elasticsearch._types.ElasticsearchException;
-import co.elastic.clients.elasticsearch._types.Refresh;
-import co.elastic.clients.elasticsearch.core.IndexRequest;
-import co.elastic.clients.json.JsonData;
-import co.elastic.clients.json.jackson.JacksonJsonpMapper;
-import co.elastic.clients.transport.ElasticsearchTransport;
-import co.elastic.clients.transport.rest_client.RestClientTransport;
 import java.io.IOException;
 import java.io.InputStream;
-import org.apache.http.HttpHost;
-import org.apache.http.auth.AuthScope;
-import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.impl.client.BasicCredentialsProvider;
-import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
 import org.apache.lucene.analysis.synonym.SynonymMap;
-import org.elasticsearch.client.RestClient;
-import org.elasticsearch.client.RestClientBuilder;
-import org.elasticsearch.client.RestClientBuilder.HttpClientConfigCallback;
-import org.junit.Assert;
-import org.junit.Rule;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.admin.indices.analyze.AnalyzeAction;
+import org.elasticsearch.action.admin.indices.stats.IndicesStatsAction;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.index.IndexResponse;
+import org.elasticsearch.action.search.OpenPointInTimeAction;
+import org.elasticsearch.action.support.ActionFilter;
+import org.elasticsearch.action.support.WriteRequest.RefreshPolicy;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.IndexRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.Streams;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.repositories.RepositoriesService;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
+import org.elasticsearch.xcontent.NamedXContentRegistry;
+import org.elasticsearch.xcontent.XContentFactory;
+import org.elasticsearch.xcontent.XContentType;
 import org.junit.Test;
-import org.junit.rules.Timeout;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.testcontainers.elasticsearch.ElasticsearchContainer;
 
 /** Test class for IndexedSynonymParser * */
-public class IndexedSynonymParserTest {
-
-    @Rule public Timeout globalTimeout = Timeout.seconds(120);
-
-    private ElasticsearchContainer container;
-
-    private static final Logger LOG = LoggerFactory.getLogger(IndexedSynonymParserTest.class);
+public class IndexedSynonymParserTest extends ESSingleNodeTestCase {
 
     private static final String INDEXNAME = ".synonyms";
 
     private static final String PASSWORD = "THISISAPASSWORD";
     private static final String USERNAME = "elastic";
 
-    private void setup(boolean authenticate) throws ElasticsearchException, IOException {
+    /** Authorization headers of the requests made on the synonym index * */
+    private static final Queue<String> AUTHORIZATIONS = new ConcurrentLinkedQueue<>();
 
-        String version = System.getProperty("elasticsearch.version");
-        if (version == null) version = "7.17.18";
-        LOG.info("Starting docker instance of Elasticsearch {}...", version);
+    /** Number of the next searches to fail * */
+    private static final AtomicInteger FAILING_SEARCHES = new AtomicInteger();
 
-        container =
-                new ElasticsearchContainer(
-                        "docker.elastic.co/elasticsearch/elasticsearch:" + version);
-        if (authenticate) {
-            container.withPassword(PASSWORD);
-        }
-        container.start();
+    /** Run once when the next point in time is opened * */
+    private static final AtomicReference<Runnable> BEFORE_POINT_IN_TIME = new AtomicReference<>();
 
-        LOG.info("Elasticsearch container started at {}", container.getHttpHostAddress());
+    /** Records the authorization header of the searches and stats requests, fails searches * */
+    public static class HeaderRecorderPlugin extends Plugin implements ActionPlugin {
 
-        indexSynonyms(authenticate);
-    }
+        private ThreadContext threadContext;
+
+        @Override
+        public Collection<Object> createComponents(
+                Client client,
+                ClusterService clusterService,
+                ThreadPool threadPool,
+                ResourceWatcherService resourceWatcherService,
+                ScriptService scriptService,
+                NamedXContentRegistry xContentRegistry,
+                Environment environment,
+                NodeEnvironment nodeEnvironment,
+                NamedWriteableRegistry namedWriteableRegistry,
+                IndexNameExpressionResolver indexNameExpressionResolver,
+                Supplier<RepositoriesService> repositoriesServiceSupplier) {
+            threadContext = threadPool.getThreadContext();
+            return super.createComponents(
+                    client,
+                    clusterService,
+                    threadPool,
+                    resourceWatcherService,
+                    scriptService,
+                    xContentRegistry,
+                    environment,
+                    nodeEnvironment,
+                    namedWriteableRegistry,
+                    indexNameExpressionResolver,
+                    repositoriesServiceSupplier);
+        }
 
-    private void indexSynonyms(boolean authenticate) throws ElasticsearchException, IOException {
-        RestClientBuilder builder =
-                RestClient.builder(
-                        new HttpHost(container.getHost(), container.getFirstMappedPort()));
+        @Override
+        public List<ActionFilter> getActionFilters() {
+            return Arrays.asList(
+                    new ActionFilter.Simple() {
+                        @Override
+                        public int order() {
+                            return 0;
+                        }
 
-        if (authenticate) {
-            BasicCredentialsProvider credsProv = new BasicCredentialsProvider();
-            credsProv.setCredentials(
-                    AuthScope.ANY, new UsernamePasswordCredentials(USERNAME, PASSWORD));
-            builder.setHttpClientConfigCallback(
-                    new HttpClientConfigCallback() {
                         @Override
-                        public HttpAsyncClientBuilder customizeHttpClient(
-                                HttpAsyncClientBuilder httpClientBuilder) {
-                            return httpClientBuilder.setDefaultCredentialsProvider(credsProv);
+                        protected boolean apply(
+                                String action, ActionRequest request, ActionListener<?> listener) {
+                            if (action.startsWith("indices:data/read/search")
+                                    || action.equals(IndicesStatsAction.NAME)) {
+                                String header = threadContext.getHeader("Authorization");
+                                AUTHORIZATIONS.add(header == null ? "none" : header);
+                            }
+                            if (action.startsWith("indices:data/read/search")) {
+                                if (FAILING_SEARCHES.getAndUpdate(n -> Math.max(0, n - 1)) > 0) {
+                                    listener.onFailure(new ElasticsearchException("shard failure"));
+                                    return false;
+                                }
+                            }
+                            if (action.equals(OpenPointInTimeAction.NAME)) {
+                                final Runnable hook = BEFORE_POINT_IN_TIME.getAndSet(null);
+                                if (hook != null) {
+                                    hook.run();
+                                }
+                            }
+                            return true;
                         }
                     });
         }
+    }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Arrays.asList(SynonymsPlugin.class, HeaderRecorderPlugin.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        AUTHORIZATIONS.clear();
+        FAILING_SEARCHES.set(0);
+        BEFORE_POINT_IN_TIME.set(null);
+    }
+
+    private String resource(String name) throws IOException {
+        try (InputStream input = getClass().getClassLoader().getResourceAsStream(name)) {
+            return Streams.copyToString(new InputStreamReader(input, StandardCharsets.UTF_8));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void indexSynonyms() throws IOException {
+        Map<String, Object> source =
+                XContentHelper.convertToMap(
+                        XContentType.JSON.xContent(), resource("synonyms-mappings.json"), false);
+        client().admin()
+                .indices()
+                .prepareCreate(INDEXNAME)
+                .addMapping("_doc", (Map<String, Object>) source.get("mappings"))
+                .get();
+        client().prepareIndex(INDEXNAME, "_doc")
+                .setSource(resource("synonyms.json"), XContentType.JSON)
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+    }
+
+    private IndexedSynonymParser parser(String user, String password) {
+        return new IndexedSynonymParser(
+                client(), user, password, INDEXNAME, true, true, true, new StandardAnalyzer());
+    }
+
+    @Test
+    /**
+     * Checks that the number of entries is correct in the synonym map when loading from an index
+     */
+    public void testLoadSynonyms() throws Exception {
+        indexSynonyms();
+        IndexedSynonymParser parser = parser(null, null);
+        parser.parse();
+        SynonymMap synonyms = parser.build();
+        assertEquals(7, synonyms.words.size());
+        assertTrue(AUTHORIZATIONS.stream().allMatch("none"::equals));
+    }
+
+    @Test
+    /** The credentials of the filter are passed on to the requests */
+    public void testLoadSynonymsAuth() throws Exception {
+        indexSynonyms();
+        IndexedSynonymParser parser = parser(USERNAME, PASSWORD);
+        parser.parse();
+        assertEquals(7, parser.build().words.size());
+
+        String expected =
+                "Basic "
+                        + Base64.getEncoder()
+                                .encodeToString(
+                                        (USERNAME + ":" + PASSWORD)
+                                                .getBytes(StandardCharsets.UTF_8));
+        assertFalse(AUTHORIZATIONS.isEmpty());
+        assertEquals(
+                Arrays.asList(expected),
+                AUTHORIZATIONS.stream().distinct().collect(Collectors.toList()));
+    }
+
+    @Test
+    /** The headers of the calling thread are not passed on to the requests */
+    public void testContextNotInherited() throws Exception {
+        indexSynonyms();
+        ThreadContext threadContext = client().threadPool().getThreadContext();
+        try (ThreadContext.StoredContext ignored = threadContext.stashContext()) {
+            threadContext.putHeader("Authorization", "Basic c29tZW9uZTplbHNl");
+            parser(null, null).changeToken();
+        }
+        assertEquals(
+                Arrays.asList("none"),
+                AUTHORIZATIONS.stream().distinct().collect(Collectors.toList()));
+    }
+
+    @Test
+    /** Documents can be parsed without reading them from the index */
+    public void testParseDocuments() throws Exception {
+        Map<String, Object> document =
+                XContentHelper.convertToMap(
+                        XContentType.JSON.xContent(), resource("synonyms.json"), false);
+        IndexedSynonymParser parser =
+                new IndexedSynonymParser(
+                        null, null, null, INDEXNAME, true, true, true, new StandardAnalyzer());
+        assertEquals(5, parser.parse(Collections.singletonList(document)));
+        assertEquals(7, parser.build().words.size());
+    }
+
+    @Test
+    /** A refresh which cannot read the synonym index keeps serving and storing the previous map */
+    public void testUnavailableDuringRefresh() throws Exception {
+        indexSynonyms();
+        SynonymsStore store = new SynonymsStore(createTempDir());
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, store);
+        SynonymMapCache.Key key =
+                new SynonymMapCache.Key(
+                        INDEXNAME, Version.CURRENT, true, true, Collections.emptyList(), "test");
+        SynonymMapCache.Loader loader =
+                new SynonymMapCache.Loader() {
+                    @Override
+                    public String changeToken() {
+                        return parser(null, null).changeToken();
+                    }
+
+                    @Override
+                    public SynonymMap build(String token, SynonymBuildStats stats)
+                            throws Exception {
+                        IndexedSynonymParser parser = parser(null, null);
+                        parser.parse();
+                        return parser.build();
+                    }
+                };
+        Object scope = new Object();
+        SynonymsHolder holder =
+                cache.acquire(scope, "synonyms", key, loader, TimeValue.timeValueSeconds(10));
+        SynonymMap loaded = holder.current();
+        assertEquals(7, loaded.words.size());
+        String token = store.read(key).token();
+
+        client().admin().indices().prepareClose(INDEXNAME).get();
+        // acquired again by the same owner, as when its analyzer is reloaded
+        expectThrows(ExecutionException.class, () -> holder.refresh(loader, true).get());
+        assertSame(loaded, holder.current());
+        assertEquals(1, cache.stats().get(0).getBuildFailures());
+        SynonymsStore.Stored stored = store.read(key);
+        assertEquals(token, stored.token());
+        assertEquals(7, stored.map().words.size());
+    }
+
+    @Test
+    /** The documents are read in the format they were indexed in */
+    public void testContentTypes() throws Exception {
+        indexSynonyms();
+        IndexedSynonymParser json = parser(null, null);
+        json.parse();
+        long rules = json.stats().rulesLoaded();
+        Map<String, Object> source =
+                XContentHelper.convertToMap(
+                        XContentType.JSON.xContent(), resource("synonyms.json"), false);
+        for (XContentType type : XContentType.values()) {
+            client().prepareDelete(INDEXNAME, "_doc", "rules").get();
+            client().prepareIndex(INDEXNAME, "_doc", "rules")
+                    .setSource(
+                            BytesReference.bytes(XContentFactory.contentBuilder(type).map(source)),
+                            type)
+                    .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                    .get();
+            IndexedSynonymParser parser = parser(null, null);
+            parser.parse();
+            // the same rules again
+            assertEquals(type.toString(), 2 * rules, parser.stats().rulesLoaded());
+            assertEquals(7, parser.build().words.size());
+        }
+    }
+
+    @Test
+    /** A missing index gives an empty synonym map */
+    public void testMissingIndex() throws Exception {
+        IndexedSynonymParser parser = parser(null, null);
+        assertEquals("missing", parser.changeToken());
+        parser.parse();
+        assertEquals(0, parser.build().words.size());
+    }
+
+    @Test
+    /** An index which cannot be read fails the load rather than giving partial synonyms */
+    public void testUnavailableIndex() throws Exception {
+        indexSynonyms();
+        client().admin().indices().prepareClose(INDEXNAME).get();
+        expectThrows(ElasticsearchException.class, () -> parser(null, null).parse());
+    }
 
-        // Create the transport with a Jackson mapper
-        ElasticsearchTransport transport =
-                new RestClientTransport(builder.build(), new JacksonJsonpMapper());
+    @Test
+    /** The change token only changes when the content of the index does */
+    public void testChangeToken() throws Exception {
+        indexSynonyms();
+        String token = parser(null, null).changeToken();
+        assertNotNull(token);
+        assertEquals(token, parser(null, null).changeToken());
 
-        // And create the API client
-        ElasticsearchClient client = new ElasticsearchClient(transport);
+        client().prepareIndex(INDEXNAME, "_doc")
+                .setSource("synonyms", "car, automobile")
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+        assertNotEquals(token, parser(null, null).changeToken());
+    }
 
-        // Explicit mapping
-        InputStream mapstream =
-                getClass().getClassLoader().getResourceAsStream("synonyms-mappings.json");
-        client.indices().create(t -> t.index(INDEXNAME).withJson(mapstream));
+    @Test
+    /** The sequence numbers of the shards are kept apart, and do not depend on the refreshes */
+    public void testChangeTokenPerShard() throws Exception {
+        client().admin()
+                .indices()
+                .prepareCreate(INDEXNAME)
+                .setSettings(Settings.builder().put("index.number_of_shards", 2))
+                .get();
+        IndexMetadata metadata =
+                client().admin()
+                        .cluster()
+                        .prepareState()
+                        .get()
+                        .getState()
+                        .metadata()
+                        .index(INDEXNAME);
+        String[] routings = new String[2];
+        for (int i = 0; routings[0] == null || routings[1] == null; i++) {
+            String routing = Integer.toString(i);
+            routings[IndexRouting.fromIndexMetadata(metadata).shardId("x", routing)] = routing;
+        }
+        for (int i = 0; i < 4; i++) {
+            indexRouted("a" + i, routings[0]);
+        }
+        for (int i = 0; i < 3; i++) {
+            indexRouted("b" + i, routings[1]);
+        }
+        String token = parser(null, null).changeToken();
 
-        InputStream input = getClass().getClassLoader().getResourceAsStream("synonyms.json");
+        // as many documents with the same highest and total sequence numbers as before
+        client().prepareDelete(INDEXNAME, "_doc", "a3")
+                .setRouting(routings[0])
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+        assertEquals(3, indexRouted("b3", routings[1]).getSeqNo());
+        String changed = parser(null, null).changeToken();
+        assertNotEquals(token, changed);
 
-        IndexRequest<JsonData> request =
-                IndexRequest.of(i -> i.index(INDEXNAME).withJson(input).refresh(Refresh.True));
+        // not visible to the searches yet
+        client().prepareIndex(INDEXNAME, "_doc", "b4")
+                .setRouting(routings[1])
+                .setSource("synonyms", "car, automobile")
+                .get();
+        assertNotEquals(changed, parser(null, null).changeToken());
+    }
 
-        client.index(request);
+    private IndexResponse indexRouted(String id, String routing) {
+        return client().prepareIndex(INDEXNAME, "_doc", id)
+                .setRouting(routing)
+                .setSource("synonyms", "car, automobile")
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+    }
 
-        client.shutdown();
+    private SynonymMap build(boolean lenient, int parallelism) throws Exception {
+        return parser(lenient, parallelism, null).build();
     }
 
-    private void testAndClose(boolean auth, String user, String password, int expected)
-            throws Exception {
-        setup(auth);
-        final StandardAnalyzer standardAnalyzer = new StandardAnalyzer();
+    /** A parser which has parsed the synonym index * */
+    private IndexedSynonymParser parser(
+            boolean lenient, int parallelism, SynonymTermCache termCache) throws Exception {
         IndexedSynonymParser parser =
                 new IndexedSynonymParser(
-                        container.getHost(),
-                        container.getFirstMappedPort().intValue(),
-                        user,
-                        password,
+                        client(),
+                        null,
+                        null,
                         INDEXNAME,
                         true,
                         true,
-                        true,
-                        standardAnalyzer);
+                        lenient,
+                        new StandardAnalyzer(),
+                        100,
+                        1,
+                        Collections.emptyList(),
+                        null,
+                        Collections.emptyList(),
+                        StandardAnalyzer::new,
+                        client().threadPool().executor(SynonymsPlugin.ANALYSIS_THREAD_POOL_NAME),
+                        parallelism,
+                        null,
+                        termCache,
+                        "standard");
         parser.parse();
-        SynonymMap synonyms = parser.build();
-        Assert.assertEquals(expected, synonyms.words.size());
-        LOG.info("Closing ES container");
-        container.close();
+        return parser;
+    }
+
+    private IndexedSynonymParser tagged(String... tags) {
+        return new IndexedSynonymParser(
+                client(),
+                null,
+                null,
+                INDEXNAME,
+                true,
+                true,
+                true,
+                new StandardAnalyzer(),
+                IndexedSynonymParser.DEFAULT_PAGE_SIZE,
+                1,
+                Collections.emptyList(),
+                SynonymGraphTokenFilterFactory.DEFAULT_TAG_FIELD,
+                Arrays.asList(tags),
+                null,
+                null,
+                1,
+                null);
+    }
+
+    private IndexedSynonymParser budgeted(SynonymMemoryBudget budget) {
+        return new IndexedSynonymParser(
+                client(),
+                null,
+                null,
+                INDEXNAME,
+                true,
+                true,
+                true,
+                new StandardAnalyzer(),
+                IndexedSynonymParser.DEFAULT_PAGE_SIZE,
+                1,
+                Collections.emptyList(),
+                null,
+                Collections.emptyList(),
+                null,
+                null,
+                1,
+                budget);
     }
 
     @Test
-    /**
-     * Checks that the number of entries is correct in the synonym map when loading from an index.
-     * Passing credentials even when authentication is not required
-     */
-    public void loadSynonymsNoAuth() throws Exception {
-        testAndClose(false, USERNAME, PASSWORD, 7);
+    /** A build which does not fit in its budget fails, the memory is released either way */
+    public void testMemoryBudget() throws Exception {
+        indexSynonyms();
+        CircuitBreaker breaker =
+                getInstanceFromNode(CircuitBreakerService.class)
+                        .getBreaker(SynonymsPlugin.BREAKER_NAME);
+        assertSame(breaker, getInstanceFromNode(SynonymMapCache.class).breaker());
+        long before = breaker.getUsed();
+
+        try (SynonymMemoryBudget budget = new SynonymMemoryBudget(breaker, -1, "test")) {
+            IndexedSynonymParser parser = budgeted(budget);
+            parser.parse();
+            SynonymMap synonyms = parser.build();
+            assertEquals(SynonymMemoryBudget.ramBytesUsed(synonyms), budget.used());
+            assertEquals(before + budget.used(), breaker.getUsed());
+        }
+        assertEquals(before, breaker.getUsed());
+
+        try (SynonymMemoryBudget budget = new SynonymMemoryBudget(breaker, 100, "test")) {
+            IndexedSynonymParser parser = budgeted(budget);
+            parser.parse();
+            expectThrows(CircuitBreakingException.class, parser::build);
+        }
+        assertEquals(before, breaker.getUsed());
     }
 
     @Test
-    /**
-     * Checks that the number of entries is correct in the synonym map when loading from an index.
-     * Passing credentials with authentication required
-     */
-    public void loadSynonymsAuth() throws Exception {
-        testAndClose(true, USERNAME, PASSWORD, 7);
+    /** Only the documents with the tags of the filter are read, without their tags */
+    public void testTags() throws Exception {
+        indexSynonyms();
+        Map<String, Object> medical = new HashMap<>();
+        medical.put("tags", Arrays.asList("medical", "health"));
+        medical.put("synonyms", "mi, myocardial infarction");
+        Map<String, Object> legal = new HashMap<>();
+        legal.put("tags", "legal");
+        legal.put("synonyms", Arrays.asList("tort, civil wrong", "plaintiff, claimant"));
+        for (Map<String, Object> document : Arrays.asList(medical, legal)) {
+            client().prepareIndex(INDEXNAME, "_doc")
+                    .setSource(document)
+                    .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                    .get();
+        }
+
+        IndexedSynonymParser parser = tagged("legal");
+        parser.parse();
+        assertEquals(2, parser.stats().rulesLoaded());
+        assertEquals(4, parser.build().words.size());
+
+        parser = tagged("medical", "other");
+        parser.parse();
+        assertEquals(1, parser.stats().rulesLoaded());
+
+        // the documents read by other means are filtered the same way
+        Map<String, Object> untagged =
+                XContentHelper.convertToMap(
+                        XContentType.JSON.xContent(), resource("synonyms.json"), false);
+        assertEquals(2, tagged("legal").parse(Arrays.asList(medical, legal, untagged)));
+
+        // the token covers the whole index, the changes made to the other subsets change it too
+        String token = tagged("medical").changeToken();
+        assertEquals(token, tagged("legal", "medical").changeToken());
+        client().prepareIndex(INDEXNAME, "_doc")
+                .setSource(legal)
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+        assertNotEquals(token, tagged("medical").changeToken());
+    }
+
+    private static byte[] serialize(SynonymMap map) throws IOException {
+        ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        SynonymMapSerializer.write(map, out);
+        return out.toArrayCopy();
+    }
+
+    @Test
+    /** Analyzing the rules in parallel gives exactly the same synonyms as doing it sequentially */
+    public void testParallelAnalysis() throws Exception {
+        indexSynonyms();
+        BulkRequestBuilder bulk = client().prepareBulk(INDEXNAME, "_doc");
+        for (int doc = 0; doc < 10; doc++) {
+            List<String> rules = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                int rule = doc * 500 + i;
+                switch (rule % 5) {
+                    case 0:
+                        rules.add("word" + rule + ", term" + rule + ", multi word " + rule);
+                        break;
+                    case 1:
+                        rules.add("short" + rule + " => long form " + rule);
+                        break;
+                    case 2:
+                        // duplicates of a previous rule
+                        rules.add("word" + (rule - 2) + ", term" + (rule - 2));
+                        break;
+                    case 3:
+                        // analyzed to nothing
+                        rules.add("!!, word" + rule);
+                        break;
+                    default:
+                        rules.add("shared, common" + (rule % 7));
+                }
+            }
+            bulk.add(client().prepareIndex().setSource("synonyms", rules));
+        }
+        bulk.setRefreshPolicy(RefreshPolicy.IMMEDIATE).get();
+
+        byte[] expected = serialize(build(true, 1));
+        for (int parallelism : new int[] {2, 4}) {
+            assertArrayEquals(expected, serialize(build(true, parallelism)));
+        }
+        expectThrows(ParseException.class, () -> build(false, 4));
+    }
+
+    @Test
+    /** The analyzed terms are reused within a build and by the next builds, failures included */
+    public void testTermCache() throws Exception {
+        indexSynonyms();
+        client().prepareIndex(INDEXNAME, "_doc")
+                .setSource("synonyms", Arrays.asList("car, automobile", "auto, car", "!!, car"))
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+        byte[] expected = serialize(build(true, 1));
+
+        SynonymTermCache termCache = new SynonymTermCache(1024 * 1024);
+        IndexedSynonymParser parser = parser(true, 1, termCache);
+        assertArrayEquals(expected, serialize(parser.build()));
+        assertTrue(parser.stats().termCacheHits() > 0);
+        long misses = parser.stats().termCacheMisses();
+        assertEquals(misses, termCache.count());
+
+        // the rule which cannot be analyzed is skipped again
+        parser = parser(true, 4, termCache);
+        assertArrayEquals(expected, serialize(parser.build()));
+        assertEquals(0, parser.stats().termCacheMisses());
+        assertEquals(1, parser.stats().rulesSkipped());
+        expectThrows(ParseException.class, () -> parser(false, 1, termCache));
+    }
+
+    @Test
+    /** The filter loads the synonyms through the node client */
+    public void testAnalyze() throws Exception {
+        indexSynonyms();
+        client().admin()
+                .indices()
+                .prepareCreate("test")
+                .setSettings(
+                        Settings.builder()
+                                .put("index.analysis.filter.synonyms.type", "index_synonym_graph")
+                                .put("index.analysis.analyzer.search.tokenizer", "standard")
+                                .putList("index.analysis.analyzer.search.filter", "synonyms"))
+                .addMapping("_doc", "text", "type=text,search_analyzer=search")
+                .get();
+
+        AnalyzeAction.Response response =
+                client().admin()
+                        .indices()
+                        .prepareAnalyze("test", "the universe")
+                        .setAnalyzer("search")
+                        .get();
+        assertEquals(
+                Arrays.asList("the", "cosmos", "universe"),
+                response.getTokens().stream()
+                        .map(AnalyzeAction.AnalyzeToken::getTerm)
+                        .collect(Collectors.toList()));
+    }
+
+    @Test
+    /** The stats of the synonyms used by the filter are reported by the node */
+    public void testStats() throws Exception {
+        indexSynonyms();
+        client().admin()
+                .indices()
+                .prepareCreate("stats")
+                .setSettings(
+                        Settings.builder()
+                                .put("index.analysis.filter.synonyms.type", "index_synonym_graph")
+                                .put("index.analysis.analyzer.search.tokenizer", "standard")
+                                // a chain of its own so that the synonyms are not shared
+                                .putList(
+                                        "index.analysis.analyzer.search.filter",
+                                        "lowercase",
+                                        "synonyms"))
+                .addMapping("_doc", "text", "type=text,search_analyzer=search")
+                .get();
+
+        SynonymsStatsResponse response =
+                client().execute(SynonymsStatsAction.INSTANCE, new SynonymsStatsRequest()).get();
+        assertFalse(response.hasFailures());
+        assertEquals(1, response.getNodes().size());
+
+        // the stats go through the transport layer when collected from the other nodes
+        SynonymsStatsResponse copy =
+                copyWriteable(
+                        response,
+                        new NamedWriteableRegistry(Collections.emptyList()),
+                        SynonymsStatsResponse::new);
+        // the node can still hold the synonyms of the previous tests
+        SynonymMapStats synonyms =
+                copy.getNodes().get(0).getStats().stream()
+                        .filter(s -> s.getFilters().contains("stats/synonyms"))
+                        .findFirst()
+                        .get();
+        assertEquals(INDEXNAME, synonyms.getIndex());
+        assertEquals(Collections.singletonList("stats/synonyms"), synonyms.getFilters());
+        assertTrue(synonyms.isLoaded());
+        // a copy stored by a previous test on the same node can be published first
+        assertTrue(synonyms.getVersion() >= 1);
+        assertEquals("index", synonyms.getSource());
+        assertEquals(5, synonyms.getRulesLoaded());
+        assertEquals(0, synonyms.getRulesSkipped());
+        assertEquals(1, synonyms.getBuilds());
+        assertTrue(synonyms.getMemorySize() > 0);
+        assertTrue(synonyms.getBuildNanos() > 0);
+    }
+
+    private void index(String id, String... rules) {
+        client().prepareIndex(INDEXNAME, "_doc", id)
+                .setSource("synonyms", Arrays.asList(rules))
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+    }
+
+    /** The terms produced for each text, sorted as the order of the outputs can differ */
+    private static List<List<String>> terms(Function<TokenStream, TokenStream> filter)
+            throws IOException {
+        List<List<String>> terms = new ArrayList<>();
+        try (Analyzer analyzer =
+                new Analyzer() {
+                    @Override
+                    protected TokenStreamComponents createComponents(String fieldName) {
+                        Tokenizer tokenizer = new WhitespaceTokenizer();
+                        return new TokenStreamComponents(tokenizer, filter.apply(tokenizer));
+                    }
+                }) {
+            for (String text :
+                    Arrays.asList(
+                            "car",
+                            "automobile",
+                            "auto",
+                            "big apple",
+                            "universe",
+                            "cosmos",
+                            "space",
+                            "tv",
+                            "television",
+                            "telly")) {
+                List<String> textTerms = new ArrayList<>();
+                try (TokenStream stream = analyzer.tokenStream("field", text)) {
+                    CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+                    stream.reset();
+                    while (stream.incrementToken()) {
+                        textTerms.add(term.toString());
+                    }
+                    stream.end();
+                }
+                Collections.sort(textTerms);
+                terms.add(textTerms);
+            }
+        }
+        return terms;
+    }
+
+    @Test
+    /** Only the documents changed are loaded into the delta, which gives the same synonyms */
+    public void testIncremental() throws Exception {
+        client().admin().indices().prepareCreate(INDEXNAME).get();
+        index("1", "car, automobile", "big apple => new york");
+        index("2", "universe, cosmos");
+        index("3", "tv, television");
+
+        IndexedSynonymParser parser = tagged();
+        SynonymOverlay overlay = parser.parseOverlay("a", 100);
+        assertNull(overlay.delta());
+        assertEquals(4, parser.stats().rulesLoaded());
+
+        index("1", "car, auto");
+        client().prepareDelete(INDEXNAME, "_doc", "2")
+                .setRefreshPolicy(RefreshPolicy.IMMEDIATE)
+                .get();
+        index("4", "cosmos, space", "tv, telly");
+        // indexed again as is, nothing changes
+        index("3", "tv, television");
+
+        parser = tagged();
+        SynonymOverlay updated = parser.parseChanges(overlay, "b", 100);
+        assertEquals("delta", parser.stats().source());
+        // the rules of the documents added or updated
+        assertEquals(4, parser.stats().rulesLoaded());
+        assertSame(overlay.base(), updated.base());
+        assertNotNull(updated.delta());
+
+        IndexedSynonymParser full = tagged();
+        full.parse();
+        SynonymMap expected = full.build();
+        SynonymMap base = updated.base();
+        SynonymMap delta = updated.delta();
+        assertEquals(
+                terms(in -> new SynonymGraphFilter(in, expected, false)),
+                terms(in -> new OverlaySynonymGraphFilter(in, base, delta)));
+
+        // nothing changed since
+        SynonymOverlay unchanged = tagged().parseChanges(updated, "b", 100);
+        assertEquals(updated.deltaSize(), unchanged.deltaSize());
+
+        // merged into the base once the delta is large enough
+        SynonymOverlay compacted = tagged().parseChanges(updated, "b", 1);
+        assertTrue(compacted.compactionDue());
+        SynonymMap merged = compacted.compact("b").base();
+        assertEquals(
+                terms(in -> new SynonymGraphFilter(in, expected, false)),
+                terms(in -> new SynonymGraphFilter(in, merged, false)));
+
+        // a recreated index is loaded in full
+        client().admin().indices().prepareDelete(INDEXNAME).get();
+        client().admin().indices().prepareCreate(INDEXNAME).get();
+        index("1", "car, automobile");
+        parser = tagged();
+        SynonymOverlay reloaded = parser.parseChanges(updated, "c", 100);
+        assertEquals("index", parser.stats().source());
+        assertNull(reloaded.delta());
+        assertEquals(1, parser.stats().rulesLoaded());
+
+        // changes which could not all be read are not applied as a delta
+        index("2", "universe, cosmos");
+        FAILING_SEARCHES.set(1);
+        parser = tagged();
+        SynonymOverlay fallback = parser.parseChanges(reloaded, "d", 100);
+        assertEquals(0, FAILING_SEARCHES.get());
+        assertEquals("index", parser.stats().source());
+        assertNull(fallback.delta());
+        assertEquals(2, parser.stats().rulesLoaded());
     }
 
     @Test
-    /** Missing credentials with authentication required */
-    public void loadSynonymsMissingAuth() throws Exception {
-        testAndClose(true, null, null, 0);
+    /** The documents not yet refreshed when the synonyms are loaded are not missed by the deltas */
+    public void testIncrementalUnrefreshed() throws Exception {
+        client().admin()
+                .indices()
+                .prepareCreate(INDEXNAME)
+                .setSettings(Settings.builder().put("index.refresh_interval", -1))
+                .get();
+        index("1", "car, automobile");
+        // indexed before the stats are read, not visible to the searches yet
+        client().prepareIndex(INDEXNAME, "_doc", "2")
+                .setSource("synonyms", Arrays.asList("universe, cosmos"))
+                .get();
+        // indexed between the stats and the point in time
+        BEFORE_POINT_IN_TIME.set(
+                () ->
+                        client().prepareIndex(INDEXNAME, "_doc", "3")
+                                .setSource("synonyms", Arrays.asList("tv, television"))
+                                .get());
+
+        IndexedSynonymParser parser = tagged();
+        SynonymOverlay overlay = parser.parseOverlay("a", 100);
+        assertNull(BEFORE_POINT_IN_TIME.get());
+        assertEquals(2, parser.stats().rulesLoaded());
+
+        index("4", "cosmos, space");
+        parser = tagged();
+        SynonymOverlay updated = parser.parseChanges(overlay, "b", 100);
+        assertEquals("delta", parser.stats().source());
+        assertEquals(2, parser.stats().rulesLoaded());
+
+        IndexedSynonymParser full = tagged();
+        full.parse();
+        SynonymMap expected = full.build();
+        SynonymMap base = updated.base();
+        SynonymMap delta = updated.delta();
+        assertEquals(
+                terms(in -> new SynonymGraphFilter(in, expected, false)),
+                terms(in -> new OverlaySynonymGraphFilter(in, base, delta)));
     }
 }
@@ -0,0 +1,96 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.List;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.store.ByteBuffersDataOutput;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test class for SolrRuleParser * */
+public class SolrRuleParserTest {
+
+    private static final List<String> RULES =
+            Arrays.asList(
+                    "i-pod, i pod => ipod",
+                    "sea biscuit, sea biscit => seabiscuit",
+                    "universe , cosmos",
+                    "lol, laughing out loud",
+                    "# a comment, not a rule",
+                    "",
+                    "a\\,b, c\\=\\>d => e\\\\f",
+                    "  spaced  ,,  out  ",
+                    "=>leading, arrow",
+                    "first, line\nsecond, line\r\nthird, line\rfourth, line",
+                    "trailing\\");
+
+    private static byte[] serialize(SynonymMap map) throws IOException {
+        ByteBuffersDataOutput out = new ByteBuffersDataOutput();
+        SynonymMapSerializer.write(map, out);
+        return out.toArrayCopy();
+    }
+
+    @Test
+    /** The rules give the same synonyms as with the parser of Lucene */
+    public void sameAsSolrSynonymParser() throws Exception {
+        for (boolean expand : new boolean[] {true, false}) {
+            final SolrSynonymParser expected =
+                    new SolrSynonymParser(true, expand, new WhitespaceAnalyzer());
+            expected.parse(new StringReader(String.join("\n", RULES)));
+
+            final SolrRuleParser parser =
+                    new SolrRuleParser(true, expand, new WhitespaceAnalyzer());
+            for (String rule : RULES) {
+                // offset in a larger buffer, as read from a JSON parser
+                final char[] buffer = ("{\"" + rule + "\"}").toCharArray();
+                parser.parseRule(buffer, 2, rule.length());
+            }
+
+            Assert.assertArrayEquals(serialize(expected.build()), serialize(parser.build()));
+        }
+    }
+
+    @Test
+    /** A reader is split into lines like with the parser of Lucene */
+    public void reader() throws Exception {
+        final SolrSynonymParser expected =
+                new SolrSynonymParser(true, true, new WhitespaceAnalyzer());
+        expected.parse(new StringReader(String.join("\n", RULES)));
+
+        final SolrRuleParser parser = new SolrRuleParser(true, true, new WhitespaceAnalyzer());
+        parser.parse(new StringReader(String.join("\n", RULES)));
+
+        Assert.assertArrayEquals(serialize(expected.build()), serialize(parser.build()));
+    }
+
+    @Test
+    /** Invalid rules are reported with the line they are on */
+    public void invalid() throws Exception {
+        final SolrRuleParser parser = new SolrRuleParser(true, true, new WhitespaceAnalyzer());
+        try {
+            parser.parseRule("a, b\na => b => c");
+            Assert.fail();
+        } catch (ParseException e) {
+            Assert.assertEquals("Invalid synonym rule at line 2", e.getMessage());
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+}
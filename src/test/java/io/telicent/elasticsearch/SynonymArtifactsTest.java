@@ -0,0 +1,211 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.elasticsearch.Version;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.util.concurrent.ThreadContext;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+import org.junit.Test;
+
+/** Test class for SynonymArtifacts * */
+public class SynonymArtifactsTest extends ESSingleNodeTestCase {
+
+    private static final SynonymMapCache.Key KEY =
+            new SynonymMapCache.Key(
+                    ".synonyms", Version.CURRENT, true, false, Collections.emptyList(), "a");
+
+    private final AtomicInteger compilations = new AtomicInteger();
+
+    // by node, each keeps track of the artifacts it waits for
+    private final Map<String, SynonymArtifacts> nodes = new HashMap<>();
+
+    private final AtomicInteger retries = new AtomicInteger();
+
+    // no limit unless set by the test
+    private long maxMemory = -1;
+
+    private SynonymMemoryBudget budget() {
+        return new SynonymMemoryBudget(new NoopCircuitBreaker("synonyms"), maxMemory, "test");
+    }
+
+    private SynonymMap compile() throws Exception {
+        compilations.incrementAndGet();
+        SolrSynonymParser parser = new SolrSynonymParser(true, true, new WhitespaceAnalyzer());
+        parser.parse(new StringReader("universe , cosmos\nlol, laughing out loud"));
+        return parser.build();
+    }
+
+    private Supplier<ThreadContext.StoredContext> context() {
+        return () -> client().threadPool().getThreadContext().stashContext();
+    }
+
+    private SynonymArtifacts node(String node) {
+        return nodes.computeIfAbsent(
+                node, n -> new SynonymArtifacts(client(), n, TimeValue.timeValueMillis(600)));
+    }
+
+    private SynonymMap load(String node, String token, SynonymBuildStats stats) throws Exception {
+        return load(KEY, node, token, stats);
+    }
+
+    /** Tries again after the delay asked for, as the holders of the synonyms do */
+    private SynonymMap load(
+            SynonymMapCache.Key key, String node, String token, SynonymBuildStats stats)
+            throws Exception {
+        while (true) {
+            try {
+                return node(node).load(key, token, context(), this::budget, this::compile, stats);
+            } catch (SynonymMapCache.RetryException e) {
+                retries.incrementAndGet();
+                Thread.sleep(e.delay().millis());
+            }
+        }
+    }
+
+    private GetResponse artifact() {
+        return artifact(KEY);
+    }
+
+    private GetResponse artifact(SynonymMapCache.Key key) {
+        return client().prepareGet(SynonymArtifacts.INDEX, "_doc", SynonymArtifacts.id(key)).get();
+    }
+
+    @Test
+    /** The synonyms are compiled by the first node and downloaded by the others */
+    public void testShared() throws Exception {
+        SynonymBuildStats first = new SynonymBuildStats();
+        SynonymMap compiled = load("a", "t1", first);
+        assertEquals(1, compilations.get());
+        assertEquals("index", first.source());
+        assertEquals("ready", artifact().getSource().get("state"));
+        assertEquals("a", artifact().getSource().get("node"));
+        // only kept as a stored field
+        assertFalse(artifact().getSource().containsKey("map"));
+
+        SynonymBuildStats second = new SynonymBuildStats();
+        SynonymMap downloaded = load("b", "t1", second);
+        assertEquals(1, compilations.get());
+        assertEquals("artifact", second.source());
+        assertArrayEquals(SynonymArtifacts.write(compiled), SynonymArtifacts.write(downloaded));
+
+        // the synonym index changed
+        load("b", "t2", new SynonymBuildStats());
+        assertEquals(2, compilations.get());
+        assertEquals("t2", artifact().getSource().get("token"));
+        assertEquals("b", artifact().getSource().get("node"));
+    }
+
+    @Test
+    /** A node which claimed the synonyms but does not share them in time is taken over */
+    public void testAbandoned() throws Exception {
+        load("a", "t1", new SynonymBuildStats());
+        Map<String, Object> building = new HashMap<>(artifact().getSource());
+        building.remove("map");
+        building.put("token", "t2");
+        building.put("state", "building");
+        client().prepareIndex(SynonymArtifacts.INDEX, "_doc", SynonymArtifacts.id(KEY))
+                .setSource(building)
+                .get();
+
+        // the node does not wait for the synonyms in the meantime
+        expectThrows(
+                SynonymMapCache.RetryException.class,
+                () ->
+                        node("b")
+                                .load(
+                                        KEY,
+                                        "t2",
+                                        context(),
+                                        this::budget,
+                                        this::compile,
+                                        new SynonymBuildStats()));
+        SynonymBuildStats stats = new SynonymBuildStats();
+        load("b", "t2", stats);
+        assertTrue(retries.get() > 0);
+        assertEquals(2, compilations.get());
+        assertEquals("index", stats.source());
+        assertEquals("ready", artifact().getSource().get("state"));
+        assertEquals("b", artifact().getSource().get("node"));
+    }
+
+    @Test
+    /**
+     * The synonyms which do not fit in the memory budget are compiled locally, within the limits
+     */
+    public void testOverBudget() throws Exception {
+        load("a", "t1", new SynonymBuildStats());
+        maxMemory = 16;
+        SynonymBuildStats stats = new SynonymBuildStats();
+        load("b", "t1", stats);
+        assertEquals(2, compilations.get());
+        assertEquals("index", stats.source());
+        // still shared with the nodes with enough memory
+        assertEquals("a", artifact().getSource().get("node"));
+    }
+
+    @Test
+    /** The artifacts compiled from previous versions of the documents are deleted */
+    public void testSuperseded() throws Exception {
+        SynonymMapCache.Key otherChain =
+                new SynonymMapCache.Key(
+                        ".synonyms", Version.V_7_0_0, true, false, Collections.emptyList(), "b");
+        SynonymMapCache.Key otherIndex =
+                new SynonymMapCache.Key(
+                        ".other", Version.CURRENT, true, false, Collections.emptyList(), "a");
+        load(KEY, "a", "t1", new SynonymBuildStats());
+        load(otherChain, "a", "t1", new SynonymBuildStats());
+        load(otherIndex, "a", "t1", new SynonymBuildStats());
+        client().admin().indices().prepareRefresh(SynonymArtifacts.INDEX).get();
+
+        load(KEY, "a", "t2", new SynonymBuildStats());
+        assertEquals("t2", artifact().getSource().get("token"));
+        assertFalse(artifact(otherChain).isExists());
+        assertTrue(artifact(otherIndex).isExists());
+    }
+
+    @Test
+    /** The failures of the compilation are not hidden by the sharing */
+    public void testCompilationFailure() throws Exception {
+        SynonymArtifacts artifacts =
+                new SynonymArtifacts(client(), "a", TimeValue.timeValueMillis(600));
+        IllegalArgumentException e =
+                expectThrows(
+                        IllegalArgumentException.class,
+                        () ->
+                                artifacts.load(
+                                        KEY,
+                                        "t1",
+                                        context(),
+                                        this::budget,
+                                        () -> {
+                                            compilations.incrementAndGet();
+                                            throw new IllegalArgumentException("invalid rule");
+                                        },
+                                        new SynonymBuildStats()));
+        assertEquals("invalid rule", e.getMessage());
+        assertEquals(1, compilations.get());
+    }
+}
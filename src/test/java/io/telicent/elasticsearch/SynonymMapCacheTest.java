@@ -0,0 +1,679 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.util.CharsRef;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.common.breaker.NoopCircuitBreaker;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRunnable;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.core.TimeValue;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.analysis.TokenizerFactory;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test class for SynonymMapCache * */
+public class SynonymMapCacheTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final TimeValue TIMEOUT = TimeValue.timeValueSeconds(1);
+
+    private final AtomicInteger builds = new AtomicInteger();
+
+    private boolean fail = false;
+
+    private static SynonymMapCache.Key key(String fingerprint) {
+        return new SynonymMapCache.Key(
+                ".synonyms", Version.CURRENT, true, false, Collections.emptyList(), fingerprint);
+    }
+
+    private String token = null;
+
+    private final SynonymMapCache.Loader loader =
+            new SynonymMapCache.Loader() {
+                @Override
+                public String changeToken() {
+                    return token;
+                }
+
+                @Override
+                public SynonymMap build(String token, SynonymBuildStats stats) throws Exception {
+                    builds.incrementAndGet();
+                    if (fail) {
+                        throw new IllegalArgumentException("failed to build synonyms");
+                    }
+                    SynonymMap.Builder builder = new SynonymMap.Builder(true);
+                    builder.add(new CharsRef("universe"), new CharsRef("cosmos"), true);
+                    return builder.build();
+                }
+            };
+
+    @Test
+    /** Indices with the same key share the same map, which is compiled only once */
+    public void sharedBetweenScopes() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope1 = new Object();
+        Object scope2 = new Object();
+        SynonymMap first = cache.acquire(scope1, "synonyms", key("a"), loader, TIMEOUT).current();
+        SynonymMap second = cache.acquire(scope2, "synonyms", key("a"), loader, TIMEOUT).current();
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, builds.get());
+        Assert.assertEquals(1, cache.size());
+        // the leases of collected scopes are released
+        Reference.reachabilityFence(scope1);
+        Reference.reachabilityFence(scope2);
+    }
+
+    @Test
+    /** The leases of a scope are released once it is garbage collected */
+    public void releasedWhenCollected() throws Exception {
+        CountingBreaker breaker = new CountingBreaker();
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null, 0, breaker);
+        acquireWithTemporaryScope(cache);
+        Assert.assertTrue(breaker.getUsed() > 0);
+        for (int i = 0; i < 100 && cache.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, cache.size());
+        Assert.assertEquals(0, breaker.getUsed());
+    }
+
+    private void acquireWithTemporaryScope(SynonymMapCache cache) {
+        cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+    }
+
+    @Test
+    /** The maps are accounted in the breaker while cached */
+    public void accountedInBreaker() throws Exception {
+        CountingBreaker breaker = new CountingBreaker();
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null, 0, breaker);
+        Object scope = new Object();
+        SynonymsHolder holder = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        // along with the first words of its inputs
+        long bytes =
+                SynonymMemoryBudget.ramBytesUsed(holder.current())
+                        + holder.firstTokens().ramBytesUsed();
+        Assert.assertEquals(bytes, breaker.getUsed());
+        // a new version replaces the previous one
+        cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertEquals(bytes, breaker.getUsed());
+        cache.releaseAll(scope);
+        Assert.assertEquals(0, breaker.getUsed());
+    }
+
+    /** Keeps track of the bytes, never breaks * */
+    private static final class CountingBreaker extends NoopCircuitBreaker {
+        private final AtomicLong used = new AtomicLong();
+
+        private CountingBreaker() {
+            super(SynonymsPlugin.BREAKER_NAME);
+        }
+
+        @Override
+        public void addEstimateBytesAndMaybeBreak(long bytes, String label) {
+            used.addAndGet(bytes);
+        }
+
+        @Override
+        public void addWithoutBreaking(long bytes) {
+            used.addAndGet(bytes);
+        }
+
+        @Override
+        public long getUsed() {
+            return used.get();
+        }
+    }
+
+    @Test
+    /** A different analysis chain gets its own map */
+    public void differentFingerprint() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        SynonymMap first =
+                cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT).current();
+        SynonymMap second =
+                cache.acquire(new Object(), "synonyms", key("b"), loader, TIMEOUT).current();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, cache.size());
+    }
+
+    @Test
+    /** A filter reloaded with a changed analysis chain releases the map it used before */
+    public void changedFingerprintReleasesPrevious() throws Exception {
+        CountingBreaker breaker = new CountingBreaker();
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null, 0, breaker);
+        Object scope = new Object();
+        Object other = new Object();
+        cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        long bytes = breaker.getUsed();
+        cache.acquire(scope, "other", key("c"), loader, TIMEOUT);
+        cache.acquire(other, "synonyms", key("c"), loader, TIMEOUT);
+        Assert.assertEquals(2, cache.size());
+
+        cache.acquire(scope, "synonyms", key("b"), loader, TIMEOUT);
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(2 * bytes, breaker.getUsed());
+        Assert.assertEquals(2, cache.stats().size());
+
+        // still used by the other filter of the scope once the other scope is released
+        cache.acquire(scope, "synonyms", key("c"), loader, TIMEOUT);
+        Assert.assertEquals(1, cache.size());
+        cache.releaseAll(other);
+        Assert.assertEquals(1, cache.size());
+        cache.releaseAll(scope);
+        Assert.assertEquals(0, breaker.getUsed());
+    }
+
+    @Test
+    /** Acquiring again from the same owner is a reload and compiles the map again */
+    public void reloadRebuilds() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope = new Object();
+        SynonymMap first = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT).current();
+        SynonymMap second = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT).current();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, builds.get());
+        Assert.assertSame(
+                second,
+                cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT).current());
+    }
+
+    @Test
+    /** Entries are evicted once the last scope using them has released its leases */
+    public void evictedWhenUnused() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope1 = new Object();
+        Object scope2 = new Object();
+        cache.acquire(scope1, "synonyms", key("a"), loader, TIMEOUT).current();
+        cache.acquire(scope2, "synonyms", key("a"), loader, TIMEOUT).current();
+        cache.releaseAll(scope1);
+        Assert.assertEquals(1, cache.size());
+        cache.releaseAll(scope2);
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    /** A reload is skipped when the synonym index has not changed */
+    public void unchangedTokenSkipsReload() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope = new Object();
+        token = "uuid:1:0:0";
+        SynonymMap first = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT).current();
+        SynonymMap second = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT).current();
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, builds.get());
+        Assert.assertEquals(1, cache.reloadsSkipped());
+
+        token = "uuid:2:1:1";
+        SynonymMap third = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT).current();
+        Assert.assertNotSame(first, third);
+        Assert.assertEquals(2, builds.get());
+    }
+
+    @Test
+    /** The synonyms of a changed index are compiled again without a reload of the analyzers */
+    public void refreshedWhenIndexChanged() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope = new Object();
+        token = "uuid:1:0:0";
+        SynonymsHolder holder = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        SynonymMap first = holder.current();
+        Assert.assertEquals(0, cache.refresh(Collections.singletonList(".other")));
+        // the changes are not visible yet
+        Assert.assertEquals(1, cache.refresh(Collections.singletonList(".synonyms")));
+        Assert.assertSame(first, holder.current());
+        Assert.assertEquals(1, builds.get());
+
+        token = "uuid:2:1:1";
+        Assert.assertEquals(1, cache.refresh(Collections.singletonList(".synonyms")));
+        Assert.assertNotSame(first, holder.current());
+        Assert.assertEquals(2, builds.get());
+        // not counted as a reload of the analyzers
+        Assert.assertEquals(0, holder.stats(Collections.emptyList()).getReloads());
+    }
+
+    @Test
+    /** The builds beyond the limit wait their turn, the identical ones are merged */
+    public void scheduledBuilds() throws Exception {
+        List<Runnable> pool = new ArrayList<>();
+        SynonymBuildScheduler scheduler = new SynonymBuildScheduler(pool::add, 2);
+        SynonymMapCache cache = new SynonymMapCache(scheduler, null);
+        TimeValue noWait = TimeValue.timeValueMillis(1);
+        List<SynonymsHolder> holders = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            holders.add(cache.acquire(new Object(), "synonyms", key("k" + i), loader, noWait));
+        }
+        // requested by other indices while waiting
+        cache.acquire(new Object(), "synonyms", key("k3"), loader, noWait);
+        cache.acquire(new Object(), "synonyms", key("k3"), loader, noWait);
+        Assert.assertEquals(2, pool.size());
+        Assert.assertEquals(2, scheduler.stats().running());
+        Assert.assertEquals(2, scheduler.stats().queued());
+
+        pool.remove(0).run();
+        Assert.assertTrue(holders.get(0).isLoaded());
+        Assert.assertEquals(2, pool.size());
+        Assert.assertEquals(1, scheduler.stats().queued());
+        while (pool.isEmpty() == false) {
+            pool.remove(0).run();
+        }
+        for (SynonymsHolder holder : holders) {
+            Assert.assertTrue(holder.isLoaded());
+        }
+        // the requests merged for k3 find the synonyms unchanged
+        Assert.assertEquals(4, builds.get());
+        SynonymBuildScheduler.Stats stats = scheduler.stats();
+        Assert.assertEquals(0, stats.running());
+        Assert.assertEquals(0, stats.queued());
+        Assert.assertEquals(5, stats.completed());
+        Assert.assertEquals(5, stats.waits().count());
+    }
+
+    @Test
+    /** The builds beyond the queue are rejected without holding up the others */
+    public void queueFull() throws Exception {
+        List<Runnable> pool = new ArrayList<>();
+        SynonymBuildScheduler scheduler = new SynonymBuildScheduler(pool::add, 1, 1);
+        SynonymMapCache cache = new SynonymMapCache(scheduler, null);
+        TimeValue noWait = TimeValue.timeValueMillis(1);
+        List<SynonymsHolder> holders = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            holders.add(cache.acquire(new Object(), "synonyms", key("k" + i), loader, noWait));
+        }
+        SynonymBuildScheduler.Stats stats = scheduler.stats();
+        Assert.assertEquals(1, stats.running());
+        Assert.assertEquals(1, stats.queued());
+        Assert.assertEquals(1, stats.rejected());
+        Assert.assertEquals(0, holders.get(2).stats(Collections.emptyList()).getBuildFailures());
+
+        while (pool.isEmpty() == false) {
+            pool.remove(0).run();
+        }
+        Assert.assertTrue(holders.get(0).isLoaded());
+        Assert.assertTrue(holders.get(1).isLoaded());
+        Assert.assertFalse(holders.get(2).isLoaded());
+        Assert.assertEquals(0, scheduler.stats().running());
+
+        // requested again once there is room
+        cache.acquire(new Object(), "synonyms", key("k2"), loader, noWait);
+        pool.remove(0).run();
+        Assert.assertTrue(holders.get(2).isLoaded());
+        Assert.assertEquals(3, scheduler.stats().completed());
+    }
+
+    @Test
+    /** A build which does not complete in time is given up on, the next ones go ahead */
+    public void stuckBuildTimesOut() throws Exception {
+        List<Runnable> pool = Collections.synchronizedList(new ArrayList<>());
+        List<Runnable> timers = Collections.synchronizedList(new ArrayList<>());
+        SynonymBuildScheduler scheduler =
+                new SynonymBuildScheduler(
+                        pool::add,
+                        1,
+                        10,
+                        TimeValue.timeValueMinutes(1),
+                        (task, delay) -> timers.add(task));
+        SynonymMapCache cache = new SynonymMapCache(scheduler, null);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch stuck = new CountDownLatch(1);
+        AtomicBoolean block = new AtomicBoolean(true);
+        AtomicBoolean interrupted = new AtomicBoolean();
+        SynonymMapCache.Loader blocking =
+                new SynonymMapCache.Loader() {
+                    @Override
+                    public String changeToken() {
+                        return null;
+                    }
+
+                    @Override
+                    public SynonymMap build(String token, SynonymBuildStats stats)
+                            throws Exception {
+                        if (block.getAndSet(false)) {
+                            started.countDown();
+                            // returns once released, even if interrupted
+                            while (stuck.getCount() > 0) {
+                                try {
+                                    stuck.await();
+                                } catch (InterruptedException e) {
+                                    interrupted.set(true);
+                                }
+                            }
+                        }
+                        return loader.build(token, stats);
+                    }
+                };
+        SynonymsHolder holder =
+                cache.acquire(
+                        new Object(), "synonyms", key("a"), blocking, TimeValue.timeValueMillis(1));
+        Thread thread = new Thread(pool.remove(0));
+        thread.start();
+        started.await();
+        CompletableFuture<SynonymMap> next = holder.refresh();
+        Assert.assertEquals(1, timers.size());
+
+        timers.remove(0).run();
+        Assert.assertEquals(1, scheduler.stats().timedOut());
+        Assert.assertEquals(1, holder.stats(Collections.emptyList()).getBuildFailures());
+        Assert.assertFalse(holder.isLoaded());
+
+        // the slot is given to the next build
+        pool.remove(0).run();
+        Assert.assertTrue(holder.isLoaded());
+        SynonymMap current = next.get();
+        Assert.assertSame(current, holder.current());
+
+        // the build which timed out neither publishes nor fails again
+        stuck.countDown();
+        thread.join();
+        Assert.assertTrue(interrupted.get());
+        Assert.assertSame(current, holder.current());
+        Assert.assertEquals(1, holder.stats(Collections.emptyList()).getBuildFailures());
+        Assert.assertEquals(0, scheduler.stats().running());
+        Assert.assertEquals(1, scheduler.stats().completed());
+    }
+
+    @Test
+    /** A build which has to wait is tried again later, the other builds run in the meantime */
+    public void retriedLater() throws Exception {
+        List<Runnable> pool = new ArrayList<>();
+        List<Runnable> delayed = new ArrayList<>();
+        SynonymBuildScheduler scheduler = new SynonymBuildScheduler(pool::add, 1);
+        SynonymMapCache cache =
+                new SynonymMapCache(
+                        scheduler,
+                        null,
+                        0,
+                        new NoopCircuitBreaker("synonyms"),
+                        null,
+                        (task, delay) -> delayed.add(task));
+        AtomicInteger waits = new AtomicInteger(2);
+        SynonymMapCache.Loader waiting =
+                new SynonymMapCache.Loader() {
+                    @Override
+                    public String changeToken() {
+                        return null;
+                    }
+
+                    @Override
+                    public SynonymMap build(String token, SynonymBuildStats stats)
+                            throws Exception {
+                        if (waits.getAndDecrement() > 0) {
+                            throw new SynonymMapCache.RetryException(
+                                    TimeValue.timeValueMillis(500));
+                        }
+                        return loader.build(token, stats);
+                    }
+                };
+        TimeValue noWait = TimeValue.timeValueMillis(1);
+        SynonymsHolder first = cache.acquire(new Object(), "synonyms", key("a"), waiting, noWait);
+        SynonymsHolder second = cache.acquire(new Object(), "synonyms", key("b"), loader, noWait);
+        Assert.assertEquals(1, scheduler.stats().queued());
+
+        // the slot is given to the next build while the first one waits
+        pool.remove(0).run();
+        Assert.assertEquals(1, delayed.size());
+        Assert.assertFalse(first.isLoaded());
+        pool.remove(0).run();
+        Assert.assertTrue(second.isLoaded());
+
+        while (delayed.isEmpty() == false) {
+            delayed.remove(0).run();
+            pool.remove(0).run();
+        }
+        Assert.assertTrue(first.isLoaded());
+        Assert.assertEquals(0, first.stats(Collections.emptyList()).getBuildFailures());
+        Assert.assertEquals(0, scheduler.stats().running());
+        Assert.assertEquals(2, builds.get());
+    }
+
+    @Test
+    /** A build rejected by the thread pool does not hold up the next ones */
+    public void rejectedBuild() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        SynonymBuildScheduler scheduler =
+                new SynonymBuildScheduler(
+                        task -> {
+                            attempts.incrementAndGet();
+                            throw new EsRejectedExecutionException("rejected");
+                        },
+                        1);
+        SynonymMapCache cache = new SynonymMapCache(scheduler, null);
+        SynonymsHolder holder = cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertFalse(holder.isLoaded());
+        Assert.assertEquals(0, scheduler.stats().running());
+        cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertEquals(2, attempts.get());
+        Assert.assertEquals(0, holder.stats(Collections.emptyList()).getBuildFailures());
+        Assert.assertEquals(2, scheduler.stats().rejected());
+        Assert.assertEquals(0, scheduler.stats().completed());
+        CompletableFuture<SynonymMap> build = holder.refresh(loader, false);
+        Assert.assertTrue(build.isCompletedExceptionally());
+
+        // the thread pools of Elasticsearch tell the task instead of throwing
+        scheduler =
+                new SynonymBuildScheduler(
+                        task -> {
+                            AbstractRunnable runnable = (AbstractRunnable) task;
+                            runnable.onRejection(new EsRejectedExecutionException("rejected"));
+                            runnable.onAfter();
+                        },
+                        1);
+        cache = new SynonymMapCache(scheduler, null);
+        holder = cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertFalse(holder.isLoaded());
+        Assert.assertEquals(0, scheduler.stats().running());
+        Assert.assertEquals(1, scheduler.stats().rejected());
+        Assert.assertEquals(0, scheduler.stats().completed());
+    }
+
+    @Test
+    /** A new index does not get stale synonyms when the synonym index has changed */
+    public void changedTokenRebuildsForNewScope() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        token = "uuid:1:0:0";
+        SynonymMap first =
+                cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT).current();
+        token = "uuid:2:1:1";
+        SynonymMap second =
+                cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT).current();
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(0, cache.reloadsSkipped());
+    }
+
+    @Test
+    /** A failed build leaves the previous version of the synonyms in place */
+    public void failureKeepsPrevious() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        Object scope = new Object();
+        SynonymsHolder holder = cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        SynonymMap first = holder.current();
+        fail = true;
+        cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertSame(first, holder.current());
+    }
+
+    @Test
+    /** The synonyms are not applied until the first build has succeeded */
+    public void emptyUntilLoaded() throws Exception {
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, null);
+        fail = true;
+        SynonymsHolder holder = cache.acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertFalse(holder.isLoaded());
+        Assert.assertNull(holder.current().fst);
+    }
+
+    @Test
+    /** Waits for the first build no longer than the timeout */
+    public void firstBuildTimeout() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SynonymMapCache cache = new SynonymMapCache(executor, null);
+            SynonymMapCache.Loader slow =
+                    new SynonymMapCache.Loader() {
+                        @Override
+                        public String changeToken() {
+                            return null;
+                        }
+
+                        @Override
+                        public SynonymMap build(String token, SynonymBuildStats stats)
+                                throws Exception {
+                            latch.await();
+                            return loader.build(token, stats);
+                        }
+                    };
+            SynonymsHolder holder =
+                    cache.acquire(
+                            new Object(),
+                            "synonyms",
+                            key("a"),
+                            slow,
+                            TimeValue.timeValueMillis(10));
+            Assert.assertFalse(holder.isLoaded());
+            latch.countDown();
+            holder.refresh(loader, false).get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(holder.isLoaded());
+            Assert.assertNotNull(holder.current().fst);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    /** After a restart, unchanged synonyms are read from the store instead of being compiled */
+    public void loadedFromStore() throws Exception {
+        SynonymsStore store = new SynonymsStore(folder.newFolder().toPath());
+        token = "uuid:1:0:0";
+        new SynonymMapCache(Runnable::run, store)
+                .acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertEquals(1, builds.get());
+
+        SynonymsHolder holder =
+                new SynonymMapCache(Runnable::run, store)
+                        .acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertTrue(holder.isLoaded());
+        Assert.assertNotNull(holder.current().fst);
+        Assert.assertEquals(1, builds.get());
+
+        // compiled again once the synonyms have changed
+        token = "uuid:2:1:1";
+        new SynonymMapCache(Runnable::run, store)
+                .acquire(new Object(), "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertEquals(2, builds.get());
+    }
+
+    @Test
+    /** The stored copy is deleted once evicted, unless the node shuts down */
+    public void evictedFromStore() throws Exception {
+        Path path = folder.newFolder().toPath();
+        SynonymsStore store = new SynonymsStore(path);
+        SynonymMapCache cache = new SynonymMapCache(Runnable::run, store);
+        token = "uuid:1:0:0";
+        Object scope = new Object();
+        cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        cache.releaseAll(scope, false);
+        Assert.assertEquals(1, storedFiles(path));
+
+        cache.acquire(scope, "synonyms", key("a"), loader, TIMEOUT);
+        Assert.assertEquals(1, builds.get());
+        // the previous copy goes once the analysis chain changes
+        cache.acquire(scope, "synonyms", key("b"), loader, TIMEOUT);
+        Assert.assertEquals(1, storedFiles(path));
+        cache.releaseAll(scope);
+        Assert.assertEquals(0, storedFiles(path));
+    }
+
+    private static long storedFiles(Path path) throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.count();
+        }
+    }
+
+    @Test
+    /** The content of the files read by the analysis chain is part of the key of the synonyms */
+    public void keyedByAnalysisFiles() throws Exception {
+        Path home = folder.newFolder().toPath();
+        Path config = Files.createDirectories(home.resolve("config"));
+        Path stopwords = Files.write(config.resolve("stopwords.txt"), Arrays.asList("the"));
+        Settings settings =
+                Settings.builder()
+                        .put(IndexMetadata.SETTING_VERSION_CREATED, Version.CURRENT)
+                        .put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, 1)
+                        .put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 0)
+                        .put("index.analysis.filter.stop_words.type", "stop")
+                        .put("index.analysis.filter.stop_words.stopwords_path", "stopwords.txt")
+                        .build();
+        IndexSettings indexSettings =
+                new IndexSettings(
+                        IndexMetadata.builder("test").settings(settings).build(), Settings.EMPTY);
+        Environment env =
+                new Environment(Settings.builder().put("path.home", home).build(), config);
+        SynonymGraphTokenFilterFactory factory =
+                new SynonymGraphTokenFilterFactory(
+                        indexSettings, env, "synonyms", Settings.EMPTY, null, null, null, 1, null);
+        TokenizerFactory tokenizer =
+                TokenizerFactory.newFactory("whitespace", WhitespaceTokenizer::new);
+        TokenFilterFactory stop =
+                new TokenFilterFactory() {
+                    @Override
+                    public String name() {
+                        return "stop_words";
+                    }
+
+                    @Override
+                    public TokenStream create(TokenStream tokenStream) {
+                        return tokenStream;
+                    }
+                };
+        List<TokenFilterFactory> filters = Collections.singletonList(stop);
+
+        String fingerprint = factory.fingerprint(tokenizer, Collections.emptyList(), filters);
+        Assert.assertEquals(
+                fingerprint, factory.fingerprint(tokenizer, Collections.emptyList(), filters));
+        // same settings, other words
+        Files.write(stopwords, Arrays.asList("the", "a"));
+        Assert.assertNotEquals(
+                fingerprint, factory.fingerprint(tokenizer, Collections.emptyList(), filters));
+    }
+}
@@ -0,0 +1,138 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.elasticsearch.Version;
+import org.elasticsearch.cluster.metadata.IndexMetadata;
+import org.elasticsearch.cluster.metadata.Metadata;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.core.TimeValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+/** Test class for SynonymsReloader * */
+public class SynonymsReloaderTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<TimeValue> delays = new ArrayList<>();
+    private final List<List<String>> refreshed = new ArrayList<>();
+
+    private final SynonymsReloader reloader =
+            new SynonymsReloader(
+                    (task, delay) -> {
+                        tasks.add(task);
+                        delays.add(delay);
+                    },
+                    clock::get,
+                    TimeValue.timeValueSeconds(5),
+                    TimeValue.timeValueSeconds(20),
+                    refreshed::add);
+
+    /** Moves the clock forward and runs the task scheduled last */
+    private void runAfter(long seconds) {
+        clock.addAndGet(TimeValue.timeValueSeconds(seconds).nanos());
+        tasks.remove(tasks.size() - 1).run();
+    }
+
+    @Test
+    /** A burst of writes causes a single refresh once the index has been quiet */
+    public void debounced() {
+        reloader.watch(new HashSet<>(Arrays.asList(".synonyms", ".tenant")));
+        reloader.changed("logs");
+        Assert.assertTrue(tasks.isEmpty());
+
+        for (int i = 0; i < 1000; i++) {
+            reloader.changed(".synonyms");
+        }
+        Assert.assertEquals(1, tasks.size());
+        Assert.assertEquals(TimeValue.timeValueSeconds(5), delays.get(0));
+
+        clock.addAndGet(TimeValue.timeValueSeconds(3).nanos());
+        reloader.changed(".tenant");
+        // put off until 5 seconds after the last write
+        runAfter(2);
+        Assert.assertTrue(refreshed.isEmpty());
+        Assert.assertEquals(TimeValue.timeValueSeconds(3), delays.get(1));
+        runAfter(3);
+        Assert.assertEquals(1, refreshed.size());
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList(".synonyms", ".tenant")),
+                new HashSet<>(refreshed.get(0)));
+        Assert.assertTrue(tasks.isEmpty());
+
+        // the next write schedules another refresh
+        reloader.changed(".synonyms");
+        runAfter(5);
+        Assert.assertEquals(Collections.singletonList(".synonyms"), refreshed.get(1));
+    }
+
+    @Test
+    /** A continuous flow of writes does not put the refresh off beyond the maximum delay */
+    public void maxDelay() {
+        reloader.watch(Collections.singleton(".synonyms"));
+        reloader.changed(".synonyms");
+        for (int i = 0; i < 4; i++) {
+            clock.addAndGet(TimeValue.timeValueSeconds(4).nanos());
+            reloader.changed(".synonyms");
+            runAfter(1);
+        }
+        Assert.assertEquals(1, refreshed.size());
+    }
+
+    @Test
+    /** The synonym indices are the ones named by the filters of the indices */
+    public void synonymIndices() {
+        Metadata metadata =
+                Metadata.builder()
+                        .put(
+                                index(
+                                        "products",
+                                        Settings.builder()
+                                                .put(
+                                                        "index.analysis.filter.synonyms.type",
+                                                        "index_synonym_graph")
+                                                .put(
+                                                        "index.analysis.filter.tenant.type",
+                                                        "index_synonym_graph")
+                                                .put(
+                                                        "index.analysis.filter.tenant.index",
+                                                        ".tenant")
+                                                .put("index.analysis.filter.stop.type", "stop")
+                                                .put(
+                                                        "index.analysis.filter.stop.index",
+                                                        ".stopwords")),
+                                false)
+                        .put(index("logs", Settings.builder()), false)
+                        .build();
+        Assert.assertEquals(
+                new HashSet<>(Arrays.asList(".synonyms", ".tenant")),
+                SynonymsReloader.synonymIndices(metadata));
+    }
+
+    private static IndexMetadata index(String name, Settings.Builder settings) {
+        return IndexMetadata.builder(name)
+                .settings(
+                        settings.put(IndexMetadata.SETTING_VERSION_CREATED, Version.CURRENT)
+                                .put(IndexMetadata.SETTING_NUMBER_OF_SHARDS, 1)
+                                .put(IndexMetadata.SETTING_NUMBER_OF_REPLICAS, 0))
+                .build();
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2023 Telicent
+ *
+ * <p>Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * <p>http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * <p>Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied. See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.telicent.elasticsearch;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.synonym.SolrSynonymParser;
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.analysis.synonym.SynonymMap;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
+import org.elasticsearch.Version;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Test class for SynonymsStore * */
+public class SynonymsStoreTest {
+
+    @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final SynonymMapCache.Key KEY =
+            new SynonymMapCache.Key(
+                    ".synonyms", Version.CURRENT, true, false, Collections.emptyList(), "a");
+
+    private static SynonymMap compile() throws Exception {
+        SolrSynonymParser parser = new SolrSynonymParser(true, true, new WhitespaceAnalyzer());
+        parser.parse(
+                new StringReader(
+                        "i-pod, i pod => ipod\n"
+                                + "sea biscuit, sea biscit => seabiscuit\n"
+                                + "universe , cosmos\n"
+                                + "lol, laughing out loud"));
+        return parser.build();
+    }
+
+    private static List<String> analyze(SynonymMap map, String text) throws IOException {
+        Analyzer analyzer =
+                new Analyzer() {
+                    @Override
+                    protected TokenStreamComponents createComponents(String fieldName) {
+                        Tokenizer tokenizer = new WhitespaceTokenizer();
+                        return new TokenStreamComponents(
+                                tokenizer, new SynonymGraphFilter(tokenizer, map, false));
+                    }
+                };
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream("field", text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posInc =
+                    stream.addAttribute(PositionIncrementAttribute.class);
+            PositionLengthAttribute posLen = stream.addAttribute(PositionLengthAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(
+                        term
+                                + "/"
+                                + posInc.getPositionIncrement()
+                                + "/"
+                                + posLen.getPositionLength());
+            }
+            stream.end();
+        }
+        analyzer.close();
+        return tokens;
+    }
+
+    @Test
+    /** The synonyms read back behave like the ones written */
+    public void roundTrip() throws Exception {
+        Path path = folder.newFolder().toPath();
+        SynonymMap map = compile();
+        new SynonymsStore(path).write(KEY, "token", map);
+
+        SynonymsStore.Stored stored = new SynonymsStore(path).read(KEY);
+        Assert.assertNotNull(stored);
+        Assert.assertEquals("token", stored.token());
+        Assert.assertEquals(map.words.size(), stored.map().words.size());
+        Assert.assertEquals(map.maxHorizontalContext, stored.map().maxHorizontalContext);
+
+        String text = "the i pod and the sea biscit laughing out loud in the universe";
+        Assert.assertEquals(analyze(map, text), analyze(stored.map(), text));
+    }
+
+    @Test
+    /** Nothing is returned for synonyms which were never stored */
+    public void missing() throws Exception {
+        Assert.assertNull(new SynonymsStore(folder.newFolder().toPath()).read(KEY));
+    }
+
+    @Test
+    /** The files which cannot be used are deleted on startup, then those not used since */
+    public void pruned() throws Exception {
+        Path path = folder.newFolder().toPath();
+        SynonymMapCache.Key other =
+                new SynonymMapCache.Key(
+                        ".synonyms", Version.CURRENT, true, false, Collections.emptyList(), "b");
+        new SynonymsStore(path).write(KEY, null, compile());
+        new SynonymsStore(path).write(other, null, compile());
+        Files.write(path.resolve("interrupted.syn.tmp"), new byte[] {1, 2, 3});
+        Files.write(path.resolve("other.syn"), new byte[] {1, 2, 3});
+
+        SynonymsStore store = new SynonymsStore(path);
+        store.prune();
+        Assert.assertEquals(2, files(path).size());
+        Assert.assertNotNull(store.read(KEY));
+        store.pruneUnused();
+        Assert.assertEquals(1, files(path).size());
+        Assert.assertNotNull(store.read(KEY));
+
+        store.delete(KEY);
+        Assert.assertTrue(files(path).isEmpty());
+        // nothing to prune in a directory never created
+        new SynonymsStore(path.resolve("missing")).prune();
+    }
+
+    private static List<Path> files(Path path) throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.collect(Collectors.toList());
+        }
+    }
+
+    @Test
+    /** A corrupted file is discarded */
+    public void corrupted() throws Exception {
+        Path path = folder.newFolder().toPath();
+        SynonymsStore store = new SynonymsStore(path);
+        store.write(KEY, null, compile());
+
+        Path file;
+        try (Stream<Path> files = Files.list(path)) {
+            file = files.findFirst().get();
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[bytes.length / 2] ^= 0xFF;
+        Files.write(file, bytes);
+
+        Assert.assertNull(store.read(KEY));
+        Assert.assertFalse(Files.exists(file));
+    }
+}